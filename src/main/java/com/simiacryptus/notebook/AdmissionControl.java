@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class AdmissionControl {
+  private static final int CORES = Runtime.getRuntime().availableProcessors();
+  // A browser opens several connections per host, so one page load and its sub-resources stay well inside the defaults
+  public static int MAX_IN_FLIGHT = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_HTTP_MAX_IN_FLIGHT", Integer.toString(Math.max(16, 2 * CORES))));
+  public static int MAX_DYNAMIC = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_HTTP_MAX_DYNAMIC", Integer.toString(Math.max(4, CORES / 2))));
+  public static int ROUTE_LIMIT = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_HTTP_ROUTE_LIMIT", "2"));
+  public static int MAX_CONNECTIONS = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_HTTP_MAX_CONNECTIONS", "256"));
+  public static double MAX_DYNAMIC_RATE = Double.parseDouble(RefSystem.getProperty("NOTEBOOK_HTTP_MAX_DYNAMIC_RATE", "0"));
+  public static int RETRY_AFTER_SECONDS = 2;
+  public static final AdmissionControl GLOBAL = new AdmissionControl(MAX_IN_FLIGHT, MAX_DYNAMIC, MAX_DYNAMIC_RATE);
+
+  @Nonnull
+  private final Semaphore inFlight;
+  @Nonnull
+  private final Semaphore dynamic;
+  private final double rate;
+  private final AtomicLong rejected = new AtomicLong();
+  private double tokens;
+  private long lastRefill = System.nanoTime();
+
+  public AdmissionControl(int maxInFlight, int maxDynamic, double rate) {
+    this.inFlight = new Semaphore(maxInFlight);
+    // Dynamic routes never take the last permits, which stay available to static files
+    this.dynamic = new Semaphore(Math.max(1, Math.min(maxDynamic, maxInFlight - 1)));
+    this.rate = rate;
+    this.tokens = Math.max(1, rate);
+  }
+
+  @Nonnull
+  public static NanoHTTPD.Response unavailable(@Nonnull String reason) {
+    NanoHTTPD.Response response = NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.SERVICE_UNAVAILABLE,
+        NanoHTTPD.MIME_PLAINTEXT, "Service Unavailable: " + reason);
+    response.addHeader("Retry-After", Integer.toString(RETRY_AFTER_SECONDS));
+    response.addHeader("Cache-Control", "no-store");
+    return response;
+  }
+
+  public long getRejected() {
+    return rejected.get();
+  }
+
+  public int getAvailable() {
+    return inFlight.availablePermits();
+  }
+
+  public int getAvailableDynamic() {
+    return dynamic.availablePermits();
+  }
+
+  @Nullable
+  public Ticket tryAcquireStatic() {
+    if (!inFlight.tryAcquire()) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    return new Ticket(inFlight, null, null);
+  }
+
+  @Nullable
+  public Ticket tryAcquireDynamic(@Nullable Semaphore routeLimit) {
+    if (!tryTakeToken()) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    if (null != routeLimit && !routeLimit.tryAcquire()) {
+      rejected.incrementAndGet();
+      return null;
+    }
+    if (!dynamic.tryAcquire()) {
+      if (null != routeLimit) routeLimit.release();
+      rejected.incrementAndGet();
+      return null;
+    }
+    if (!inFlight.tryAcquire()) {
+      dynamic.release();
+      if (null != routeLimit) routeLimit.release();
+      rejected.incrementAndGet();
+      return null;
+    }
+    return new Ticket(inFlight, dynamic, routeLimit);
+  }
+
+  private synchronized boolean tryTakeToken() {
+    if (rate <= 0) return true;
+    long now = System.nanoTime();
+    tokens = Math.min(Math.max(1, rate), tokens + (now - lastRefill) * rate / 1e9);
+    lastRefill = now;
+    if (tokens < 1) return false;
+    tokens -= 1;
+    return true;
+  }
+
+  public static final class Ticket implements AutoCloseable {
+    @Nullable
+    private Semaphore inFlight;
+    @Nullable
+    private final Semaphore dynamic;
+    @Nullable
+    private final Semaphore route;
+
+    private Ticket(@Nonnull Semaphore inFlight, @Nullable Semaphore dynamic, @Nullable Semaphore route) {
+      this.inFlight = inFlight;
+      this.dynamic = dynamic;
+      this.route = route;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (null == inFlight) return;
+      inFlight.release();
+      inFlight = null;
+      if (null != dynamic) dynamic.release();
+      if (null != route) route.release();
+    }
+  }
+}
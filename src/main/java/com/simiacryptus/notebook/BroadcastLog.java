@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class BroadcastLog implements Closeable {
+  private static final long WAIT_MILLIS = 1000;
+
+  @Nonnull
+  private final FileChannel channel;
+  @Nonnull
+  private final byte[] ring;
+  private final int mask;
+  private final AtomicInteger subscribers = new AtomicInteger();
+  private volatile long length = 0;
+  private volatile boolean closed = false;
+
+  public BroadcastLog(@Nonnull File file, int ringCapacity) throws IOException {
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    int size = Integer.highestOneBit(Math.max(ringCapacity, 1));
+    if (size < ringCapacity) size <<= 1;
+    this.ring = new byte[size];
+    this.mask = size - 1;
+  }
+
+  public long getLength() {
+    return length;
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.get();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public synchronized void append(@Nonnull byte[] b, int off, int len) throws IOException {
+    if (closed) throw new IOException("Log closed");
+    if (len == 0) return;
+    long position = length;
+    ByteBuffer src = ByteBuffer.wrap(b, off, len);
+    while (src.hasRemaining()) {
+      channel.write(src, position + src.position() - off);
+    }
+    // Only the newest ring.length bytes are retained in memory
+    int skip = Math.max(0, len - ring.length);
+    int count = len - skip;
+    int offset = (int) ((position + skip) & mask);
+    int first = Math.min(count, ring.length - offset);
+    RefSystem.arraycopy(b, off + skip, ring, offset, first);
+    if (first < count) {
+      RefSystem.arraycopy(b, off + skip + first, ring, 0, count - first);
+    }
+    length = position + len;
+    notifyAll();
+  }
+
+  @Nonnull
+  public OutputStream getOutputStream() {
+    return new OutputStream() {
+      @Override
+      public void write(int b) throws IOException {
+        append(new byte[]{(byte) b}, 0, 1);
+      }
+
+      @Override
+      public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+        append(b, off, len);
+      }
+
+      @Override
+      public void close() throws IOException {
+        BroadcastLog.this.close();
+      }
+    };
+  }
+
+  @Nonnull
+  public InputStream subscribe() {
+    return subscribe(0);
+  }
+
+  @Nonnull
+  public InputStream subscribe(final long start) {
+    subscribers.incrementAndGet();
+    return new InputStream() {
+      private long cursor = start;
+      private boolean unsubscribed = false;
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        int read = BroadcastLog.this.read(cursor, b, off, len);
+        if (read > 0) cursor += read;
+        return read;
+      }
+
+      @Override
+      public int available() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max(0, length - cursor));
+      }
+
+      @Override
+      public void close() {
+        if (!unsubscribed) {
+          unsubscribed = true;
+          subscribers.decrementAndGet();
+        }
+      }
+    };
+  }
+
+  protected int read(long cursor, @Nonnull byte[] b, int off, int len) throws IOException {
+    synchronized (this) {
+      while (cursor >= length && !closed) {
+        try {
+          wait(WAIT_MILLIS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException();
+        }
+      }
+      if (cursor >= length) return -1;
+      int count = (int) Math.min(len, length - cursor);
+      if (length - cursor <= ring.length) {
+        int offset = (int) (cursor & mask);
+        int first = Math.min(count, ring.length - offset);
+        RefSystem.arraycopy(ring, offset, b, off, first);
+        if (first < count) {
+          RefSystem.arraycopy(ring, 0, b, off + first, count - first);
+        }
+        return count;
+      }
+      len = count;
+    }
+    // The subscriber fell behind the in-memory window; replay from the file, which is never rewritten
+    return channel.read(ByteBuffer.wrap(b, off, len), cursor);
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (closed) return;
+    closed = true;
+    notifyAll();
+  }
+
+  public void dispose() throws IOException {
+    close();
+    channel.close();
+  }
+}
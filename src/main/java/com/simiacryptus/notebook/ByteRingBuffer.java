@@ -0,0 +1,186 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class ByteRingBuffer {
+  private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  @Nonnull
+  private final byte[] buffer;
+  private final int mask;
+  @Nonnull
+  private final Input input = new Input();
+  @Nonnull
+  private final Output output = new Output();
+  private volatile long writePosition = 0;
+  private volatile long readPosition = 0;
+  private volatile boolean writerClosed = false;
+  private volatile boolean readerClosed = false;
+  @Nullable
+  private volatile Thread waitingReader = null;
+  @Nullable
+  private volatile Thread waitingWriter = null;
+
+  public ByteRingBuffer(int capacity) {
+    if (capacity <= 0) throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+    int size = Integer.highestOneBit(capacity);
+    if (size < capacity) size <<= 1;
+    this.buffer = new byte[size];
+    this.mask = size - 1;
+  }
+
+  public int getCapacity() {
+    return buffer.length;
+  }
+
+  public int size() {
+    return (int) (writePosition - readPosition);
+  }
+
+  @Nonnull
+  public InputStream getInputStream() {
+    return input;
+  }
+
+  @Nonnull
+  public OutputStream getOutputStream() {
+    return output;
+  }
+
+  private static void park(@Nonnull Object blocker) throws InterruptedIOException {
+    LockSupport.parkNanos(blocker, PARK_NANOS);
+    if (Thread.interrupted()) {
+      throw new InterruptedIOException();
+    }
+  }
+
+  private static void unpark(@Nullable Thread thread) {
+    if (null != thread) LockSupport.unpark(thread);
+  }
+
+  private class Input extends InputStream {
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+      if (len == 0) return 0;
+      long read = readPosition;
+      long available = writePosition - read;
+      while (available == 0) {
+        if (writerClosed) {
+          // Re-check after observing the close, which is published after the final write
+          available = writePosition - read;
+          if (available == 0) return -1;
+          break;
+        }
+        if (readerClosed) throw new IOException("Pipe closed");
+        waitingReader = Thread.currentThread();
+        try {
+          available = writePosition - read;
+          if (available == 0 && !writerClosed) park(this);
+        } finally {
+          waitingReader = null;
+        }
+        available = writePosition - read;
+      }
+      int count = (int) Math.min(len, available);
+      int offset = (int) (read & mask);
+      int first = Math.min(count, buffer.length - offset);
+      RefSystem.arraycopy(buffer, offset, b, off, first);
+      if (first < count) {
+        RefSystem.arraycopy(buffer, 0, b, off + first, count - first);
+      }
+      readPosition = read + count;
+      unpark(waitingWriter);
+      return count;
+    }
+
+    @Override
+    public int available() {
+      return size();
+    }
+
+    @Override
+    public void close() {
+      readerClosed = true;
+      unpark(waitingWriter);
+    }
+  }
+
+  private class Output extends OutputStream {
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+      if (writerClosed) throw new IOException("Pipe closed");
+      while (len > 0) {
+        long write = writePosition;
+        long free = buffer.length - (write - readPosition);
+        while (free == 0) {
+          if (readerClosed) throw new IOException("Pipe closed by reader");
+          waitingWriter = Thread.currentThread();
+          try {
+            free = buffer.length - (write - readPosition);
+            if (free == 0 && !readerClosed) park(this);
+          } finally {
+            waitingWriter = null;
+          }
+          free = buffer.length - (write - readPosition);
+        }
+        if (readerClosed) throw new IOException("Pipe closed by reader");
+        int count = (int) Math.min(len, free);
+        int offset = (int) (write & mask);
+        int first = Math.min(count, buffer.length - offset);
+        RefSystem.arraycopy(b, off, buffer, offset, first);
+        if (first < count) {
+          RefSystem.arraycopy(b, off + first, buffer, 0, count - first);
+        }
+        writePosition = write + count;
+        unpark(waitingReader);
+        off += count;
+        len -= count;
+      }
+    }
+
+    @Override
+    public void close() {
+      writerClosed = true;
+      unpark(waitingReader);
+    }
+  }
+}
@@ -20,18 +20,22 @@
 package com.simiacryptus.notebook;
 
 import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.Util;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.File;
-import java.io.IOException;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class EditImageQuery extends HtmlQuery<BufferedImage> {
 
@@ -39,6 +43,12 @@ public class EditImageQuery extends HtmlQuery<BufferedImage> {
   private final int widthPx;
   @Nonnull
   private final String initUrl;
+  @Nonnull
+  private final File imageFile;
+  // Upload files written by this query's part handler; only these are trusted as paths in the files map
+  private final Set<String> uploads = ConcurrentHashMap.newKeySet();
+  @Nullable
+  private volatile BufferedImage decoded = null;
 
   public EditImageQuery(@Nonnull NotebookOutput log, @Nonnull BufferedImage image) {
     super(log);
@@ -48,9 +58,37 @@ public class EditImageQuery extends HtmlQuery<BufferedImage> {
     this.height1 = (heightPx + 100) + "px";
     this.height2 = (heightPx + 100) + "px";
     this.initUrl = "etc/" + this.rawId + "_init.png";
+    this.imageFile = new File(log.getRoot(), initUrl);
     save(log, image);
   }
 
+  @Nullable
+  @Override
+  public BufferedImage getValue() {
+    BufferedImage image = decoded;
+    if (null == image && imageFile.exists()) {
+      synchronized (this) {
+        image = decoded;
+        if (null == image) {
+          try {
+            image = ImageIO.read(imageFile);
+          } catch (IOException e) {
+            throw Util.throwException(e);
+          }
+          decoded = image;
+        }
+      }
+    }
+    return image;
+  }
+
+  @Nonnull
+  @Override
+  public HtmlQuery<BufferedImage> setValue(@Nullable BufferedImage value) {
+    if (null != value) save(log, value);
+    return this;
+  }
+
   @Nonnull
   @Override
   protected String getActiveHtml() {
@@ -72,10 +110,10 @@ public class EditImageQuery extends HtmlQuery<BufferedImage> {
   protected String getHeader() {
     try {
       final String jsInject = RefString.format("init('%s', '%s', %s, %s)", rawId, initUrl, widthPx, heightPx);
-      return "<style>\n" + IOUtils.toString(getClass().getClassLoader().getResource("paint.css"), "UTF-8")
-          + "\n</style>" + "<script>\n" + IOUtils.toString(getClass().getClassLoader().getResource("paint.js"), "UTF-8")
-          + "\n" + jsInject + "\n</script>";
-    } catch (IOException e) {
+      return "<link rel=\"stylesheet\" href=\"" + StaticAssets.INSTANCE.materialize(log.getRoot(), "paint.css") + "\" />"
+          + "<script src=\"" + StaticAssets.INSTANCE.materialize(log.getRoot(), "paint.js") + "\"></script>"
+          + "<script>\n" + jsInject + "\n</script>";
+    } catch (Throwable e) {
       logger.warn("Error loading javascript", e);
       return "";
     }
@@ -84,23 +122,75 @@ public class EditImageQuery extends HtmlQuery<BufferedImage> {
   @Nonnull
   public BufferedImage save(@Nonnull NotebookOutput log, @Nonnull BufferedImage image) {
     try {
-      ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-      ImageIO.write(image, "PNG", buffer);
-      FileUtils.writeByteArrayToFile(new File(log.getRoot(), initUrl), buffer.toByteArray());
+      imageFile.getParentFile().mkdirs();
+      ImageIO.write(image, "PNG", imageFile);
+      decoded = image;
     } catch (IOException e) {
       e.printStackTrace();
     }
     return image;
   }
 
-  @Nonnull
+  @Nullable
   @Override
-  public BufferedImage valueFromParams(Map<String, String> parms, @Nonnull Map<String, String> files) throws IOException {
+  protected MultipartStreamParser.PartHandler getPartHandler(@Nonnull Map<String, String> files) {
+    // A raw image/png body is streamed to a file of its own; anything else falls back to the buffered postData string
+    return (name, fileName, contentType) -> {
+      if (!"postData".equals(name) || null == contentType || !contentType.toLowerCase().startsWith("image/png")) return null;
+      imageFile.getParentFile().mkdirs();
+      // Created next to the image so the final move is atomic
+      File upload = File.createTempFile(rawId + "_", ".upload", imageFile.getParentFile());
+      String path = upload.getAbsolutePath();
+      uploads.add(path);
+      return new BufferedOutputStream(new FileOutputStream(upload)) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            files.put(name, path);
+          }
+        }
+      };
+    };
+  }
+
+  @Override
+  protected void releaseParts(@Nonnull Map<String, String> files) {
+    String path = files.get("postData");
+    if (null != path && uploads.remove(path)) new File(path).delete();
+  }
+
+  @Override
+  protected boolean submit(@Nonnull Map<String, String> parms, @Nonnull Map<String, String> files) throws IOException {
     String postData = files.get("postData");
-    String prefix = "data:image/png;base64,";
-    assert postData.startsWith(prefix);
-    postData = postData.substring(prefix.length());
-    return save(log, ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode(postData))));
+    if (null != postData && uploads.contains(postData)) {
+      File upload = new File(postData);
+      if (!isPng(upload)) throw new IOException("Upload is not a PNG image");
+      Files.move(upload.toPath(), imageFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } else {
+      String prefix = "data:image/png;base64,";
+      if (null == postData || !postData.startsWith(prefix)) return false;
+      // The encoded PNG is already what we store; only decode it if the value is asked for
+      FileUtils.writeByteArrayToFile(imageFile, Base64.getDecoder().decode(postData.substring(prefix.length())));
+    }
+    decoded = null;
+    return true;
+  }
+
+  @Nullable
+  @Override
+  public BufferedImage valueFromParams(Map<String, String> parms, @Nonnull Map<String, String> files) throws IOException {
+    return submit(parms, files) ? getValue() : null;
+  }
+
+  private static boolean isPng(@Nonnull File file) throws IOException {
+    byte[] signature = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    byte[] header = new byte[signature.length];
+    try (InputStream in = new FileInputStream(file)) {
+      if (IOUtils.read(in, header) != header.length) return false;
+    }
+    return Arrays.equals(signature, header);
   }
 
 }
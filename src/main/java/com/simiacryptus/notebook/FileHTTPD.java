@@ -20,6 +20,7 @@
 package com.simiacryptus.notebook;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.Closeable;
 import java.io.OutputStream;
 import java.util.function.Consumer;
@@ -29,9 +30,22 @@ public interface FileHTTPD {
   @Nonnull
   Closeable addGET(CharSequence path, Function<NanoHTTPD.IHTTPSession, NanoHTTPD.Response> value);
 
+  // Expensive routes render on request and are admitted against the dynamic limits; others are treated like static files
+  @Nonnull
+  default Closeable addGET(CharSequence path, Function<NanoHTTPD.IHTTPSession, NanoHTTPD.Response> value, boolean expensive) {
+    return addGET(path, value);
+  }
+
   @Nonnull
   Closeable addPOST(CharSequence path, Function<NanoHTTPD.IHTTPSession, NanoHTTPD.Response> value);
 
   @Nonnull
   Closeable addGET(final CharSequence path, final String mimeType, @Nonnull final Consumer<OutputStream> logic);
+
+  default int getHandlerCount() {
+    return 0;
+  }
+
+  default void setCacheControl(@Nonnull CharSequence path, @Nullable String cacheControl) {
+  }
 }
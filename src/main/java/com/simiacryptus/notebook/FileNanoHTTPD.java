@@ -19,7 +19,6 @@
 
 package com.simiacryptus.notebook;
 
-import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefString;
 import com.simiacryptus.util.Util;
@@ -27,28 +26,45 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.io.*;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URLConnection;
 import java.util.Comparator;
-import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public class FileNanoHTTPD extends NanoHTTPD implements FileHTTPD {
   static final Logger log = LoggerFactory.getLogger(FileNanoHTTPD.class);
 
-  public final Map<CharSequence, Function<IHTTPSession, Response>> getHandlers = new HashMap<>();
-  public final Map<CharSequence, Function<IHTTPSession, Response>> postHandlers = new HashMap<>();
-  protected final ExecutorService pool = Executors
-      .newCachedThreadPool(new ThreadFactoryBuilder().setDaemon(true).build());
+  public final Map<CharSequence, Function<IHTTPSession, Response>> getHandlers = new ConcurrentHashMap<>();
+  public final Map<CharSequence, Function<IHTTPSession, Response>> postHandlers = new ConcurrentHashMap<>();
+  protected final Map<String, String> cacheControl = new ConcurrentHashMap<>();
+  protected final ExecutorService pool = SharedNanoHTTPD.WORKER_POOL;
+  protected final Map<CharSequence, Semaphore> routeLimits = new ConcurrentHashMap<>();
+  protected final Set<String> expensiveRoutes = ConcurrentHashMap.newKeySet();
+  @Nonnull
+  protected AdmissionControl admission = AdmissionControl.GLOBAL;
+  protected final ServerMetrics metrics = new ServerMetrics();
   private final File root;
+  @Nullable
+  private SharedNanoHTTPD server = null;
+  @Nullable
+  private Closeable mountPoint = null;
+  private String mountPrefix = null;
 
   public FileNanoHTTPD(File root, final int port) {
     super(port);
     this.root = root;
+    setAsyncRunner(new ExecutorAsyncRunner(pool, AdmissionControl.MAX_CONNECTIONS));
   }
 
   @Nonnull
@@ -66,8 +82,10 @@ public class FileNanoHTTPD extends NanoHTTPD implements FileHTTPD {
         logic.accept(out);
         out.flush();
         final byte[] bytes = out.toByteArray();
-        return NanoHTTPD.newFixedLengthResponse(Response.Status.OK, mimeType, new ByteArrayInputStream(bytes),
+        Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.OK, mimeType, new ByteArrayInputStream(bytes),
             bytes.length);
+        response.setGzipCacheKey(GzipCache.key(bytes));
+        return response;
       } catch (@Nonnull final Throwable e) {
         log.warn("Error handling httprequest", e);
         throw Util.throwException(e);
@@ -78,15 +96,32 @@ public class FileNanoHTTPD extends NanoHTTPD implements FileHTTPD {
   @Nonnull
   @Override
   public Closeable addGET(final CharSequence path, final Function<IHTTPSession, Response> value) {
+    return addGET(path, value, false);
+  }
+
+  @Nonnull
+  @Override
+  public Closeable addGET(final CharSequence path, final Function<IHTTPSession, Response> value, final boolean expensive) {
     getHandlers.put(path, value);
-    return () -> getHandlers.remove(path, value);
+    if (expensive) expensiveRoutes.add(path.toString());
+    else expensiveRoutes.remove(path.toString());
+    return () -> {
+      // Generated routes come and go with their queries, so their limits and metrics go with them
+      if (getHandlers.remove(path, value)) {
+        expensiveRoutes.remove(path.toString());
+        routeLimits.remove(path.toString());
+        metrics.remove(routeName(path));
+      }
+    };
   }
 
   @Nonnull
   @Override
   public Closeable addPOST(final CharSequence path, final Function<IHTTPSession, Response> value) {
-    Function<IHTTPSession, Response> put = postHandlers.put(path, value);
-    return () -> postHandlers.remove(path, put);
+    postHandlers.put(path, value);
+    return () -> {
+      if (postHandlers.remove(path, value)) metrics.remove(routeName(path));
+    };
   }
 
   @Nonnull
@@ -94,17 +129,201 @@ public class FileNanoHTTPD extends NanoHTTPD implements FileHTTPD {
     return addGET(path, FileNanoHTTPD.handler(mimeType, logic));
   }
 
+  @Nonnull
+  public Closeable addGET(final CharSequence path, final String mimeType, @Nonnull final Consumer<OutputStream> logic, final boolean expensive) {
+    return addGET(path, FileNanoHTTPD.handler(mimeType, logic), expensive);
+  }
+
+  @Override
+  public int getHandlerCount() {
+    return getHandlers.size() + postHandlers.size();
+  }
+
+  @Override
+  public void setCacheControl(@Nonnull final CharSequence path, @Nullable final String cacheControl) {
+    if (null == cacheControl) this.cacheControl.remove(path.toString());
+    else this.cacheControl.put(path.toString(), cacheControl);
+  }
+
+  @Nonnull
+  public AdmissionControl getAdmission() {
+    return admission;
+  }
+
+  public void setAdmission(@Nonnull AdmissionControl admission) {
+    this.admission = admission;
+  }
+
+  @Nonnull
+  public ServerMetrics getMetrics() {
+    return metrics;
+  }
+
+  public void setRouteLimit(@Nonnull final CharSequence path, final int limit) {
+    routeLimits.put(path.toString(), new Semaphore(limit));
+  }
+
+  @Nonnull
+  protected Semaphore getRouteLimit(@Nonnull final CharSequence path) {
+    return routeLimits.computeIfAbsent(path.toString(), p -> new Semaphore(AdmissionControl.ROUTE_LIMIT));
+  }
+
+  @Nonnull
+  protected Response admit(@Nullable final CharSequence route, @Nonnull final Supplier<Response> fn) {
+    AdmissionControl.Ticket ticket = null == route ? admission.tryAcquireStatic() : admission.tryAcquireDynamic(getRouteLimit(route));
+    if (null == ticket) {
+      return AdmissionControl.unavailable(null == route ? "server busy" : "route busy");
+    }
+    final Response response;
+    try {
+      response = fn.get();
+    } catch (Throwable e) {
+      ticket.close();
+      throw Util.throwException(e);
+    }
+    // The permit covers streaming the body, not just building the response; event streams are bounded by their source
+    if (null == response || "text/event-stream".equals(response.getMimeType())) {
+      ticket.close();
+    } else {
+      onSent(response, (status, bytes) -> ticket.close());
+    }
+    return response;
+  }
+
+  @Nonnull
+  protected Response track(@Nonnull final String route, @Nonnull final Supplier<Response> fn) {
+    final long start = System.nanoTime();
+    final Response response;
+    try {
+      response = fn.get();
+    } catch (Throwable e) {
+      metrics.get(route).record(Response.Status.INTERNAL_ERROR.getRequestStatus(), 0, System.nanoTime() - start);
+      throw Util.throwException(e);
+    }
+    if (null != response) onSent(response, metrics.get(route).listener(start));
+    return response;
+  }
+
+  private static void onSent(@Nonnull final Response response, @Nonnull final Response.SendListener listener) {
+    final Response.SendListener prior = response.getSendListener();
+    if (null == prior) {
+      response.setSendListener(listener);
+    } else {
+      response.setSendListener((status, bytes) -> {
+        try {
+          prior.onSent(status, bytes);
+        } finally {
+          listener.onSent(status, bytes);
+        }
+      });
+    }
+  }
+
+  @Nonnull
+  private static String routeName(@Nonnull final CharSequence route) {
+    return route.length() == 0 ? "/" : route.toString();
+  }
+
+  public boolean isServing() {
+    return null != server ? server.current().isAlive() : isAlive();
+  }
+
+  @Nonnull
+  public URI getURI() {
+    if (null != server) return server.current().getURI(mountPrefix);
+    try {
+      return new URI(RefString.format("http://localhost:%d/", getListeningPort()));
+    } catch (URISyntaxException e) {
+      throw Util.throwException(e);
+    }
+  }
+
   @Nonnull
   public FileNanoHTTPD init() throws IOException {
     start(30000);
     return this;
   }
 
+  @Nonnull
+  public synchronized FileNanoHTTPD mount(@Nonnull SharedNanoHTTPD server, @Nonnull String prefix, String title) {
+    if (null != this.mountPoint) throw new IllegalStateException("Already mounted at " + mountPrefix);
+    this.mountPoint = server.mount(prefix, title, this);
+    this.mountPrefix = prefix;
+    this.server = server;
+    return this;
+  }
+
+  @Override
+  public void stop() {
+    synchronized (this) {
+      if (null != mountPoint) {
+        try {
+          mountPoint.close();
+        } catch (IOException e) {
+          log.warn("Error unmounting " + mountPrefix, e);
+        }
+        mountPoint = null;
+      }
+    }
+    super.stop();
+  }
+
+  @Nullable
+  public static String getMimeType(@Nonnull String fileName) {
+    String mimeType = URLConnection.guessContentTypeFromName(fileName);
+    if (null != mimeType) return mimeType;
+    String lowerCase = fileName.toLowerCase();
+    if (lowerCase.endsWith(".css")) return "text/css";
+    if (lowerCase.endsWith(".js")) return "text/javascript";
+    if (lowerCase.endsWith(".json")) return "application/json";
+    if (lowerCase.endsWith(".svg")) return "image/svg+xml";
+    if (lowerCase.endsWith(".md")) return "text/markdown";
+    return null;
+  }
+
+  @Nonnull
+  protected Response serveFile(@Nonnull final IHTTPSession session, @Nonnull final File file) {
+    return fileResponse(session, file, cacheControl.get(Util.stripPrefix(session.getUri(), "/")));
+  }
+
+  @Nonnull
+  public static Response fileResponse(@Nonnull final IHTTPSession session, @Nonnull final File file, @Nullable final String cacheControl) {
+    // A file still being written gets no validator, so a same-size rewrite within the same tick is never served stale
+    boolean stable = GzipCache.isStable(file);
+    String etag = stable ? GzipCache.etag(file) : null;
+    if (null != etag && etag.equals(session.getHeaders().get("if-none-match"))) {
+      Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_MODIFIED, null, (String) null);
+      response.addHeader("ETag", etag);
+      if (null != cacheControl) response.addHeader("Cache-Control", cacheControl);
+      return response;
+    }
+    try {
+      Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.OK, getMimeType(file.getName()),
+          new FileInputStream(file), file.length());
+      if (null != etag) response.addHeader("ETag", etag);
+      response.setGzipCacheKey(GzipCache.INSTANCE.key(file, stable));
+      if (null != cacheControl) response.addHeader("Cache-Control", cacheControl);
+      return response;
+    } catch (@Nonnull final FileNotFoundException e) {
+      throw Util.throwException(e);
+    }
+  }
+
   @Override
   public Response serve(@Nonnull final IHTTPSession session) {
     String requestPath = Util.stripPrefix(session.getUri(), "/");
     @Nonnull final File file = new File(root, requestPath);
-    if (session.getMethod() == Method.GET) {
+    final StaticAssets.Asset asset = session.getMethod() == Method.GET ? StaticAssets.INSTANCE.resolve(requestPath) : null;
+    if (session.getMethod() == Method.GET && requestPath.equals("metrics")) {
+      return NanoHTTPD.newFixedLengthResponse(Response.Status.OK, "text/plain; version=0.0.4", metrics.toPrometheus() +
+          "# HELP notebook_http_handlers Registered GET and POST handlers.\n" +
+          "# TYPE notebook_http_handlers gauge\n" +
+          "notebook_http_handlers " + getHandlerCount() + "\n");
+    } else if (session.getMethod() == Method.GET && requestPath.equals("metrics.json")) {
+      return NanoHTTPD.newFixedLengthResponse(Response.Status.OK, "application/json", metrics.toJsonString());
+    } else if (null != asset) {
+      return track(ServerMetrics.STATIC_ROUTE, () -> admit(null, () -> asset.toResponse(session)));
+    } else if (session.getMethod() == Method.GET) {
       Comparator<Map.Entry<CharSequence, Function<IHTTPSession, Response>>> objectComparator = Comparator
           .comparingInt(x -> {
             int temp_02_0001 = x.getKey().length();
@@ -121,6 +340,7 @@ public class FileNanoHTTPD extends NanoHTTPD implements FileHTTPD {
               return false;
             return requestPath.startsWith(prefix);
           }).sorted(objectComparator.reversed()).findFirst();
+      CharSequence route = temp_02_0005.map(Map.Entry::getKey).orElse(null);
       Optional<Function<IHTTPSession, Response>> handler = temp_02_0005.map(e -> {
         Function<NanoHTTPD.IHTTPSession, NanoHTTPD.Response> temp_02_0002 = e.getValue();
         RefUtil.freeRef(e);
@@ -129,23 +349,23 @@ public class FileNanoHTTPD extends NanoHTTPD implements FileHTTPD {
       RefUtil.freeRef(temp_02_0005);
       handler.orElse(null);
       if (handler.isPresent()) {
-        try {
-          return RefUtil.get(handler).apply(session);
-        } catch (Throwable e) {
-          log.warn("Error requesting " + session.getUri(), e);
-          throw Util.throwException(e);
-        }
+        // Only renders take the dynamic path; generated pages such as query frames are as cheap as static files
+        CharSequence admitted = expensiveRoutes.contains(route.toString()) ? route : null;
+        return track(routeName(route), () -> admit(admitted, () -> {
+          try {
+            return RefUtil.get(handler).apply(session);
+          } catch (Throwable e) {
+            log.warn("Error requesting " + session.getUri(), e);
+            throw Util.throwException(e);
+          }
+        }));
       } else if (file.exists() && file.isFile()) {
-        try {
-          return NanoHTTPD.newFixedLengthResponse(Response.Status.OK, null, new FileInputStream(file), file.length());
-        } catch (@Nonnull final FileNotFoundException e) {
-          throw Util.throwException(e);
-        }
+        return track(ServerMetrics.STATIC_ROUTE, () -> admit(null, () -> serveFile(session, file)));
       } else {
         log.warn(RefString.format("Not Found: %s\n\tCurrent Path: %s\n\t%s", requestPath, root.getAbsolutePath(),
             RefUtil.get(getHandlers.keySet().stream().map(handlerPath -> "Installed Handler: " + handlerPath)
                 .reduce((a, b) -> a + "\n\t" + b))));
-        return NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not Found");
+        return track(ServerMetrics.UNMATCHED_ROUTE, () -> NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not Found"));
       }
     } else if (session.getMethod() == Method.POST) {
       Optional<Map.Entry<CharSequence, Function<NanoHTTPD.IHTTPSession, NanoHTTPD.Response>>> temp_02_0006 = this.postHandlers
@@ -154,6 +374,7 @@ public class FileNanoHTTPD extends NanoHTTPD implements FileHTTPD {
             RefUtil.freeRef(e);
             return temp_02_0003;
           }).findAny();
+      CharSequence route = temp_02_0006.map(Map.Entry::getKey).orElse(null);
       Optional<Function<IHTTPSession, Response>> handler = temp_02_0006.map(e -> {
         Function<NanoHTTPD.IHTTPSession, NanoHTTPD.Response> temp_02_0004 = e.getValue();
         RefUtil.freeRef(e);
@@ -162,17 +383,20 @@ public class FileNanoHTTPD extends NanoHTTPD implements FileHTTPD {
       RefUtil.freeRef(temp_02_0006);
       handler.orElse(null);
       if (handler.isPresent()) {
-        try {
-          return RefUtil.get(handler).apply(session);
-        } catch (Throwable e) {
-          log.warn("Error requesting " + session.getUri(), e);
-          throw Util.throwException(e);
-        }
+        // Query inputs are cheap and the page does not retry them, so they bypass admission
+        return track(routeName(route), () -> {
+          try {
+            return RefUtil.get(handler).apply(session);
+          } catch (Throwable e) {
+            log.warn("Error requesting " + session.getUri(), e);
+            throw Util.throwException(e);
+          }
+        });
       } else {
         log.warn(RefString.format("Not Found: %s\n\tCurrent Path: %s\n\t%s", requestPath, root.getAbsolutePath(),
             RefUtil.get(this.getHandlers.keySet().stream().map(handlerPath -> "Installed Handler: " + handlerPath)
                 .reduce((a, b) -> a + "\n\t" + b))));
-        return NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not Found");
+        return track(ServerMetrics.UNMATCHED_ROUTE, () -> NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not Found"));
       }
     } else {
       return NanoHTTPD.newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, "test/plain", "Invalid Method");
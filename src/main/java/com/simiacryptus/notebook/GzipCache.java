@@ -0,0 +1,225 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.google.common.hash.Hashing;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+public class GzipCache {
+  static final Logger log = LoggerFactory.getLogger(GzipCache.class);
+
+  public static int LEVEL = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_GZIP_LEVEL", Integer.toString(Deflater.DEFAULT_COMPRESSION)));
+  public static long MAX_BYTES = Long.parseLong(RefSystem.getProperty("NOTEBOOK_GZIP_CACHE_BYTES", Long.toString(64L * 1024 * 1024)));
+  public static boolean PRECOMPRESS = Boolean.parseBoolean(RefSystem.getProperty("NOTEBOOK_GZIP_PRECOMPRESS", "false"));
+  public static long PRECOMPRESS_MIN_SIZE = 16 * 1024;
+  public static long RACY_MILLIS = Long.parseLong(RefSystem.getProperty("NOTEBOOK_GZIP_RACY_MILLIS", "2000"));
+  public static final GzipCache INSTANCE = new GzipCache(MAX_BYTES, LEVEL);
+  private static final int BUFFER_SIZE = 16 * 1024;
+  private static final int MAX_WRITTEN = 4096;
+  private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+  private final long maxBytes;
+  private final int level;
+  private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+  // Content keys of files precompressed as they were written, until a read links them to the file's own key
+  private final LinkedHashMap<String, String> written = new LinkedHashMap<String, String>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+      return size() > MAX_WRITTEN;
+    }
+  };
+  private final BlockingQueue<Deflater> deflaters = new ArrayBlockingQueue<>(Runtime.getRuntime().availableProcessors() * 2);
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private long totalBytes = 0;
+
+  public GzipCache(long maxBytes, int level) {
+    this.maxBytes = maxBytes;
+    this.level = level;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public synchronized long getTotalBytes() {
+    return totalBytes;
+  }
+
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  @Nonnull
+  public static String etag(@Nonnull File file) {
+    return "\"" + Long.toHexString(file.lastModified()) + "-" + Long.toHexString(file.length()) + "\"";
+  }
+
+  // mtime and size only identify content once the file has stopped changing within the timestamp resolution
+  public static boolean isStable(@Nonnull File file) {
+    return RefSystem.currentTimeMillis() - file.lastModified() > RACY_MILLIS;
+  }
+
+  @Nonnull
+  public static String key(@Nonnull File file) {
+    return file.getAbsolutePath() + ":" + etag(file);
+  }
+
+  @Nonnull
+  public static String key(@Nonnull byte[] content) {
+    return "content:" + Hashing.murmur3_128().hashBytes(content);
+  }
+
+  // A file inside the racy window, or one only known by content, is verified by hashing it before its entry is used
+  @Nullable
+  public String key(@Nonnull File file, boolean stable) {
+    String fileKey = stable ? key(file) : null;
+    String contentKey;
+    synchronized (this) {
+      if (null != fileKey && entries.containsKey(fileKey)) return fileKey;
+      contentKey = written.get(file.getAbsolutePath());
+    }
+    if (null == contentKey) return fileKey;
+    String actual;
+    try {
+      actual = key(FileUtils.readFileToByteArray(file));
+    } catch (IOException e) {
+      return fileKey;
+    }
+    if (!contentKey.equals(actual)) {
+      if (stable) forget(file, contentKey);
+      return fileKey;
+    }
+    if (!stable) return contentKey;
+    // Once stable, the file's mtime can only change with its content, so the entry moves to the file key
+    byte[] compressed = get(contentKey);
+    if (null != compressed) put(fileKey, compressed);
+    forget(file, contentKey);
+    return fileKey;
+  }
+
+  @Nullable
+  public synchronized byte[] get(@Nonnull String key) {
+    return entries.get(key);
+  }
+
+  public synchronized void put(@Nonnull String key, @Nonnull byte[] compressed) {
+    if (compressed.length > maxBytes / 4) return;
+    byte[] prior = entries.put(key, compressed);
+    if (null != prior) totalBytes -= prior.length;
+    totalBytes += compressed.length;
+    Iterator<Map.Entry<String, byte[]>> iterator = entries.entrySet().iterator();
+    while (totalBytes > maxBytes && iterator.hasNext()) {
+      totalBytes -= iterator.next().getValue().length;
+      iterator.remove();
+    }
+  }
+
+  @Nonnull
+  public byte[] get(@Nonnull String key, @Nonnull InputStream data) throws IOException {
+    byte[] compressed = get(key);
+    if (null == compressed) {
+      misses.increment();
+      compressed = compress(data);
+      put(key, compressed);
+    } else {
+      hits.increment();
+    }
+    return compressed;
+  }
+
+  @Nonnull
+  public byte[] compress(@Nonnull InputStream data) throws IOException {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    gzip(data, buffer);
+    return buffer.toByteArray();
+  }
+
+  public void gzip(@Nonnull InputStream data, @Nonnull OutputStream out) throws IOException {
+    Deflater deflater = deflaters.poll();
+    if (null == deflater) deflater = new Deflater(level, true);
+    try {
+      CRC32 crc = new CRC32();
+      out.write(GZIP_HEADER);
+      DeflaterOutputStream deflaterOutputStream = new DeflaterOutputStream(out, deflater, BUFFER_SIZE);
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int read;
+      while ((read = data.read(buffer)) > 0) {
+        crc.update(buffer, 0, read);
+        deflaterOutputStream.write(buffer, 0, read);
+      }
+      deflaterOutputStream.finish();
+      writeInt(out, (int) crc.getValue());
+      writeInt(out, (int) deflater.getBytesRead());
+    } finally {
+      deflater.reset();
+      if (!deflaters.offer(deflater)) deflater.end();
+    }
+  }
+
+  // A freshly written file is still inside the racy window, so its entry is keyed by content until a read confirms it
+  public void precompress(@Nonnull File file, @Nonnull byte[] content) {
+    if (!PRECOMPRESS || content.length < PRECOMPRESS_MIN_SIZE) return;
+    try {
+      String contentKey = key(content);
+      put(contentKey, compress(new ByteArrayInputStream(content)));
+      synchronized (this) {
+        written.put(file.getAbsolutePath(), contentKey);
+      }
+    } catch (IOException e) {
+      log.warn("Error precompressing " + file, e);
+    }
+  }
+
+  private synchronized void forget(@Nonnull File file, @Nonnull String contentKey) {
+    written.remove(file.getAbsolutePath(), contentKey);
+  }
+
+  private static void writeInt(@Nonnull OutputStream out, int value) throws IOException {
+    out.write(value & 0xff);
+    out.write((value >> 8) & 0xff);
+    out.write((value >> 16) & 0xff);
+    out.write((value >> 24) & 0xff);
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class HandlerRegistry implements Closeable {
+  private static final Logger logger = LoggerFactory.getLogger(HandlerRegistry.class);
+
+  private final Set<Closeable> live = ConcurrentHashMap.newKeySet();
+  private volatile boolean closed = false;
+
+  @Nonnull
+  public Closeable register(@Nonnull final Closeable handle) {
+    final AtomicBoolean released = new AtomicBoolean(false);
+    Closeable registration = new Closeable() {
+      @Override
+      public void close() throws IOException {
+        if (released.compareAndSet(false, true)) {
+          live.remove(this);
+          handle.close();
+        }
+      }
+    };
+    live.add(registration);
+    // Registering after close releases immediately rather than leaking past the owner
+    if (closed) release(registration);
+    return registration;
+  }
+
+  public int getLiveCount() {
+    return live.size();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    for (Closeable registration : live) {
+      release(registration);
+    }
+  }
+
+  private static void release(@Nonnull Closeable registration) {
+    try {
+      registration.close();
+    } catch (IOException e) {
+      logger.warn("Error releasing handler", e);
+    }
+  }
+}
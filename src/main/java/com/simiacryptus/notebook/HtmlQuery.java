@@ -20,6 +20,7 @@
 package com.simiacryptus.notebook;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.simiacryptus.ref.wrappers.RefString;
 import com.simiacryptus.util.IOUtil;
 import com.simiacryptus.util.Util;
@@ -34,22 +35,30 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
-public abstract class HtmlQuery<T> {
+public abstract class HtmlQuery<T> implements Closeable {
   protected static final Logger logger = LoggerFactory.getLogger(JsonQuery.class);
+  private static final ScheduledExecutorService TIMEOUTS = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+      .setDaemon(true).setNameFormat("HtmlQuery Timeout %d").build());
   protected final String rawId = UUID.randomUUID().toString();
   protected final String id = "input_" + rawId + ".html";
   @Nonnull
   protected final Closeable handler_get;
-  protected final Semaphore done = new Semaphore(0);
+  protected final CompletableFuture<Void> done = new CompletableFuture<>();
   @Nonnull
   protected final Closeable handler_post;
   @Nonnull
   final NotebookOutput log;
+  // Set after registration, since the hook can run on a concurrent write before the constructor returns
+  private final AtomicReference<Closeable> writeHook = new AtomicReference<>();
+  private final AtomicBoolean dirty = new AtomicBoolean(true);
   @Nonnull
   protected String height1 = "200px";
   @Nonnull
@@ -57,14 +66,13 @@ public abstract class HtmlQuery<T> {
   @Nonnull
   String width = "100%";
   @Nullable
-  private T value = null;
+  private volatile T value = null;
 
   public HtmlQuery(@Nonnull NotebookOutput log) {
     this.log = log;
-    this.handler_get = log.getHttpd().addGET(id, "text/html", out -> {
+    this.handler_get = log.getRegistry().register(log.getHttpd().addGET(id, "text/html", out -> {
       try {
-        if (done.tryAcquire()) {
-          done.release();
+        if (done.isDone()) {
           IOUtil.writeString(getDisplayHtml(), out);
         } else {
           IOUtil.writeString(getActiveHtml(), out);
@@ -72,21 +80,24 @@ public abstract class HtmlQuery<T> {
       } catch (JsonProcessingException e) {
         throw Util.throwException(e);
       }
-    });
-    this.handler_post = log.getHttpd().addPOST(id, request -> {
+    }));
+    this.handler_post = log.getRegistry().register(log.getHttpd().addPOST(id, request -> {
       String responseHtml;
       try {
         Map<String, String> parms = request.getParms();
         HashMap<String, String> files = new HashMap<>();
-        request.parseBody(files);
-        final T value = valueFromParams(parms, files);
-        if (value != null) {
-          setValue(value);
-          done.release();
-          responseHtml = getDisplayHtml();
-          FileUtils.write(new File(log.getRoot(), id), responseHtml, "UTF-8");
-        } else {
-          throw new RuntimeException("Submit var not found");
+        try {
+          request.parseBody(files, getPartHandler(files));
+          if (submit(parms, files)) {
+            responseHtml = getDisplayHtml();
+            FileUtils.write(new File(log.getRoot(), id), responseHtml, "UTF-8");
+            dirty.set(false);
+            done.complete(null);
+          } else {
+            throw new RuntimeException("Submit var not found");
+          }
+        } finally {
+          releaseParts(files);
         }
       } catch (IOException e) {
         throw Util.throwException(e);
@@ -94,14 +105,27 @@ public abstract class HtmlQuery<T> {
       byte[] bytes = responseHtml.getBytes();
       return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/html",
           new ByteArrayInputStream(bytes), bytes.length);
-    });
-    log.onWrite(() -> {
+    }));
+    this.writeHook.set(log.addWriteHook(() -> {
       try {
-        FileUtils.write(new File(log.getRoot(), id), getDisplayHtml(), "UTF-8");
+        writeSnapshot();
       } catch (IOException e) {
         e.printStackTrace();
       }
-    });
+    }));
+  }
+
+  protected void writeSnapshot() throws IOException {
+    if (dirty.getAndSet(false)) {
+      FileUtils.write(new File(log.getRoot(), id), getDisplayHtml(), "UTF-8");
+    }
+    // A completed query only changes through setValue, which writes its own snapshot
+    if (done.isDone()) removeWriteHook();
+  }
+
+  private void removeWriteHook() throws IOException {
+    Closeable hook = writeHook.getAndSet(null);
+    if (null != hook) hook.close();
   }
 
   @Nonnull
@@ -116,11 +140,37 @@ public abstract class HtmlQuery<T> {
 
   @Nonnull
   public HtmlQuery<T> setValue(@Nullable T value) {
-    if (null != value)
+    if (null != value && !value.equals(this.value)) {
       this.value = value;
+      dirty.set(true);
+      if (done.isDone()) {
+        try {
+          writeSnapshot();
+        } catch (IOException e) {
+          throw Util.throwException(e);
+        }
+      }
+    }
     return this;
   }
 
+  // Parts streamed by the handler are reported in files, the way NanoHTTPD reports the parts it stores itself
+  @Nullable
+  protected MultipartStreamParser.PartHandler getPartHandler(@Nonnull Map<String, String> files) {
+    return null;
+  }
+
+  // Called after every POST, accepted or not, so anything getPartHandler wrote can be cleaned up
+  protected void releaseParts(@Nonnull Map<String, String> files) {
+  }
+
+  protected boolean submit(@Nonnull Map<String, String> parms, @Nonnull Map<String, String> files) throws IOException {
+    final T value = valueFromParams(parms, files);
+    if (null == value) return false;
+    setValue(value);
+    return true;
+  }
+
   @javax.annotation.Nullable
   public abstract T valueFromParams(Map<String, String> parms, Map<String, String> files) throws IOException;
 
@@ -146,13 +196,30 @@ public abstract class HtmlQuery<T> {
     }
   }
 
+  @Nonnull
+  public CompletableFuture<T> getFuture() {
+    // Reading the value may decode it (EditImageQuery decodes its PNG), so that runs off the thread completing the query
+    return done.thenApplyAsync(v -> getValue());
+  }
+
+  public boolean isDone() {
+    return done.isDone();
+  }
+
+  @Nonnull
+  public HtmlQuery<T> completeAfter(long t, @Nonnull TimeUnit u) {
+    // Falls back to the current (default) value if nobody answers in time
+    ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> done.complete(null), t, u);
+    done.whenComplete((v, e) -> timeout.cancel(false));
+    return this;
+  }
+
   @Nullable
   public T get() {
     try {
-      done.acquire();
-      done.release();
+      done.get();
       return getValue();
-    } catch (InterruptedException e) {
+    } catch (InterruptedException | ExecutionException e) {
       throw Util.throwException(e);
     }
   }
@@ -160,21 +227,38 @@ public abstract class HtmlQuery<T> {
   @Nullable
   public T get(long t, @Nonnull TimeUnit u) {
     try {
-      if (done.tryAcquire(t, u)) {
-        done.release();
-        return getValue();
-      } else {
-        return getValue();
-      }
-    } catch (InterruptedException e) {
+      done.get(t, u);
+    } catch (TimeoutException e) {
+      // Unanswered queries yield their current value
+    } catch (InterruptedException | ExecutionException e) {
       throw Util.throwException(e);
     }
+    return getValue();
+  }
+
+  @Nonnull
+  public static <T> CompletableFuture<List<T>> allOf(@Nonnull final List<? extends HtmlQuery<T>> queries) {
+    return CompletableFuture.allOf(queries.stream().map(HtmlQuery::getFuture).toArray(CompletableFuture[]::new))
+        .thenApply(v -> queries.stream().map(HtmlQuery::getValue).collect(Collectors.toList()));
+  }
+
+  @Nonnull
+  public static <T> List<T> getAll(@Nonnull final List<? extends HtmlQuery<T>> queries, long t, @Nonnull TimeUnit u) {
+    long deadline = System.nanoTime() + u.toNanos(t);
+    for (HtmlQuery<T> query : queries) {
+      // All queries share one deadline rather than each getting the full timeout
+      query.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    }
+    return queries.stream().map(HtmlQuery::getValue).collect(Collectors.toList());
   }
 
   @Override
-  protected void finalize() throws Throwable {
+  public void close() throws IOException {
+    // Once unregistered, the last display html written to the report root is served as a static file
+    FileUtils.write(new File(log.getRoot(), id), getDisplayHtml(), "UTF-8");
+    dirty.set(false);
+    removeWriteHook();
     handler_get.close();
     handler_post.close();
-    super.finalize();
   }
 }
@@ -0,0 +1,404 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+public class HttpRequestParser {
+
+  public static final int BUFSIZE = 8192;
+  public static final int MAX_HEADERS = 128;
+  private static final NanoHTTPD.Method[] METHODS = NanoHTTPD.Method.values();
+
+  @Nonnull
+  protected final byte[] buffer = new byte[BUFSIZE];
+  protected final int[] headerOffsets = new int[MAX_HEADERS * 4];
+  protected int length;
+  protected int headerEnd;
+  protected int headerCount;
+  protected int methodStart;
+  protected int methodEnd;
+  protected int uriStart;
+  protected int uriEnd;
+  protected int queryStart;
+  protected int versionStart;
+  protected int versionEnd;
+
+  @Nonnull
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public int getHeaderEnd() {
+    return headerEnd;
+  }
+
+  public int getHeaderCount() {
+    return headerCount;
+  }
+
+  public void load(@Nonnull byte[] data, int length) {
+    RefSystem.arraycopy(data, 0, buffer, 0, length);
+    this.length = length;
+    this.headerEnd = findHeaderEnd(buffer, length);
+  }
+
+  public int read(@Nonnull InputStream inputStream) throws IOException {
+    length = 0;
+    headerEnd = 0;
+    int read = inputStream.read(buffer, 0, BUFSIZE);
+    if (read == -1) return -1;
+    while (read > 0) {
+      length += read;
+      headerEnd = findHeaderEnd(buffer, length);
+      if (headerEnd > 0 || length == BUFSIZE) {
+        break;
+      }
+      read = inputStream.read(buffer, length, BUFSIZE - length);
+    }
+    return length;
+  }
+
+  public void parse() throws NanoHTTPD.ResponseException {
+    int end = headerEnd > 0 ? headerEnd : length;
+    int lineEnd = lineEnd(0, end);
+    methodStart = skipSpaces(0, lineEnd);
+    methodEnd = token(methodStart, lineEnd);
+    if (methodStart == methodEnd) {
+      throw new NanoHTTPD.ResponseException(NanoHTTPD.Response.Status.BAD_REQUEST,
+          "BAD REQUEST: Syntax error. Usage: GET /example/file.html");
+    }
+    uriStart = skipSpaces(methodEnd, lineEnd);
+    uriEnd = token(uriStart, lineEnd);
+    if (uriStart == uriEnd) {
+      throw new NanoHTTPD.ResponseException(NanoHTTPD.Response.Status.BAD_REQUEST,
+          "BAD REQUEST: Missing URI. Usage: GET /example/file.html");
+    }
+    queryStart = -1;
+    for (int i = uriStart; i < uriEnd; i++) {
+      if (buffer[i] == '?') {
+        queryStart = i + 1;
+        break;
+      }
+    }
+    versionStart = skipSpaces(uriEnd, lineEnd);
+    versionEnd = token(versionStart, lineEnd);
+    headerCount = 0;
+    int lineStart = nextLine(lineEnd, end);
+    while (lineStart < end && headerCount < MAX_HEADERS) {
+      lineEnd = lineEnd(lineStart, end);
+      if (lineEnd == lineStart) break;
+      int colon = indexOf(':', lineStart, lineEnd);
+      if (colon >= 0) {
+        int offset = headerCount++ * 4;
+        headerOffsets[offset] = trimStart(lineStart, colon);
+        headerOffsets[offset + 1] = trimEnd(headerOffsets[offset], colon);
+        headerOffsets[offset + 2] = trimStart(colon + 1, lineEnd);
+        headerOffsets[offset + 3] = trimEnd(headerOffsets[offset + 2], lineEnd);
+      }
+      lineStart = nextLine(lineEnd, end);
+    }
+  }
+
+  @Nullable
+  public NanoHTTPD.Method getMethod() {
+    for (NanoHTTPD.Method method : METHODS) {
+      if (equalsIgnoreCase(method.name(), methodStart, methodEnd)) return method;
+    }
+    return null;
+  }
+
+  @Nonnull
+  public String getUri() {
+    int end = queryStart < 0 ? uriEnd : queryStart - 1;
+    for (int i = uriStart; i < end; i++) {
+      if (buffer[i] == '%' || buffer[i] == '+') {
+        return NanoHTTPD.decodePercent(new String(buffer, uriStart, end - uriStart, StandardCharsets.UTF_8));
+      }
+    }
+    return new String(buffer, uriStart, end - uriStart, StandardCharsets.ISO_8859_1);
+  }
+
+  @Nullable
+  public String getQueryString() {
+    if (queryStart < 0) return null;
+    return new String(buffer, queryStart, uriEnd - queryStart, StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  public String getProtocolVersion() {
+    if (versionStart == versionEnd) return "HTTP/1.1";
+    return new String(buffer, versionStart, versionEnd - versionStart, StandardCharsets.ISO_8859_1);
+  }
+
+  public boolean isHttp11() {
+    return versionStart == versionEnd || equalsIgnoreCase("HTTP/1.1", versionStart, versionEnd);
+  }
+
+  @Nullable
+  public String getHeader(@Nonnull String name) {
+    int index = indexOfHeader(name);
+    if (index < 0) return null;
+    int offset = index * 4;
+    return new String(buffer, headerOffsets[offset + 2], headerOffsets[offset + 3] - headerOffsets[offset + 2],
+        StandardCharsets.UTF_8);
+  }
+
+  public boolean headerContains(@Nonnull String name, @Nonnull String token) {
+    int index = indexOfHeader(name);
+    if (index < 0) return false;
+    int offset = index * 4;
+    int last = headerOffsets[offset + 3] - token.length();
+    for (int i = headerOffsets[offset + 2]; i <= last; i++) {
+      if (equalsIgnoreCase(token, i, i + token.length())) return true;
+    }
+    return false;
+  }
+
+  @Nonnull
+  public Map<String, String> headers() {
+    return new LazyMap() {
+      @Nonnull
+      @Override
+      protected String normalize(@Nonnull String key) {
+        return key.toLowerCase(Locale.US);
+      }
+
+      @Nullable
+      @Override
+      protected String lookup(@Nonnull String key) {
+        return getHeader(key);
+      }
+
+      @Override
+      protected void materialize(@Nonnull Map<String, String> map) {
+        for (int i = 0; i < headerCount; i++) {
+          int offset = i * 4;
+          map.put(new String(buffer, headerOffsets[offset], headerOffsets[offset + 1] - headerOffsets[offset],
+                  StandardCharsets.ISO_8859_1).toLowerCase(Locale.US),
+              new String(buffer, headerOffsets[offset + 2], headerOffsets[offset + 3] - headerOffsets[offset + 2],
+                  StandardCharsets.UTF_8));
+        }
+      }
+    };
+  }
+
+  @Nonnull
+  public Map<String, String> parms() {
+    return new LazyMap() {
+      @Override
+      protected void materialize(@Nonnull Map<String, String> map) {
+        if (queryStart < 0) return;
+        int start = queryStart;
+        while (start < uriEnd) {
+          int end = indexOf('&', start, uriEnd);
+          if (end < 0) end = uriEnd;
+          if (end > start) {
+            int sep = indexOf('=', start, end);
+            if (sep >= 0) {
+              map.put(decode(start, sep).trim(), decode(sep + 1, end));
+            } else {
+              map.put(decode(start, end).trim(), "");
+            }
+          }
+          start = end + 1;
+        }
+      }
+    };
+  }
+
+  protected int indexOfHeader(@Nonnull String name) {
+    for (int i = 0; i < headerCount; i++) {
+      int offset = i * 4;
+      if (equalsIgnoreCase(name, headerOffsets[offset], headerOffsets[offset + 1])) return i;
+    }
+    return -1;
+  }
+
+  @Nonnull
+  private String decode(int start, int end) {
+    String decoded = NanoHTTPD.decodePercent(new String(buffer, start, end - start, StandardCharsets.UTF_8));
+    return null == decoded ? "" : decoded;
+  }
+
+  private boolean equalsIgnoreCase(@Nonnull String value, int start, int end) {
+    if (end - start != value.length()) return false;
+    for (int i = start; i < end; i++) {
+      int a = buffer[i] & 0xff;
+      int b = value.charAt(i - start);
+      if (a != b && toLower(a) != toLower(b)) return false;
+    }
+    return true;
+  }
+
+  private static int toLower(int c) {
+    return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+  }
+
+  private int indexOf(char c, int start, int end) {
+    for (int i = start; i < end; i++) {
+      if (buffer[i] == c) return i;
+    }
+    return -1;
+  }
+
+  private int lineEnd(int start, int end) {
+    int i = start;
+    while (i < end && buffer[i] != '\n') i++;
+    return i > start && buffer[i - 1] == '\r' ? i - 1 : i;
+  }
+
+  private int nextLine(int lineEnd, int end) {
+    int i = lineEnd;
+    while (i < end && buffer[i] != '\n') i++;
+    return i + 1;
+  }
+
+  private int skipSpaces(int start, int end) {
+    while (start < end && isSpace(buffer[start])) start++;
+    return start;
+  }
+
+  private int token(int start, int end) {
+    while (start < end && !isSpace(buffer[start])) start++;
+    return start;
+  }
+
+  private int trimStart(int start, int end) {
+    return skipSpaces(start, end);
+  }
+
+  private int trimEnd(int start, int end) {
+    while (end > start && isSpace(buffer[end - 1])) end--;
+    return end;
+  }
+
+  private static boolean isSpace(byte b) {
+    return b == ' ' || b == '\t' || b == '\r' || b == '\f';
+  }
+
+  public static int findHeaderEnd(@Nonnull final byte[] buf, int rlen) {
+    return findHeaderEnd(buf, 0, rlen);
+  }
+
+  public static int findHeaderEnd(@Nonnull final byte[] buf, int offset, int rlen) {
+    int splitbyte = offset;
+    while (splitbyte + 1 < rlen) {
+      if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && splitbyte + 3 < rlen && buf[splitbyte + 2] == '\r'
+          && buf[splitbyte + 3] == '\n') {
+        return splitbyte + 4;
+      }
+      if (buf[splitbyte] == '\n' && buf[splitbyte + 1] == '\n') {
+        return splitbyte + 2;
+      }
+      splitbyte++;
+    }
+    return 0;
+  }
+
+  protected abstract static class LazyMap extends AbstractMap<String, String> {
+    @Nonnull
+    private final HashMap<String, String> overlay = new HashMap<>();
+    @Nullable
+    private HashMap<String, String> map = null;
+
+    @Nonnull
+    protected final HashMap<String, String> map() {
+      if (null == map) {
+        map = new HashMap<>();
+        materialize(map);
+        map.putAll(overlay);
+        overlay.clear();
+      }
+      return map;
+    }
+
+    protected abstract void materialize(@Nonnull Map<String, String> map);
+
+    // Keys are normalized the same way before and after materialization, so lookups agree in both states
+    @Nonnull
+    protected String normalize(@Nonnull String key) {
+      return key;
+    }
+
+    @Nullable
+    protected String lookup(@Nonnull String key) {
+      return map().get(key);
+    }
+
+    @Override
+    public String get(Object key) {
+      if (!(key instanceof String)) return map().get(key);
+      key = normalize((String) key);
+      if (null != map) return map.get(key);
+      if (overlay.containsKey(key)) return overlay.get(key);
+      return lookup((String) key);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+      if (!(key instanceof String)) return map().containsKey(key);
+      key = normalize((String) key);
+      if (null != map) return map.containsKey(key);
+      return overlay.containsKey(key) || null != lookup((String) key);
+    }
+
+    @Override
+    public String put(String key, String value) {
+      key = normalize(key);
+      if (null != map) return map.put(key, value);
+      String prior = get(key);
+      if (null != map) {
+        // The lookup materialized the map
+        map.put(key, value);
+      } else {
+        overlay.put(key, value);
+      }
+      return prior;
+    }
+
+    @Override
+    public String remove(Object key) {
+      return map().remove(key instanceof String ? normalize((String) key) : key);
+    }
+
+    @Override
+    public void clear() {
+      map().clear();
+    }
+
+    @Nonnull
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+      return map().entrySet();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int LINEAR_LIMIT = SUB_BUCKETS * 2;
+  private static final int MAX_EXPONENT = 40;
+  private static final int BUCKETS = LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong max = new AtomicLong();
+
+  static int index(long value) {
+    if (value < LINEAR_LIMIT) return (int) Math.max(0, value);
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    if (exponent >= MAX_EXPONENT) return BUCKETS - 1;
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long upperBound(int index) {
+    if (index < LINEAR_LIMIT) return index + 1;
+    int exponent = (index - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+    int subBucket = (index - LINEAR_LIMIT) % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  public void record(long micros) {
+    counts.incrementAndGet(index(micros));
+    count.increment();
+    sum.add(micros);
+    long prior = max.get();
+    while (micros > prior && !max.compareAndSet(prior, micros)) {
+      prior = max.get();
+    }
+  }
+
+  @Nonnull
+  public Snapshot snapshot() {
+    long[] values = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      values[i] = counts.get(i);
+      total += values[i];
+    }
+    return new Snapshot(values, total, sum.sum(), max.get());
+  }
+
+  public static final class Snapshot {
+    private final long[] counts;
+    private final long count;
+    private final long sum;
+    private final long max;
+
+    private Snapshot(long[] counts, long count, long sum, long max) {
+      this.counts = counts;
+      this.count = count;
+      this.sum = sum;
+      this.max = max;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getSumMicros() {
+      return sum;
+    }
+
+    public long getMaxMicros() {
+      return max;
+    }
+
+    public double getMeanMicros() {
+      return count == 0 ? 0 : (double) sum / count;
+    }
+
+    public long percentileMicros(double percentile) {
+      if (count == 0) return 0;
+      long rank = (long) Math.ceil(percentile / 100.0 * count);
+      long seen = 0;
+      for (int i = 0; i < counts.length; i++) {
+        seen += counts[i];
+        if (seen >= Math.max(1, rank)) return Math.min(upperBound(i), max);
+      }
+      return max;
+    }
+
+    public long countAtOrBelow(long micros) {
+      long total = 0;
+      for (int i = 0; i < counts.length && upperBound(i) <= micros; i++) {
+        total += counts[i];
+      }
+      return total;
+    }
+  }
+}
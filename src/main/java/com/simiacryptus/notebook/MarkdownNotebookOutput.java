@@ -19,6 +19,7 @@
 
 package com.simiacryptus.notebook;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
@@ -30,6 +31,7 @@ import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.*;
 import com.simiacryptus.util.CodeUtil;
 import com.simiacryptus.util.JsonUtil;
+import com.simiacryptus.util.ParallelZipWriter;
 import com.simiacryptus.util.ReportingUtil;
 import com.simiacryptus.util.Util;
 import com.simiacryptus.util.test.SysOutInterceptor;
@@ -47,6 +49,7 @@ import com.vladsch.flexmark.util.data.DataSet;
 import com.vladsch.flexmark.util.data.MutableDataSet;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.text.StringEscapeUtils;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -59,11 +62,15 @@ import java.awt.image.BufferedImage;
 import java.io.*;
 import java.lang.management.ManagementFactory;
 import java.net.URI;
-import java.net.URISyntaxException;
 import java.net.URLEncoder;
 import java.nio.charset.Charset;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.function.Predicate;
@@ -79,6 +86,40 @@ public class MarkdownNotebookOutput implements NotebookOutput {
   @Nonnull
   public static RefMap<String, Object> uploadCache = new RefHashMap<>();
   public static int MAX_OUTPUT = 1024 * 8;
+  public static boolean SHARED_HTTPD = Boolean.parseBoolean(RefSystem.getProperty("NOTEBOOK_SHARED_HTTPD", "true"));
+  public static boolean LIVE_EVENTS = Boolean.parseBoolean(RefSystem.getProperty("NOTEBOOK_LIVE_EVENTS", "true"));
+  public static long LIVE_TAIL_MILLIS = Long.parseLong(RefSystem.getProperty("NOTEBOOK_LIVE_TAIL_MILLIS", "250"));
+  private static final ScheduledExecutorService liveScheduler = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("notebook-live-%d").build());
+  private static final String LIVE_SCRIPT = "<script>\n" +
+      "(function () {\n" +
+      "  var content = document.getElementById('notebook-content');\n" +
+      "  var tail = document.getElementById('notebook-tail');\n" +
+      "  if (!window.EventSource || !content || !tail || location.protocol.indexOf('http') !== 0) return;\n" +
+      "  var source = new EventSource(encodeURIComponent(content.getAttribute('data-events')) + '?from=' + content.getAttribute('data-blocks'));\n" +
+      "  function render(element) {\n" +
+      "    try { if (window.Prism) Prism.highlightAllUnder(element); } catch (e) {}\n" +
+      "    try { if (window.mermaid) mermaid.init(undefined, element.querySelectorAll('.mermaid')); } catch (e) {}\n" +
+      "    try { if (window.renderMathInElement) renderMathInElement(element); } catch (e) {}\n" +
+      "  }\n" +
+      "  source.addEventListener('block', function (e) {\n" +
+      "    var block = document.createElement('div');\n" +
+      "    block.innerHTML = e.data;\n" +
+      "    content.insertBefore(block, tail);\n" +
+      "    tail.innerHTML = '';\n" +
+      "    render(block);\n" +
+      "  });\n" +
+      "  source.addEventListener('tail', function (e) {\n" +
+      "    tail.innerHTML = e.data;\n" +
+      "    render(tail);\n" +
+      "  });\n" +
+      "  source.addEventListener('toc', function (e) {\n" +
+      "    var toc = document.getElementById('notebook-toc');\n" +
+      "    if (toc) toc.innerHTML = e.data;\n" +
+      "  });\n" +
+      "  source.addEventListener('close', function () { source.close(); });\n" +
+      "})();\n" +
+      "</script>";
   private static int excerptNumber = 0;
   private static int imageNumber = 0;
   @Nonnull
@@ -90,9 +131,11 @@ public class MarkdownNotebookOutput implements NotebookOutput {
   private final Map<CharSequence, JsonElement> metadata = new HashMap<>();
   @Nullable
   private final FileNanoHTTPD httpd;
-  private final ArrayList<Runnable> onWriteHandlers = new ArrayList<>();
+  private final List<Runnable> onWriteHandlers = new CopyOnWriteArrayList<>();
   private final String fileName;
   private final HashSet<String> headers = new HashSet<>();
+  private final AtomicLong version = new AtomicLong();
+  private final HandlerRegistry registry = new HandlerRegistry();
   @Nonnull
   public List<CharSequence> toc = new ArrayList<>();
   int anchor = 0;
@@ -105,6 +148,20 @@ public class MarkdownNotebookOutput implements NotebookOutput {
   private boolean enablePdf = false;
   private boolean ghPage = false;
   private File metadataLocation = null;
+  @Nullable
+  private volatile NotebookEventSource events = null;
+  private int publishedTocSize = 0;
+  private int liveCommitted = 0;
+  private boolean liveFenceOpen = false;
+  private boolean liveClosed = false;
+  private boolean liveTailScheduled = false;
+  private long liveTailPublished = 0;
+  @Nullable
+  private Parser liveParser = null;
+  @Nullable
+  private HtmlRenderer liveRenderer = null;
+  private long renderedVersion = -1;
+  private volatile boolean closed = false;
 
   public MarkdownNotebookOutput(@Nonnull final File reportFile, boolean browse) {
     this(reportFile, browse, reportFile.getName());
@@ -142,7 +199,7 @@ public class MarkdownNotebookOutput implements NotebookOutput {
         } catch (IOException e) {
           throw Util.throwException(e);
         }
-      });
+      }, true);
     if (null != httpd)
       httpd.addGET("pdf", "application/pdf", out -> {
         try {
@@ -153,7 +210,7 @@ public class MarkdownNotebookOutput implements NotebookOutput {
         } catch (IOException e) {
           throw Util.throwException(e);
         }
-      });
+      }, true);
     if (null != httpd)
       httpd.addGET("shutdown", "text/plain", out -> {
         try (PrintStream printStream = new PrintStream(out)) {
@@ -164,10 +221,14 @@ public class MarkdownNotebookOutput implements NotebookOutput {
         logger.warn("Exiting notebook", new RuntimeException("Stack Trace"));
         RefSystem.exit(0);
       });
-    logger.info(RefString.format("Serving %s from %s at http://localhost:%d", getDisplayName(), this.root.getAbsoluteFile(), httpPort));
     if (null != httpd) {
       try {
-        httpd.init();
+        if (SHARED_HTTPD) {
+          httpd.mount(SharedNanoHTTPD.getInstance(), getId(), getDisplayName());
+        } else {
+          httpd.init();
+        }
+        logger.info(RefString.format("Serving %s from %s at %s", getDisplayName(), this.root.getAbsoluteFile(), httpd.getURI()));
       } catch (Throwable e) {
         logger.warn("Error starting web server", e);
         httpd = null;
@@ -178,11 +239,11 @@ public class MarkdownNotebookOutput implements NotebookOutput {
       if (null != httpd)
         new Thread(() -> {
           try {
-            while (!this.httpd.isAlive())
+            while (!this.httpd.isServing())
               Thread.sleep(100);
             if (ReportingUtil.AUTO_BROWSE_LIVE)
-              ReportingUtil.browse(new URI(RefString.format("http://localhost:%d", httpPort)));
-          } catch (@Nonnull InterruptedException | IOException | URISyntaxException e) {
+              ReportingUtil.browse(this.httpd.getURI());
+          } catch (@Nonnull InterruptedException | IOException e) {
             e.printStackTrace();
           }
         }).start();
@@ -219,6 +280,7 @@ public class MarkdownNotebookOutput implements NotebookOutput {
   public void setDisplayName(@Nonnull String name) {
     setMetadata("display_name", name);
     this.displayName = name;
+    version.incrementAndGet();
   }
 
   public String getFileName() {
@@ -336,9 +398,8 @@ public class MarkdownNotebookOutput implements NotebookOutput {
     File zipFile = new File(root, baseName + ".zip");
     logger.info(RefString.format("Archiving %s to %s", root.getAbsolutePath(), zipFile.getAbsolutePath()));
     try (@Nonnull
-         ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile))) {
-      zipArchive(root, root, out,
-          file -> !file.getName().equals(baseName + ".zip") && !file.getName().endsWith(".pdf"));
+         ParallelZipWriter zip = new ParallelZipWriter(zipFile)) {
+      zip.addTree(root, file -> !file.getName().equals(baseName + ".zip") && !file.getName().endsWith(".pdf"));
     }
     return zipFile;
   }
@@ -356,7 +417,9 @@ public class MarkdownNotebookOutput implements NotebookOutput {
           relativeFile = relativeFile.substring(1);
         try {
           out.putNextEntry(new ZipEntry(relativeFile));
-          IOUtils.copy(new FileInputStream(file), out);
+          try (InputStream in = new FileInputStream(file)) {
+            IOUtils.copy(in, out);
+          }
         } catch (IOException e) {
           throw Util.throwException(e);
         }
@@ -367,6 +430,7 @@ public class MarkdownNotebookOutput implements NotebookOutput {
   @Override
   public void addHeaderHtml(String html) {
     headers.add(html);
+    version.incrementAndGet();
   }
 
   @Nonnull
@@ -381,7 +445,10 @@ public class MarkdownNotebookOutput implements NotebookOutput {
     try {
       primaryOut.close();
       File root = getRoot();
+      closeLive();
       write();
+      closed = true;
+      registry.close();
       if (isEnableZip())
         writeZip(root, getFileName());
       onComplete.stream().forEach(fn -> {
@@ -446,9 +513,16 @@ public class MarkdownNotebookOutput implements NotebookOutput {
     onWriteHandlers.add(fn);
   }
 
+  @Nonnull
   @Override
-  public void write() throws IOException {
-    DataSet options = new MutableDataSet()
+  public Closeable addWriteHook(Runnable fn) {
+    onWriteHandlers.add(fn);
+    return () -> onWriteHandlers.remove(fn);
+  }
+
+  @Nonnull
+  protected DataSet getMarkdownOptions() {
+    return new MutableDataSet()
         .set(TablesExtension.COLUMN_SPANS, false)
         .set(TablesExtension.APPEND_MISSING_COLUMNS, true)
         .set(TablesExtension.DISCARD_EXTRA_COLUMNS, true)
@@ -463,6 +537,36 @@ public class MarkdownNotebookOutput implements NotebookOutput {
             AnchorLinkExtension.create()
         ))
         .toImmutable();
+  }
+
+  @Nonnull
+  @Override
+  public HandlerRegistry getRegistry() {
+    return registry;
+  }
+
+  public long getVersion() {
+    return version.get();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  @Nonnull
+  public synchronized File render() throws IOException {
+    long current = version.get();
+    File htmlFile = getReportFile("html");
+    if (current != renderedVersion || !htmlFile.exists()) {
+      write();
+      renderedVersion = current;
+    }
+    return htmlFile;
+  }
+
+  @Override
+  public void write() throws IOException {
+    DataSet options = getMarkdownOptions();
     JsonObject metadata = getMetadata();
     if (!metadata.keySet().isEmpty()) {
       Gson gson = new GsonBuilder().setPrettyPrinting().create();
@@ -511,8 +615,12 @@ public class MarkdownNotebookOutput implements NotebookOutput {
                      final CharSequence caption) {
     try {
       if (null != data) {
-        IOUtils.write(data, new FileOutputStream(new File(getResourceDir(), fileName.toString())),
-            Charset.forName("UTF-8"));
+        File file = new File(getResourceDir(), fileName.toString());
+        byte[] bytes = data.toString().getBytes(Charset.forName("UTF-8"));
+        try (FileOutputStream out = new FileOutputStream(file)) {
+          IOUtils.write(bytes, out);
+        }
+        if (!(getHttpd() instanceof NullHTTPD)) GzipCache.INSTANCE.precompress(file, bytes);
       }
     } catch (@Nonnull final IOException e) {
       throw Util.throwException(e);
@@ -806,7 +914,16 @@ public class MarkdownNotebookOutput implements NotebookOutput {
   @Override
   public void out(@Nonnull final CharSequence fmt, final Object... args) {
     @Nonnull final String msg = format(fmt, args);
-    markdownData.add(msg);
+    NotebookEventSource events = this.events;
+    if (null != events) {
+      synchronized (events) {
+        markdownData.add(msg);
+        publishLive(events, markdownData.size() - 1);
+      }
+    } else {
+      markdownData.add(msg);
+    }
+    version.incrementAndGet();
     primaryOut.println(msg);
     logger.info(msg);
   }
@@ -888,16 +1005,18 @@ public class MarkdownNotebookOutput implements NotebookOutput {
       subreport.setMaxImageSize(getMaxImageSize());
       try {
         this.p(this.link(subreport.getReportFile("html"), "Subreport: " + displayName));
-        getHttpd().addGET(subreport.getFileName() + ".html", "text/html", out -> {
+        // The handler lives as long as the subreport; afterwards the final file is served as a static file
+        subreport.getRegistry().register(getHttpd().addGET(subreport.getFileName() + ".html", session -> {
+          if (subreport.isClosed()) {
+            // A closed subreport was written for the last time on close; names can be reused, so it is still revalidated
+            return FileNanoHTTPD.fileResponse(session, subreport.getReportFile("html"), "no-cache");
+          }
           try {
-            subreport.write();
-            try (FileInputStream input = new FileInputStream(subreport.getReportFile("html"))) {
-              IOUtils.copy(input, out);
-            }
+            return FileNanoHTTPD.fileResponse(session, subreport.render(), "no-cache");
           } catch (IOException e) {
             throw Util.throwException(e);
           }
-        });
+        }, true));
         try {
           return fn.apply(subreport);
         } catch (Throwable e) {
@@ -933,22 +1052,47 @@ public class MarkdownNotebookOutput implements NotebookOutput {
         .indentSize(2)
         .softBreak("\n")
         .build();
+    NotebookEventSource events = getEvents();
+    List<CharSequence> blocks;
+    List<CharSequence> tocSnapshot;
+    int committed;
+    if (null != events) {
+      synchronized (events) {
+        blocks = new ArrayList<>(markdownData);
+        tocSnapshot = new ArrayList<>(toc);
+        committed = liveCommitted;
+      }
+    } else {
+      committed = -1;
+      blocks = new ArrayList<>(markdownData);
+      tocSnapshot = new ArrayList<>(toc);
+    }
     String txt;
     if (true) {
       txt = String.format("%s\n\n%s",
-          toString(toc),
-          toString(markdownData));
+          toString(tocSnapshot),
+          toString(blocks));
     } else {
       txt = String.format("???+ info \"%s\"\n    %s\n\n%s",
           getDisplayName(),
-          toString(toc).replaceAll("\n", "\n    "),
-          toString(markdownData));
+          toString(tocSnapshot).replaceAll("\n", "\n    "),
+          toString(blocks));
     }
     FileUtils.write(getReportFile("md"), txt, "UTF-8");
     File htmlFile = getReportFile("html");
-    FileUtils.write(new File(getRoot(), "admonition.css"), AdmonitionExtension.getDefaultCSS(), "UTF-8");
-    FileUtils.write(new File(getRoot(), "admonition.js"), AdmonitionExtension.getDefaultScript(), "UTF-8");
-    String bodyInnerHtml = renderer.render(parser.parse(txt));
+    String admonitionCss = StaticAssets.INSTANCE.materialize(getRoot(), "admonition.css");
+    String admonitionJs = StaticAssets.INSTANCE.materialize(getRoot(), "admonition.js");
+    // The table of contents and the content are rendered separately so live updates can replace or extend each
+    String bodyInnerHtml = "<div id=\"notebook-toc\">" + renderer.render(parser.parse(toString(tocSnapshot))) + "</div>\n";
+    if (null != events) {
+      // Committed blocks are only ever appended to, while the open tail is replaced whole on every update
+      bodyInnerHtml += RefString.format("<div id=\"notebook-content\" data-blocks=\"%d\" data-events=\"%s\">", committed,
+          StringEscapeUtils.escapeHtml4(getFileName() + ".events")) +
+          renderer.render(parser.parse(toString(blocks.subList(0, committed)))) +
+          "<div id=\"notebook-tail\">" + renderer.render(parser.parse(toString(blocks.subList(committed, blocks.size())))) + "</div></div>";
+    } else {
+      bodyInnerHtml += "<div id=\"notebook-content\">" + renderer.render(parser.parse(toString(blocks))) + "</div>";
+    }
     String headerInnerHtml = "<title>" + getDisplayName() + "</title>" +
         // Mermaid:
         "<script src=\"https://cdn.jsdelivr.net/npm/mermaid@8.4.0/dist/mermaid.min.js\"></script>\n" +
@@ -960,7 +1104,7 @@ public class MarkdownNotebookOutput implements NotebookOutput {
         // Prism:
         "<link href=\"https://cdnjs.cloudflare.com/ajax/libs/prism/1.19.0/themes/prism.min.css\" rel=\"stylesheet\" />\n" +
         // Admonition:
-        "<link href=\"admonition.css\" rel=\"stylesheet\" />\n" +
+        "<link href=\"" + admonitionCss + "\" rel=\"stylesheet\" />\n" +
         "" + headers.stream().reduce((a, b) -> a + "\n" + b).orElse("");
     String bodyPrefix = "" +
         // Prism:
@@ -969,14 +1113,150 @@ public class MarkdownNotebookOutput implements NotebookOutput {
         "";
     String bodySuffix = "\n" +
         // Admonition:
-        "<script src=\"admonition.js\"></script>" +
+        "<script src=\"" + admonitionJs + "\"></script>" +
+        // Live updates:
+        (null != events ? LIVE_SCRIPT : "") +
         "";
     bodyInnerHtml = "<html><head>" + headerInnerHtml + "</head><body>" + bodyPrefix + bodyInnerHtml + bodySuffix + "</body></html>";
+    byte[] htmlBytes = bodyInnerHtml.getBytes(Charset.forName("UTF-8"));
     try (FileOutputStream out = new FileOutputStream(htmlFile)) {
-      IOUtils.write(bodyInnerHtml, out, Charset.forName("UTF-8"));
+      IOUtils.write(htmlBytes, out);
     }
+    if (!(getHttpd() instanceof NullHTTPD)) GzipCache.INSTANCE.precompress(htmlFile, htmlBytes);
     logger.info("Wrote " + htmlFile); //     log.info("Wrote " + htmlFile); //
     return htmlFile;
   }
 
+  @Nullable
+  private synchronized NotebookEventSource getEvents() {
+    // The final write happens after the live view closed, so the archived page carries no live script
+    if (liveClosed) return null;
+    if (null == events && LIVE_EVENTS && !(getHttpd() instanceof NullHTTPD)) {
+      NotebookEventSource events = new NotebookEventSource();
+      liveCommitted = markdownData.size();
+      for (CharSequence block : markdownData) {
+        if (isFenceToggle(block)) liveFenceOpen = !liveFenceOpen;
+      }
+      registry.register(getHttpd().addGET(getFileName() + ".events", session -> {
+        String from = session.getHeaders().get("last-event-id");
+        if (null == from) from = session.getParms().get("from");
+        int start;
+        try {
+          start = null == from ? 0 : Math.max(0, Integer.parseInt(from.trim()));
+        } catch (NumberFormatException e) {
+          start = 0;
+        }
+        InputStream stream;
+        synchronized (events) {
+          start = Math.min(start, liveCommitted);
+          List<byte[]> backlog = new ArrayList<>();
+          if (start < markdownData.size()) {
+            backlog.add(NotebookEventSource.format("toc", null, renderLive(toString(toc))));
+          }
+          if (start < liveCommitted) {
+            backlog.add(NotebookEventSource.format("block", Integer.toString(liveCommitted),
+                renderLive(toString(markdownData.subList(start, liveCommitted)))));
+          }
+          backlog.add(NotebookEventSource.format("tail", null,
+              renderLive(toString(markdownData.subList(liveCommitted, markdownData.size())))));
+          stream = events.subscribe(backlog);
+        }
+        NanoHTTPD.Response response = NanoHTTPD.newChunkedResponse(NanoHTTPD.Response.Status.OK, "text/event-stream", stream);
+        response.addHeader("Cache-Control", "no-cache");
+        return response;
+      }));
+      this.events = events;
+    }
+    return events;
+  }
+
+  private void publishLive(@Nonnull NotebookEventSource events, int index) {
+    CharSequence block = markdownData.get(index);
+    // A single out() call is often only part of a markdown block (eval writes a fence in three calls), so the
+    // open tail is committed only where the next call starts a new block outside any fence, table or indented body
+    if (index > liveCommitted && !liveFenceOpen && !isContinuation(block)) {
+      commitLive(events, index);
+    }
+    if (isFenceToggle(block)) liveFenceOpen = !liveFenceOpen;
+    if (!events.hasSubscribers() || liveTailScheduled) return;
+    // Each tail update re-renders the whole open block, so a burst of writes is coalesced into one update per
+    // interval; the trailing update always carries the latest tail
+    long delay = liveTailPublished + LIVE_TAIL_MILLIS - System.currentTimeMillis();
+    if (delay <= 0) {
+      publishTail(events);
+    } else {
+      liveTailScheduled = true;
+      liveScheduler.schedule(() -> {
+        synchronized (events) {
+          liveTailScheduled = false;
+          if (!events.isClosed()) publishTail(events);
+        }
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private void publishTail(@Nonnull NotebookEventSource events) {
+    liveTailPublished = System.currentTimeMillis();
+    if (!events.hasSubscribers()) return;
+    try {
+      if (toc.size() != publishedTocSize) {
+        publishedTocSize = toc.size();
+        events.publish("toc", null, renderLive(toString(toc)));
+      }
+      events.publish("tail", null, renderLive(toString(markdownData.subList(liveCommitted, markdownData.size()))));
+    } catch (Throwable e) {
+      logger.debug("Error publishing live update", e);
+    }
+  }
+
+  private void commitLive(@Nonnull NotebookEventSource events, int end) {
+    try {
+      if (events.hasSubscribers()) {
+        events.publish("block", Integer.toString(end), renderLive(toString(markdownData.subList(liveCommitted, end))));
+      }
+    } catch (Throwable e) {
+      logger.debug("Error publishing live update", e);
+    }
+    liveCommitted = end;
+  }
+
+  private synchronized void closeLive() {
+    liveClosed = true;
+    NotebookEventSource events = this.events;
+    if (null == events) return;
+    synchronized (events) {
+      if (liveCommitted < markdownData.size()) commitLive(events, markdownData.size());
+      events.close();
+    }
+  }
+
+  private static boolean isContinuation(@Nonnull CharSequence block) {
+    if (block.length() == 0) return true;
+    char c = block.charAt(0);
+    return c == ' ' || c == '\t' || c == '|' || c == '\n';
+  }
+
+  private static boolean isFenceToggle(@Nonnull CharSequence block) {
+    boolean toggle = false;
+    for (String line : block.toString().split("\n")) {
+      String trimmed = line.trim();
+      if (trimmed.startsWith("```") || trimmed.startsWith("~~~")) toggle = !toggle;
+    }
+    return toggle;
+  }
+
+  @Nonnull
+  private String renderLive(@Nonnull CharSequence markdown) {
+    if (null == liveParser || null == liveRenderer) {
+      DataSet options = getMarkdownOptions();
+      liveParser = Parser.builder(options).build();
+      liveRenderer = HtmlRenderer.builder(options)
+          .escapeHtml(false)
+          .indentSize(2)
+          .softBreak("\n")
+          .build();
+    }
+    return liveRenderer.render(liveParser.parse(markdown.toString()));
+  }
+
 }
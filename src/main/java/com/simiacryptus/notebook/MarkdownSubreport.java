@@ -24,6 +24,7 @@ import com.simiacryptus.ref.lang.RefAware;
 import org.jetbrains.annotations.NotNull;
 
 import javax.annotation.Nonnull;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.util.UUID;
@@ -82,6 +83,12 @@ class MarkdownSubreport extends MarkdownNotebookOutput {
     parent.onWrite(fn);
   }
 
+  @Nonnull
+  @Override
+  public Closeable addWriteHook(Runnable fn) {
+    return parent.addWriteHook(fn);
+  }
+
   @Override
   public void write() throws IOException {
     super.write();
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+
+public class MultipartStreamParser {
+  public static final int BUFFER_SIZE = 64 * 1024;
+  public static final int MAX_HEADER_SIZE = 8 * 1024;
+
+  @Nonnull
+  private final InputStream in;
+  @Nonnull
+  private final byte[] delimiter;
+  @Nonnull
+  private final Charset charset;
+  @Nonnull
+  private final byte[] buffer;
+  private int head = 0;
+  private int tail = 0;
+  private boolean eof = false;
+
+  public MultipartStreamParser(@Nonnull InputStream in, @Nonnull String boundary, @Nonnull Charset charset) {
+    this.in = in;
+    this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+    this.charset = charset;
+    this.buffer = new byte[Math.max(BUFFER_SIZE, MAX_HEADER_SIZE + delimiter.length)];
+    // The first boundary is not preceded by a line break; prepend one so every delimiter looks the same
+    buffer[tail++] = '\r';
+    buffer[tail++] = '\n';
+  }
+
+  public void parse(@Nonnull PartHandler handler) throws IOException {
+    if (!readData(null)) {
+      throw badRequest("Content type is multipart/form-data but contains no boundary strings.");
+    }
+    while (!readDelimiterSuffix()) {
+      String headers = readHeaders();
+      String name = null, fileName = null, contentType = null;
+      for (String line : headers.split("\r?\n")) {
+        Matcher matcher = NanoHTTPD.CONTENT_DISPOSITION_PATTERN.matcher(line);
+        if (matcher.matches()) {
+          matcher = NanoHTTPD.CONTENT_DISPOSITION_ATTRIBUTE_PATTERN.matcher(matcher.group(2));
+          while (matcher.find()) {
+            String key = matcher.group(1);
+            if (key.equalsIgnoreCase("name")) {
+              name = matcher.group(2);
+            } else if (key.equalsIgnoreCase("filename")) {
+              fileName = matcher.group(2);
+            }
+          }
+        }
+        matcher = NanoHTTPD.CONTENT_TYPE_PATTERN.matcher(line);
+        if (matcher.matches()) {
+          contentType = matcher.group(2).trim();
+        }
+      }
+      OutputStream out = handler.open(null == name ? "" : name, fileName, contentType);
+      boolean complete;
+      try {
+        complete = readData(out);
+      } finally {
+        if (null != out) out.close();
+      }
+      if (!complete) {
+        throw badRequest("Multipart body ended before the closing boundary.");
+      }
+    }
+  }
+
+  public boolean readData(@Nullable OutputStream out) throws IOException {
+    while (true) {
+      int index = indexOf(delimiter, head, tail);
+      if (index >= 0) {
+        if (null != out) out.write(buffer, head, index - head);
+        head = index + delimiter.length;
+        return true;
+      }
+      int safe = Math.max(head, tail - delimiter.length + 1);
+      if (null != out && safe > head) out.write(buffer, head, safe - head);
+      head = safe;
+      if (!fill()) {
+        if (null != out) out.write(buffer, head, tail - head);
+        head = tail;
+        return false;
+      }
+    }
+  }
+
+  private boolean readDelimiterSuffix() throws IOException {
+    while (tail - head < 2) {
+      if (!fill()) throw badRequest("Multipart body ended inside a boundary.");
+    }
+    if (buffer[head] == '-' && buffer[head + 1] == '-') {
+      head += 2;
+      return true;
+    }
+    // Skip transport padding up to the end of the boundary line
+    while (true) {
+      while (head < tail) {
+        if (buffer[head++] == '\n') return false;
+      }
+      if (!fill()) throw badRequest("Multipart body ended inside a boundary.");
+    }
+  }
+
+  @Nonnull
+  private String readHeaders() throws IOException {
+    while (tail - head < 2 && fill()) ;
+    if (tail - head >= 2 && buffer[head] == '\r' && buffer[head + 1] == '\n') {
+      head += 2;
+      return "";
+    }
+    while (true) {
+      int end = HttpRequestParser.findHeaderEnd(buffer, head, tail);
+      if (end > 0) {
+        String headers = new String(buffer, head, end - head, charset);
+        head = end;
+        return headers;
+      }
+      if (tail - head >= MAX_HEADER_SIZE) {
+        throw new NanoHTTPD.ResponseException(NanoHTTPD.Response.Status.BAD_REQUEST,
+            "BAD REQUEST: Multipart header size exceeds " + MAX_HEADER_SIZE + " bytes.");
+      }
+      if (!fill()) {
+        // A part with no headers and no body may be terminated directly
+        String headers = new String(buffer, head, tail - head, charset);
+        head = tail;
+        return headers;
+      }
+    }
+  }
+
+  private boolean fill() throws IOException {
+    if (eof) return false;
+    if (head > 0) {
+      RefSystem.arraycopy(buffer, head, buffer, 0, tail - head);
+      tail -= head;
+      head = 0;
+    }
+    int read = in.read(buffer, tail, buffer.length - tail);
+    if (read < 0) {
+      eof = true;
+      return false;
+    }
+    tail += read;
+    return true;
+  }
+
+  private int indexOf(@Nonnull byte[] pattern, int start, int end) {
+    int last = end - pattern.length;
+    outer:
+    for (int i = start; i <= last; i++) {
+      for (int j = 0; j < pattern.length; j++) {
+        if (buffer[i + j] != pattern[j]) continue outer;
+      }
+      return i;
+    }
+    return -1;
+  }
+
+  @Nonnull
+  private static NanoHTTPD.ResponseException badRequest(String message) {
+    return new NanoHTTPD.ResponseException(NanoHTTPD.Response.Status.BAD_REQUEST, "BAD REQUEST: " + message);
+  }
+
+  public interface PartHandler {
+    @Nullable
+    OutputStream open(@Nonnull String name, @Nullable String fileName, @Nullable String contentType) throws IOException;
+
+    @Nonnull
+    static PartHandler toDirectory(@Nonnull File dir) {
+      return (name, fileName, contentType) -> {
+        if (null == fileName) return null;
+        String safeName = new File(fileName).getName();
+        if (safeName.isEmpty() || safeName.equals("..")) return null;
+        dir.mkdirs();
+        return new BufferedOutputStream(new FileOutputStream(new File(dir, safeName)));
+      };
+    }
+  }
+
+  public static class BoundedInputStream extends FilterInputStream {
+    private long remaining;
+
+    public BoundedInputStream(@Nonnull InputStream in, long length) {
+      super(in);
+      this.remaining = length;
+    }
+
+    public long getRemaining() {
+      return remaining;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) return -1;
+      int read = super.read();
+      if (read >= 0) remaining--;
+      return read;
+    }
+
+    @Override
+    public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) return -1;
+      int read = super.read(b, off, (int) Math.min(len, remaining));
+      if (read > 0) remaining -= read;
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(super.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    public void drain() throws IOException {
+      byte[] scratch = new byte[4 * 1024];
+      while (read(scratch, 0, scratch.length) > 0) ;
+    }
+
+    @Override
+    public void close() throws IOException {
+      drain();
+    }
+  }
+}
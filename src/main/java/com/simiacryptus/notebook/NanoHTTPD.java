@@ -19,6 +19,7 @@
 
 package com.simiacryptus.notebook;
 
+import com.google.common.io.CountingOutputStream;
 import com.simiacryptus.ref.wrappers.RefString;
 import com.simiacryptus.ref.wrappers.RefSystem;
 
@@ -30,14 +31,16 @@ import java.net.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
-import java.util.zip.GZIPOutputStream;
 
 public abstract class NanoHTTPD {
 
@@ -58,6 +61,7 @@ public abstract class NanoHTTPD {
       .compile(CONTENT_DISPOSITION_ATTRIBUTE_REGEX);
   protected static final String QUERY_STRING_PARAMETER = "NanoHttpd.QUERY_STRING";
   protected static final Logger LOG = Logger.getLogger(NanoHTTPD.class.getName());
+  public static long MAX_BODY_SIZE = Long.parseLong(RefSystem.getProperty("NOTEBOOK_HTTP_MAX_BODY", Long.toString(256L * 1024 * 1024)));
   protected static Map<String, String> MIME_TYPES;
   protected final String hostname;
   protected final int myPort;
@@ -67,6 +71,7 @@ public abstract class NanoHTTPD {
   protected Thread myThread;
   protected AsyncRunner asyncRunner;
   protected TempFileManagerFactory tempFileManagerFactory;
+  protected long maxBodySize = MAX_BODY_SIZE;
 
   public NanoHTTPD(int port) {
     this(null, port);
@@ -103,6 +108,14 @@ public abstract class NanoHTTPD {
     this.tempFileManagerFactory = tempFileManagerFactory;
   }
 
+  public long getMaxBodySize() {
+    return maxBodySize;
+  }
+
+  public void setMaxBodySize(long maxBodySize) {
+    this.maxBodySize = maxBodySize;
+  }
+
   public final boolean isAlive() {
     return wasStarted() && !this.myServerSocket.isClosed() && this.myThread.isAlive();
   }
@@ -298,7 +311,12 @@ public abstract class NanoHTTPD {
         return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, NanoHTTPD.MIME_PLAINTEXT,
             "SERVER INTERNAL ERROR: IOException: " + ioe.getMessage());
       } catch (ResponseException re) {
-        return newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
+        Response response = newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
+        if (re.getStatus() == Response.Status.PAYLOAD_TOO_LARGE) {
+          // The unread body is still on the wire
+          response.addHeader("connection", "close");
+        }
+        return response;
       }
     }
 
@@ -383,7 +401,9 @@ public abstract class NanoHTTPD {
   }
 
   protected boolean useGzipWhenAccepted(@Nonnull Response r) {
-    return r.getMimeType() != null && r.getMimeType().toLowerCase().contains("text/");
+    // Event streams are flushed per event; a gzip stream would hold them back
+    return r.getMimeType() != null && r.getMimeType().toLowerCase().contains("text/")
+        && !r.getMimeType().toLowerCase().contains("text/event-stream");
   }
 
   public enum Method {
@@ -431,6 +451,11 @@ public abstract class NanoHTTPD {
     void execute() throws IOException;
 
     void parseBody(Map<String, String> files) throws IOException, ResponseException;
+
+    void parseBody(Map<String, String> files, @Nullable MultipartStreamParser.PartHandler handler) throws IOException, ResponseException;
+
+    // Lets a server that delegates to another session apply its own body limit
+    void parseBody(Map<String, String> files, @Nullable MultipartStreamParser.PartHandler handler, long maxBodySize) throws IOException, ResponseException;
   }
 
   public interface TempFile {
@@ -535,6 +560,58 @@ public abstract class NanoHTTPD {
     }
   }
 
+  public static class ExecutorAsyncRunner implements AsyncRunner {
+
+    protected final List<ClientHandler> running = Collections
+        .synchronizedList(new ArrayList<NanoHTTPD.ClientHandler>());
+    @Nonnull
+    protected final ExecutorService executor;
+    protected final int maxConnections;
+
+    public ExecutorAsyncRunner(@Nonnull ExecutorService executor) {
+      this(executor, 0);
+    }
+
+    public ExecutorAsyncRunner(@Nonnull ExecutorService executor, int maxConnections) {
+      this.executor = executor;
+      this.maxConnections = maxConnections;
+    }
+
+    @Nonnull
+    public List<ClientHandler> getRunning() {
+      return running;
+    }
+
+    @Override
+    public void closeAll() {
+      for (ClientHandler clientHandler : new ArrayList<ClientHandler>(this.running)) {
+        clientHandler.close();
+      }
+    }
+
+    @Override
+    public void closed(ClientHandler clientHandler) {
+      this.running.remove(clientHandler);
+    }
+
+    @Override
+    public void exec(@Nonnull ClientHandler clientHandler) {
+      if (maxConnections > 0 && this.running.size() >= maxConnections) {
+        // Answered on the accept thread without reading the request, so an overloaded server stays cheap to refuse
+        clientHandler.reject();
+        return;
+      }
+      this.running.add(clientHandler);
+      try {
+        this.executor.execute(clientHandler);
+      } catch (RejectedExecutionException e) {
+        NanoHTTPD.LOG.log(Level.WARNING, "Worker pool rejected connection", e);
+        clientHandler.close();
+        this.running.remove(clientHandler);
+      }
+    }
+  }
+
   public static class DefaultTempFile implements TempFile {
 
     @Nonnull
@@ -654,6 +731,10 @@ public abstract class NanoHTTPD {
     protected boolean chunkedTransfer;
     protected boolean encodeAsGzip;
     protected boolean keepAlive;
+    @Nullable
+    protected String gzipCacheKey;
+    @Nullable
+    protected SendListener sendListener;
 
     protected Response(Response.IStatus status, String mimeType, @Nullable InputStream data, long totalBytes) {
       header.put("Access-Control-Allow-Origin", "*");
@@ -715,6 +796,24 @@ public abstract class NanoHTTPD {
       this.keepAlive = useKeepAlive;
     }
 
+    @Nullable
+    public String getGzipCacheKey() {
+      return gzipCacheKey;
+    }
+
+    public void setGzipCacheKey(@Nullable String gzipCacheKey) {
+      this.gzipCacheKey = gzipCacheKey;
+    }
+
+    @Nullable
+    public SendListener getSendListener() {
+      return sendListener;
+    }
+
+    public void setSendListener(@Nullable SendListener sendListener) {
+      this.sendListener = sendListener;
+    }
+
     protected static boolean headerAlreadySent(@Nonnull Map<String, String> header, String name) {
       boolean alreadySent = false;
       for (String headerName : header.keySet()) {
@@ -793,6 +892,17 @@ public abstract class NanoHTTPD {
           encodeAsGzip = false;
         }
 
+        if (encodeAsGzip && null != this.gzipCacheKey && null != this.data) {
+          byte[] compressed = GzipCache.INSTANCE.get(this.gzipCacheKey, this.data);
+          safeClose(this.data);
+          this.data = new ByteArrayInputStream(compressed);
+          this.contentLength = compressed.length;
+          this.chunkedTransfer = false;
+          encodeAsGzip = false;
+          pw.print("Content-Encoding: gzip\r\n");
+          pw.print("Vary: Accept-Encoding\r\n");
+        }
+
         if (encodeAsGzip) {
           pw.print("Content-Encoding: gzip\r\n");
           setChunkedTransfer(true);
@@ -826,9 +936,8 @@ public abstract class NanoHTTPD {
 
     protected void sendBodyWithCorrectEncoding(@Nonnull OutputStream outputStream, long pending) throws IOException {
       if (encodeAsGzip) {
-        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream);
-        sendBody(gzipOutputStream, -1);
-        gzipOutputStream.finish();
+        assert this.data != null;
+        GzipCache.INSTANCE.gzip(this.data, outputStream);
       } else {
         sendBody(outputStream, pending);
       }
@@ -858,8 +967,8 @@ public abstract class NanoHTTPD {
       NOT_MODIFIED(304, "Not Modified"), BAD_REQUEST(400, "Bad Request"), UNAUTHORIZED(401, "Unauthorized"),
       FORBIDDEN(403, "Forbidden"), NOT_FOUND(404, "Not Found"), METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
       NOT_ACCEPTABLE(406, "Not Acceptable"), REQUEST_TIMEOUT(408, "Request Timeout"), CONFLICT(409, "Conflict"),
-      RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"),
-      NOT_IMPLEMENTED(501, "Not Implemented"), UNSUPPORTED_HTTP_VERSION(505, "HTTP Version Not Supported");
+      PAYLOAD_TOO_LARGE(413, "Payload Too Large"), RANGE_NOT_SATISFIABLE(416, "Requested Range Not Satisfiable"), INTERNAL_ERROR(500, "Internal Server Error"),
+      NOT_IMPLEMENTED(501, "Not Implemented"), SERVICE_UNAVAILABLE(503, "Service Unavailable"), UNSUPPORTED_HTTP_VERSION(505, "HTTP Version Not Supported");
 
       protected final int requestStatus;
 
@@ -882,6 +991,10 @@ public abstract class NanoHTTPD {
       }
     }
 
+    public interface SendListener {
+      void onSent(int status, long bytes);
+    }
+
     public interface IStatus {
 
       @Nonnull
@@ -959,6 +1072,20 @@ public abstract class NanoHTTPD {
       safeClose(this.acceptSocket);
     }
 
+    public void reject() {
+      try {
+        OutputStream outputStream = this.acceptSocket.getOutputStream();
+        outputStream.write(RefString.format("HTTP/1.1 503 Service Unavailable\r\nRetry-After: %d\r\n" +
+            "Content-Length: 0\r\nConnection: close\r\n\r\n", AdmissionControl.RETRY_AFTER_SECONDS)
+            .getBytes(StandardCharsets.US_ASCII));
+        outputStream.flush();
+      } catch (IOException e) {
+        NanoHTTPD.LOG.log(Level.FINE, "Could not reject connection", e);
+      } finally {
+        close();
+      }
+    }
+
     @Override
     public void run() {
       OutputStream outputStream = null;
@@ -1063,6 +1190,7 @@ public abstract class NanoHTTPD {
       do {
         try {
           final Socket finalAccept = NanoHTTPD.this.myServerSocket.accept();
+          finalAccept.setTcpNoDelay(true);
           if (this.timeout > 0) {
             finalAccept.setSoTimeout(this.timeout);
           }
@@ -1086,7 +1214,7 @@ public abstract class NanoHTTPD {
 
   protected class HTTPSession implements IHTTPSession {
 
-    public static final int BUFSIZE = 8192;
+    public static final int BUFSIZE = HttpRequestParser.BUFSIZE;
     public static final int MAX_HEADER_SIZE = 1024;
     protected static final int REQUEST_BUFFER_LEN = 512;
     protected static final int MEMORY_STORE_LIMIT = 1024;
@@ -1097,6 +1225,9 @@ public abstract class NanoHTTPD {
     @Nonnull
     protected final BufferedInputStream inputStream;
 
+    @Nonnull
+    protected final HttpRequestParser parser = new HttpRequestParser();
+
     protected int splitbyte;
 
     protected int rlen;
@@ -1196,19 +1327,16 @@ public abstract class NanoHTTPD {
     public void execute() throws IOException {
       Response r = null;
       try {
-        // Read the first 8192 bytes.
+        // Read the first 8192 bytes into the connection's reusable buffer.
         // The full header should fit in here.
         // Apache's default header limit is 8KB.
-        // Do NOT assume that a single read will get the entire header
-        // at once!
-        byte[] buf = new byte[HTTPSession.BUFSIZE];
         this.splitbyte = 0;
         this.rlen = 0;
 
         int read = -1;
         this.inputStream.mark(HTTPSession.BUFSIZE);
         try {
-          read = this.inputStream.read(buf, 0, HTTPSession.BUFSIZE);
+          read = this.parser.read(this.inputStream);
         } catch (Exception e) {
           safeClose(this.inputStream);
           safeClose(this.outputStream);
@@ -1220,51 +1348,36 @@ public abstract class NanoHTTPD {
           safeClose(this.outputStream);
           throw new SocketException("NanoHttpd Shutdown");
         }
-        while (read > 0) {
-          this.rlen += read;
-          this.splitbyte = findHeaderEnd(buf, this.rlen);
-          if (this.splitbyte > 0) {
-            break;
-          }
-          read = this.inputStream.read(buf, this.rlen, HTTPSession.BUFSIZE - this.rlen);
-        }
+        this.rlen = this.parser.getLength();
+        this.splitbyte = this.parser.getHeaderEnd();
 
         if (this.splitbyte < this.rlen) {
           this.inputStream.reset();
           this.inputStream.skip(this.splitbyte);
         }
 
-        this.parms = new HashMap<String, String>();
-        if (null == this.headers) {
-          this.headers = new HashMap<String, String>();
-        } else {
-          this.headers.clear();
-        }
-
-        // Create a BufferedReader for parsing the header.
-        BufferedReader hin = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, this.rlen)));
-
-        // Decode the header into parms and header java properties
-        Map<String, String> pre = new HashMap<String, String>();
-        decodeHeader(hin, pre, this.parms, this.headers);
+        // Decode the header in place; header and parameter maps are materialized only on demand
+        this.parser.parse();
+        this.parms = this.parser.parms();
+        this.headers = this.parser.headers();
+        this.queryParameterString = this.parser.getQueryString();
+        this.protocolVersion = this.parser.getProtocolVersion();
 
         if (null != this.remoteIp) {
           this.headers.put("remote-addr", this.remoteIp);
           this.headers.put("http-client-ip", this.remoteIp);
         }
 
-        this.method = Method.lookup(pre.get("method"));
+        this.method = this.parser.getMethod();
         if (this.method == null) {
           throw new ResponseException(Response.Status.BAD_REQUEST, "BAD REQUEST: Syntax error.");
         }
 
-        this.uri = pre.get("uri");
+        this.uri = this.parser.getUri();
 
         this.cookies = new CookieHandler(this.headers);
 
-        String connection = this.headers.get("connection");
-        boolean keepAlive = protocolVersion.equals("HTTP/1.1")
-            && (connection == null || !connection.matches("(?i).*close.*"));
+        boolean keepAlive = this.parser.isHttp11() && !this.parser.headerContains("connection", "close");
 
         // Ok, now do the serve()
 
@@ -1284,7 +1397,17 @@ public abstract class NanoHTTPD {
           r.setRequestMethod(this.method);
           r.setGzipEncoding(useGzipWhenAccepted(r) && acceptEncoding != null && acceptEncoding.contains("gzip"));
           r.setKeepAlive(keepAlive);
-          r.send(this.outputStream);
+          Response.SendListener sendListener = r.getSendListener();
+          if (null == sendListener) {
+            r.send(this.outputStream);
+          } else {
+            CountingOutputStream counter = new CountingOutputStream(this.outputStream);
+            try {
+              r.send(counter);
+            } finally {
+              sendListener.onSent(null == r.getStatus() ? 0 : r.getStatus().getRequestStatus(), counter.getCount());
+            }
+          }
         }
         if (!keepAlive || "close".equalsIgnoreCase(r.getHeader("connection"))) {
           throw new SocketException("NanoHttpd Shutdown");
@@ -1304,6 +1427,8 @@ public abstract class NanoHTTPD {
         safeClose(this.outputStream);
       } catch (ResponseException re) {
         Response resp = newFixedLengthResponse(re.getStatus(), NanoHTTPD.MIME_PLAINTEXT, re.getMessage());
+        // The connection is closed after an error, and any unread body is abandoned with it
+        resp.setKeepAlive(false);
         resp.send(this.outputStream);
         safeClose(this.outputStream);
       } finally {
@@ -1314,39 +1439,23 @@ public abstract class NanoHTTPD {
 
     @Override
     public void parseBody(@Nonnull Map<String, String> files) throws IOException, ResponseException {
-      RandomAccessFile randomAccessFile = null;
-      try {
-        long size = getBodySize();
-        ByteArrayOutputStream baos = null;
-        DataOutput request_data_output = null;
-
-        // Store the request in memory or a file, depending on size
-        if (size < MEMORY_STORE_LIMIT) {
-          baos = new ByteArrayOutputStream();
-          request_data_output = new DataOutputStream(baos);
-        } else {
-          randomAccessFile = getTmpBucket();
-          request_data_output = randomAccessFile;
-        }
-
-        // Read all the body and write it to request_data_output
-        byte[] buf = new byte[REQUEST_BUFFER_LEN];
-        while (this.rlen >= 0 && size > 0) {
-          this.rlen = this.inputStream.read(buf, 0, (int) Math.min(size, REQUEST_BUFFER_LEN));
-          size -= this.rlen;
-          if (this.rlen > 0) {
-            request_data_output.write(buf, 0, this.rlen);
-          }
-        }
+      parseBody(files, null);
+    }
 
-        ByteBuffer fbuf = null;
-        if (baos != null) {
-          fbuf = ByteBuffer.wrap(baos.toByteArray(), 0, baos.size());
-        } else {
-          fbuf = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, randomAccessFile.length());
-          randomAccessFile.seek(0);
-        }
+    @Override
+    public void parseBody(@Nonnull Map<String, String> files, @Nullable MultipartStreamParser.PartHandler handler) throws IOException, ResponseException {
+      parseBody(files, handler, getMaxBodySize());
+    }
 
+    @Override
+    public void parseBody(@Nonnull Map<String, String> files, @Nullable MultipartStreamParser.PartHandler handler, long maxBodySize) throws IOException, ResponseException {
+      long size = getBodySize();
+      if (size > maxBodySize) {
+        throw new ResponseException(Response.Status.PAYLOAD_TOO_LARGE,
+            RefString.format("PAYLOAD TOO LARGE: %d bytes exceeds the limit of %d bytes", size, maxBodySize));
+      }
+      MultipartStreamParser.BoundedInputStream body = new MultipartStreamParser.BoundedInputStream(this.inputStream, size);
+      try {
         // If the method is POST, there may be parameters
         // in data section, too, read it:
         if (Method.POST.equals(this.method)) {
@@ -1367,30 +1476,124 @@ public abstract class NanoHTTPD {
               throw new ResponseException(Response.Status.BAD_REQUEST,
                   "BAD REQUEST: Content type is multipart/form-data but boundary missing. Usage: GET /example/file.html");
             }
-            decodeMultipartFormData(getAttributeFromContentHeader(contentTypeHeader, BOUNDARY_PATTERN, null), //
-                getAttributeFromContentHeader(contentTypeHeader, CHARSET_PATTERN, "US-ASCII"), fbuf, this.parms, files);
+            String encoding = getAttributeFromContentHeader(contentTypeHeader, CHARSET_PATTERN, "US-ASCII");
+            new MultipartStreamParser(body, getAttributeFromContentHeader(contentTypeHeader, BOUNDARY_PATTERN, null),
+                Charset.forName(encoding)).parse(partHandler(handler, encoding, this.parms, files));
+          } else if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
+            decodeParms(readString(body, size).trim(), this.parms);
           } else {
-            byte[] postBytes = new byte[fbuf.remaining()];
-            fbuf.get(postBytes);
-            String postLine = new String(postBytes).trim();
-            // Handle application/x-www-form-urlencoded
-            if ("application/x-www-form-urlencoded".equalsIgnoreCase(contentType)) {
-              decodeParms(postLine, this.parms);
-            } else if (postLine.length() != 0) {
-              // Special case for raw POST data => create a
-              // special files entry "postData" with raw content
-              // data
-              files.put("postData", postLine);
+            // Special case for raw POST data => stream it to the handler if it accepts it,
+            // otherwise create a special files entry "postData" with raw content data
+            OutputStream out = null == handler ? null : handler.open("postData", null, contentTypeHeader);
+            if (null != out) {
+              try {
+                copy(body, out);
+              } finally {
+                out.close();
+              }
+            } else {
+              String postLine = readString(body, size).trim();
+              if (postLine.length() != 0) {
+                files.put("postData", postLine);
+              }
             }
           }
         } else if (Method.PUT.equals(this.method)) {
-          files.put("content", saveTmpFile(fbuf, 0, fbuf.limit()));
+          OutputStream out = null == handler ? null : handler.open("content", null, this.headers.get("content-type"));
+          if (null != out) {
+            try {
+              copy(body, out);
+            } finally {
+              out.close();
+            }
+          } else if (size > 0) {
+            TempFile tempFile = createTempFile();
+            try (OutputStream fileOut = new FileOutputStream(tempFile.getFile())) {
+              copy(body, fileOut);
+            }
+            files.put("content", tempFile.getFile().getAbsolutePath());
+          } else {
+            files.put("content", "");
+          }
         }
+      } catch (ResponseException | IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new ResponseException(Response.Status.INTERNAL_ERROR, e.toString(), e);
       } finally {
-        safeClose(randomAccessFile);
+        // Leave the connection positioned at the next request
+        body.drain();
       }
     }
 
+    @Nonnull
+    protected MultipartStreamParser.PartHandler partHandler(@Nullable MultipartStreamParser.PartHandler handler, @Nonnull String encoding,
+                                                            @Nonnull Map<String, String> parms, @Nonnull Map<String, String> files) {
+      return (name, fileName, contentType) -> {
+        OutputStream out = null == handler ? null : handler.open(name, fileName, contentType);
+        if (null != out) {
+          if (null != fileName) parms.put(name, fileName);
+          return out;
+        }
+        if (contentType == null) {
+          // Read the part into a string
+          return new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+              parms.put(name, toString(encoding));
+            }
+          };
+        } else {
+          // Read it into a file
+          TempFile tempFile = createTempFile();
+          String path = tempFile.getFile().getAbsolutePath();
+          return new BufferedOutputStream(new FileOutputStream(tempFile.getFile())) {
+            @Override
+            public void close() throws IOException {
+              super.close();
+              if (!files.containsKey(name)) {
+                files.put(name, path);
+              } else {
+                int count = 2;
+                while (files.containsKey(name + count)) {
+                  count++;
+                }
+                files.put(name + count, path);
+              }
+              parms.put(name, fileName);
+            }
+          };
+        }
+      };
+    }
+
+    @Nonnull
+    protected TempFile createTempFile() throws IOException {
+      try {
+        return this.tempFileManager.createTempFile();
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException(e);
+      }
+    }
+
+    protected void copy(@Nonnull InputStream in, @Nonnull OutputStream out) throws IOException {
+      byte[] buf = new byte[REQUEST_BUFFER_LEN * 16];
+      int read;
+      while ((read = in.read(buf)) > 0) {
+        out.write(buf, 0, read);
+      }
+    }
+
+    @Nonnull
+    protected String readString(@Nonnull InputStream body, long size) throws IOException {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream((int) Math.min(size, Integer.MAX_VALUE - 8));
+      copy(body, buffer);
+      return buffer.toString(StandardCharsets.UTF_8.name());
+    }
+
+    @Deprecated
     protected void decodeHeader(@Nonnull BufferedReader in, @Nonnull Map<String, String> pre, @Nonnull Map<String, String> parms,
                                 @Nonnull Map<String, String> headers) throws ResponseException {
       try {
@@ -1450,6 +1653,7 @@ public abstract class NanoHTTPD {
       }
     }
 
+    @Deprecated
     protected void decodeMultipartFormData(@Nonnull String boundary, @Nonnull String encoding, @Nonnull ByteBuffer fbuf, @Nonnull Map<String, String> parms,
                                            @Nonnull Map<String, String> files) throws ResponseException {
       try {
@@ -1569,24 +1773,10 @@ public abstract class NanoHTTPD {
     }
 
     protected int findHeaderEnd(final byte[] buf, int rlen) {
-      int splitbyte = 0;
-      while (splitbyte + 1 < rlen) {
-
-        // RFC2616
-        if (buf[splitbyte] == '\r' && buf[splitbyte + 1] == '\n' && splitbyte + 3 < rlen && buf[splitbyte + 2] == '\r'
-            && buf[splitbyte + 3] == '\n') {
-          return splitbyte + 4;
-        }
-
-        // tolerance
-        if (buf[splitbyte] == '\n' && buf[splitbyte + 1] == '\n') {
-          return splitbyte + 2;
-        }
-        splitbyte++;
-      }
-      return 0;
+      return HttpRequestParser.findHeaderEnd(buf, rlen);
     }
 
+    @Deprecated
     @Nonnull
     protected int[] getBoundaryPositions(@Nonnull ByteBuffer b, @Nonnull byte[] boundary) {
       int[] res = new int[0];
@@ -1635,6 +1825,7 @@ public abstract class NanoHTTPD {
       return matcher.find() ? matcher.group(2) : defaultValue;
     }
 
+    @Deprecated
     @Nonnull
     protected String saveTmpFile(@Nonnull ByteBuffer b, int offset, int len) {
       String path = "";
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.simiacryptus.ref.wrappers.RefSystem;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class NotebookEventSource {
+  public static int MAX_QUEUED_EVENTS = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_SSE_QUEUE", "1000"));
+  public static long KEEPALIVE_SECONDS = 15;
+  public static int MAX_SUBSCRIBERS = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_SSE_SUBSCRIBERS", "16"));
+  public static long RETRY_MILLIS = 30000;
+  // Each open stream holds a worker from the shared pool, so viewers are capped across all reports
+  private static final Semaphore VIEWERS = new Semaphore(MAX_SUBSCRIBERS);
+  private static final byte[] END = new byte[0];
+  private static final byte[] KEEPALIVE = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+  private final List<BlockingQueue<byte[]>> subscribers = new CopyOnWriteArrayList<>();
+  private volatile boolean closed = false;
+
+  @Nonnull
+  public static byte[] format(@Nonnull String event, @Nullable String id, @Nonnull String data) {
+    StringBuilder sb = new StringBuilder();
+    sb.append("event: ").append(event).append('\n');
+    if (null != id) sb.append("id: ").append(id).append('\n');
+    for (String line : data.split("\r?\n", -1)) {
+      sb.append("data: ").append(line).append('\n');
+    }
+    return sb.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  public boolean hasSubscribers() {
+    return !subscribers.isEmpty();
+  }
+
+  public int getSubscriberCount() {
+    return subscribers.size();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  public void publish(@Nonnull String event, @Nullable String id, @Nonnull String data) {
+    if (subscribers.isEmpty()) return;
+    byte[] bytes = format(event, id, data);
+    for (BlockingQueue<byte[]> queue : subscribers) {
+      if (!queue.offer(bytes)) {
+        // A viewer this far behind reconnects and catches up from its last event id
+        subscribers.remove(queue);
+        queue.clear();
+        queue.offer(END);
+      }
+    }
+  }
+
+  @Nonnull
+  public InputStream subscribe(@Nonnull List<byte[]> backlog) {
+    BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>(Math.max(MAX_QUEUED_EVENTS, backlog.size() + 1));
+    AtomicBoolean held = new AtomicBoolean(false);
+    if (closed) {
+      queue.addAll(backlog);
+      queue.offer(format("close", null, ""));
+      queue.offer(END);
+    } else if (VIEWERS.tryAcquire()) {
+      held.set(true);
+      queue.addAll(backlog);
+      subscribers.add(queue);
+    } else {
+      // Over the cap the stream ends at once and the browser reconnects after the retry delay
+      queue.offer(("retry: " + RETRY_MILLIS + "\n\n").getBytes(StandardCharsets.UTF_8));
+      queue.offer(END);
+    }
+    return new InputStream() {
+      @Nullable
+      private byte[] current = new byte[0];
+      private int position = 0;
+
+      @Override
+      public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+      }
+
+      @Override
+      public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        while (null != current && position >= current.length) {
+          try {
+            byte[] next = queue.poll(KEEPALIVE_SECONDS, TimeUnit.SECONDS);
+            current = null == next ? KEEPALIVE : next == END ? null : next;
+            position = 0;
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+          }
+        }
+        if (null == current) return -1;
+        int count = Math.min(len, current.length - position);
+        RefSystem.arraycopy(current, position, b, off, count);
+        position += count;
+        return count;
+      }
+
+      @Override
+      public void close() {
+        subscribers.remove(queue);
+        if (held.compareAndSet(true, false)) VIEWERS.release();
+      }
+    };
+  }
+
+  public void close() {
+    closed = true;
+    byte[] bytes = format("close", null, "");
+    for (BlockingQueue<byte[]> queue : subscribers) {
+      subscribers.remove(queue);
+      queue.clear();
+      queue.offer(bytes);
+      queue.offer(END);
+    }
+  }
+}
@@ -57,6 +57,12 @@ public interface NotebookOutput extends Closeable {
   @javax.annotation.Nullable
   FileHTTPD getHttpd();
 
+  // Outputs that do not track their handlers hand out an untracked registry, so registrations last until closed individually
+  @Nonnull
+  default HandlerRegistry getRegistry() {
+    return new HandlerRegistry();
+  }
+
   @Nonnull
   String getId();
 
@@ -156,6 +162,14 @@ public interface NotebookOutput extends Closeable {
 
   void onWrite(Runnable fn);
 
+  // Outputs that cannot unregister a write hook keep it for their lifetime
+  @Nonnull
+  default Closeable addWriteHook(Runnable fn) {
+    onWrite(fn);
+    return () -> {
+    };
+  }
+
   void write() throws IOException;
 
   @Nonnull
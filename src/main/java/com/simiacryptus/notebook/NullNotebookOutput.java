@@ -38,6 +38,7 @@ import java.util.function.Function;
 
 public class NullNotebookOutput implements NotebookOutput {
   private final String name;
+  private final HandlerRegistry registry = new HandlerRegistry();
 
   public NullNotebookOutput(String name) {
     this.name = name;
@@ -73,6 +74,12 @@ public class NullNotebookOutput implements NotebookOutput {
     return new NullHTTPD();
   }
 
+  @Nonnull
+  @Override
+  public HandlerRegistry getRegistry() {
+    return registry;
+  }
+
   @Nonnull
   @Override
   public String getId() {
@@ -108,6 +115,7 @@ public class NullNotebookOutput implements NotebookOutput {
 
   @Override
   public void close() {
+    registry.close();
   }
 
   @Nonnull
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerMetrics {
+  public static final String STATIC_ROUTE = "<static>";
+  public static final String UNMATCHED_ROUTE = "<unmatched>";
+  private static final double[] BUCKET_SECONDS = {0.001, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30};
+
+  private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+  @Nonnull
+  public Route get(@Nonnull String route) {
+    Route metrics = routes.get(route);
+    if (null == metrics) metrics = routes.computeIfAbsent(route, Route::new);
+    return metrics;
+  }
+
+  public void remove(@Nonnull String route) {
+    routes.remove(route);
+  }
+
+  @Nonnull
+  public Map<String, Route> getRoutes() {
+    return new TreeMap<>(routes);
+  }
+
+  @Nonnull
+  public String toPrometheus() {
+    StringBuilder sb = new StringBuilder();
+    writePrometheusHeader(sb);
+    writePrometheus(sb, "");
+    return sb.toString();
+  }
+
+  public static void writePrometheusHeader(@Nonnull StringBuilder sb) {
+    sb.append("# HELP notebook_http_requests_total Requests served, by route and status.\n");
+    sb.append("# TYPE notebook_http_requests_total counter\n");
+    sb.append("# HELP notebook_http_response_bytes_total Bytes written in responses, by route.\n");
+    sb.append("# TYPE notebook_http_response_bytes_total counter\n");
+    sb.append("# HELP notebook_http_request_duration_seconds Time from dispatch to the end of the response.\n");
+    sb.append("# TYPE notebook_http_request_duration_seconds histogram\n");
+  }
+
+  public void writePrometheus(@Nonnull StringBuilder sb, @Nonnull String extraLabels) {
+    for (Map.Entry<String, Route> entry : getRoutes().entrySet()) {
+      Route route = entry.getValue();
+      String labels = "route=\"" + escape(entry.getKey()) + "\"" + extraLabels;
+      for (int status = 0; status < route.statuses.length(); status++) {
+        long count = route.statuses.get(status);
+        if (count > 0) {
+          sb.append(RefString.format("notebook_http_requests_total{%s,status=\"%d\"} %d\n", labels, status, count));
+        }
+      }
+      sb.append(RefString.format("notebook_http_response_bytes_total{%s} %d\n", labels, route.bytes.sum()));
+      LatencyHistogram.Snapshot snapshot = route.latency.snapshot();
+      for (double le : BUCKET_SECONDS) {
+        sb.append(RefString.format("notebook_http_request_duration_seconds_bucket{%s,le=\"%s\"} %d\n", labels, le,
+            snapshot.countAtOrBelow((long) (le * 1e6))));
+      }
+      sb.append(RefString.format("notebook_http_request_duration_seconds_bucket{%s,le=\"+Inf\"} %d\n", labels, snapshot.getCount()));
+      sb.append(RefString.format("notebook_http_request_duration_seconds_sum{%s} %s\n", labels, Double.toString(snapshot.getSumMicros() / 1e6)));
+      sb.append(RefString.format("notebook_http_request_duration_seconds_count{%s} %d\n", labels, snapshot.getCount()));
+    }
+  }
+
+  @Nonnull
+  public JsonObject toJson() {
+    JsonObject json = new JsonObject();
+    for (Map.Entry<String, Route> entry : getRoutes().entrySet()) {
+      json.add(entry.getKey(), entry.getValue().toJson());
+    }
+    return json;
+  }
+
+  @Nonnull
+  public String toJsonString() {
+    return new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(toJson());
+  }
+
+  @Nonnull
+  private static String escape(@Nonnull String value) {
+    return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+  }
+
+  public static final class Route {
+    @Nonnull
+    private final String name;
+    private final AtomicLongArray statuses = new AtomicLongArray(600);
+    private final LongAdder bytes = new LongAdder();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private Route(@Nonnull String name) {
+      this.name = name;
+    }
+
+    @Nonnull
+    public String getName() {
+      return name;
+    }
+
+    public long getBytes() {
+      return bytes.sum();
+    }
+
+    @Nonnull
+    public LatencyHistogram getLatency() {
+      return latency;
+    }
+
+    public long getCount(int status) {
+      return status >= 0 && status < statuses.length() ? statuses.get(status) : 0;
+    }
+
+    public void record(int status, long bytes, long nanos) {
+      statuses.incrementAndGet(status >= 0 && status < statuses.length() ? status : 0);
+      this.bytes.add(bytes);
+      latency.record(nanos / 1000);
+    }
+
+    @Nonnull
+    public NanoHTTPD.Response.SendListener listener(final long startNanos) {
+      return (status, bytes) -> record(status, bytes, System.nanoTime() - startNanos);
+    }
+
+    @Nonnull
+    public JsonObject toJson() {
+      JsonObject json = new JsonObject();
+      LatencyHistogram.Snapshot snapshot = latency.snapshot();
+      json.addProperty("count", snapshot.getCount());
+      JsonObject statusJson = new JsonObject();
+      for (int status = 0; status < statuses.length(); status++) {
+        long count = statuses.get(status);
+        if (count > 0) statusJson.addProperty(Integer.toString(status), count);
+      }
+      json.add("status", statusJson);
+      json.addProperty("bytes", bytes.sum());
+      JsonObject latencyJson = new JsonObject();
+      latencyJson.addProperty("mean_ms", snapshot.getMeanMicros() / 1e3);
+      latencyJson.addProperty("p50_ms", snapshot.percentileMicros(50) / 1e3);
+      latencyJson.addProperty("p90_ms", snapshot.percentileMicros(90) / 1e3);
+      latencyJson.addProperty("p99_ms", snapshot.percentileMicros(99) / 1e3);
+      latencyJson.addProperty("p999_ms", snapshot.percentileMicros(99.9) / 1e3);
+      latencyJson.addProperty("max_ms", snapshot.getMaxMicros() / 1e3);
+      json.add("latency", latencyJson);
+      return json;
+    }
+  }
+}
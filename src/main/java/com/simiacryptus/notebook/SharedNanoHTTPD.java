@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import com.simiacryptus.util.Util;
+import org.apache.commons.text.StringEscapeUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
+
+public class SharedNanoHTTPD extends NanoHTTPD {
+  static final Logger log = LoggerFactory.getLogger(SharedNanoHTTPD.class);
+
+  public static final ExecutorService WORKER_POOL = Executors.newCachedThreadPool(new ThreadFactoryBuilder()
+      .setDaemon(true).setNameFormat("NanoHttpd Worker %d").build());
+  public static int PORT = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_HTTP_PORT", "0"));
+  private static final Random random = new Random();
+  private static final int BIND_ATTEMPTS = 10;
+  @Nullable
+  private static SharedNanoHTTPD INSTANCE = null;
+  private final Map<String, Mount> mounts;
+  @Nullable
+  private volatile SharedNanoHTTPD successor = null;
+
+  public SharedNanoHTTPD(final int port) {
+    this(port, new ConcurrentHashMap<>());
+  }
+
+  private SharedNanoHTTPD(final int port, @Nonnull final Map<String, Mount> mounts) {
+    super(port);
+    this.mounts = mounts;
+    setAsyncRunner(new ExecutorAsyncRunner(WORKER_POOL, AdmissionControl.MAX_CONNECTIONS));
+  }
+
+  @Nonnull
+  public static synchronized SharedNanoHTTPD getInstance() throws IOException {
+    if (null == INSTANCE) {
+      INSTANCE = bind(PORT, new ConcurrentHashMap<>());
+    } else if (!INSTANCE.isAlive()) {
+      // Mounted notebooks have already printed their URLs, so the same port is tried first
+      SharedNanoHTTPD previous = INSTANCE;
+      try {
+        previous.start(30000);
+        log.warn(RefString.format("Restarted shared notebook server at http://localhost:%d with %d notebooks",
+            previous.getListeningPort(), previous.getMountCount()));
+      } catch (IOException e) {
+        INSTANCE = bind(PORT, previous.mounts);
+        previous.successor = INSTANCE;
+        log.error(RefString.format("Shared notebook server could not rebind port %d; %d notebooks moved to http://localhost:%d",
+            previous.myPort, previous.getMountCount(), INSTANCE.getListeningPort()), e);
+      }
+    }
+    return INSTANCE;
+  }
+
+  @Nonnull
+  private static SharedNanoHTTPD bind(final int port, @Nonnull final Map<String, Mount> mounts) throws IOException {
+    IOException bindError = null;
+    for (int attempt = 0; attempt < BIND_ATTEMPTS; attempt++) {
+      SharedNanoHTTPD server = new SharedNanoHTTPD(port > 0 ? port : random.nextInt(2 * 1024) + 2 * 1024, mounts);
+      try {
+        server.start(30000);
+        log.info(RefString.format("Started shared notebook server at http://localhost:%d", server.getListeningPort()));
+        return server;
+      } catch (IOException e) {
+        bindError = e;
+        if (port > 0) break;
+      }
+    }
+    throw bindError;
+  }
+
+  public int getMountCount() {
+    return mounts.size();
+  }
+
+  // A server that could not be restarted hands its mounts to a replacement on another port
+  @Nonnull
+  public SharedNanoHTTPD current() {
+    SharedNanoHTTPD server = this;
+    while (null != server.successor) server = server.successor;
+    return server;
+  }
+
+  @Nonnull
+  public URI getURI(@Nonnull final String prefix) {
+    try {
+      return new URI(RefString.format("http://localhost:%d/%s/", getListeningPort(), prefix));
+    } catch (URISyntaxException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  public Closeable mount(@Nonnull final String prefix, final String title, @Nonnull final NanoHTTPD handler) {
+    if (prefix.isEmpty() || prefix.contains("/")) {
+      throw new IllegalArgumentException("Invalid mount prefix: " + prefix);
+    }
+    final Mount mount = new Mount(title, handler);
+    if (null != mounts.putIfAbsent(prefix, mount)) {
+      throw new IllegalStateException("Prefix already mounted: " + prefix);
+    }
+    return () -> mounts.remove(prefix, mount);
+  }
+
+  @Nonnull
+  public String getMetrics() {
+    StringBuilder sb = new StringBuilder();
+    ServerMetrics.writePrometheusHeader(sb);
+    for (Map.Entry<String, Mount> entry : new TreeMap<>(mounts).entrySet()) {
+      if (entry.getValue().handler instanceof FileNanoHTTPD) {
+        ((FileNanoHTTPD) entry.getValue().handler).getMetrics().writePrometheus(sb, ",notebook=\"" + entry.getKey() + "\"");
+      }
+    }
+    return sb.toString();
+  }
+
+  @Override
+  public Response serve(@Nonnull final IHTTPSession session) {
+    String requestPath = Util.stripPrefix(session.getUri(), "/");
+    int slash = requestPath.indexOf('/');
+    String prefix = slash < 0 ? requestPath : requestPath.substring(0, slash);
+    if (prefix.isEmpty()) {
+      return NanoHTTPD.newFixedLengthResponse(Response.Status.OK, "text/html", getIndexHtml());
+    }
+    if (slash < 0 && prefix.equals("metrics")) {
+      return NanoHTTPD.newFixedLengthResponse(Response.Status.OK, "text/plain; version=0.0.4", getMetrics());
+    }
+    Mount mount = mounts.get(prefix);
+    if (null == mount) {
+      return NanoHTTPD.newFixedLengthResponse(Response.Status.NOT_FOUND, "text/plain", "Not Found");
+    }
+    if (slash < 0) {
+      Response response = NanoHTTPD.newFixedLengthResponse(Response.Status.REDIRECT, "text/plain", "Moved");
+      response.addHeader("Location", "/" + prefix + "/");
+      return response;
+    }
+    return mount.handler.serve(new MountedSession(session, requestPath.substring(slash), mount.handler.getMaxBodySize()));
+  }
+
+  @Nonnull
+  protected String getIndexHtml() {
+    return "<html><head><title>Notebooks</title></head><body><h1>Notebooks</h1><ul>" +
+        mounts.entrySet().stream()
+            .sorted(Comparator.comparing(e -> String.valueOf(e.getValue().title)))
+            .map(e -> RefString.format("<li><a href=\"/%s/\">%s</a></li>", e.getKey(),
+                StringEscapeUtils.escapeHtml4(String.valueOf(e.getValue().title))))
+            .collect(Collectors.joining("\n")) +
+        "</ul></body></html>";
+  }
+
+  private static class Mount {
+    final String title;
+    @Nonnull
+    final NanoHTTPD handler;
+
+    private Mount(String title, @Nonnull NanoHTTPD handler) {
+      this.title = title;
+      this.handler = handler;
+    }
+  }
+
+  protected static class MountedSession implements IHTTPSession {
+    @Nonnull
+    protected final IHTTPSession inner;
+    protected final String uri;
+    protected final long maxBodySize;
+
+    public MountedSession(@Nonnull IHTTPSession inner, String uri, long maxBodySize) {
+      this.inner = inner;
+      this.uri = uri;
+      this.maxBodySize = maxBodySize;
+    }
+
+    @Override
+    public CookieHandler getCookies() {
+      return inner.getCookies();
+    }
+
+    @Override
+    public Map<String, String> getHeaders() {
+      return inner.getHeaders();
+    }
+
+    @Nonnull
+    @Override
+    public InputStream getInputStream() {
+      return inner.getInputStream();
+    }
+
+    @Nullable
+    @Override
+    public Method getMethod() {
+      return inner.getMethod();
+    }
+
+    @Override
+    public Map<String, String> getParms() {
+      return inner.getParms();
+    }
+
+    @Nullable
+    @Override
+    public String getQueryParameterString() {
+      return inner.getQueryParameterString();
+    }
+
+    @Override
+    public String getUri() {
+      return uri;
+    }
+
+    @Override
+    public void execute() throws IOException {
+      inner.execute();
+    }
+
+    @Override
+    public void parseBody(Map<String, String> files) throws IOException, ResponseException {
+      inner.parseBody(files, null, maxBodySize);
+    }
+
+    // The mounted server's limit applies, not the shared server's
+    @Override
+    public void parseBody(Map<String, String> files, @Nullable MultipartStreamParser.PartHandler handler) throws IOException, ResponseException {
+      inner.parseBody(files, handler, maxBodySize);
+    }
+
+    @Override
+    public void parseBody(Map<String, String> files, @Nullable MultipartStreamParser.PartHandler handler, long maxBodySize) throws IOException, ResponseException {
+      inner.parseBody(files, handler, maxBodySize);
+    }
+  }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.notebook;
+
+import com.google.common.hash.Hashing;
+import com.simiacryptus.util.Util;
+import com.vladsch.flexmark.ext.admonition.AdmonitionExtension;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+public class StaticAssets {
+  public static final String PREFIX = "assets/";
+  public static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+  public static final StaticAssets INSTANCE = new StaticAssets();
+
+  static {
+    INSTANCE.addResource("paint.css");
+    INSTANCE.addResource("paint.js");
+    INSTANCE.add("admonition.css", () -> AdmonitionExtension.getDefaultCSS().getBytes(StandardCharsets.UTF_8));
+    INSTANCE.add("admonition.js", () -> AdmonitionExtension.getDefaultScript().getBytes(StandardCharsets.UTF_8));
+  }
+
+  private final Map<String, Supplier<byte[]>> sources = new ConcurrentHashMap<>();
+  private final Map<String, Asset> byName = new ConcurrentHashMap<>();
+  private final Map<String, Asset> byPath = new ConcurrentHashMap<>();
+  private final Set<String> materialized = ConcurrentHashMap.newKeySet();
+
+  public void add(@Nonnull String name, @Nonnull Supplier<byte[]> source) {
+    sources.put(name, source);
+    Asset previous = byName.remove(name);
+    if (null != previous) byPath.remove(previous.path);
+  }
+
+  public void addResource(@Nonnull String name) {
+    add(name, () -> {
+      try (InputStream in = StaticAssets.class.getClassLoader().getResourceAsStream(name)) {
+        if (null == in) throw new IOException("Resource not found: " + name);
+        return IOUtils.toByteArray(in);
+      } catch (IOException e) {
+        throw Util.throwException(e);
+      }
+    });
+  }
+
+  @Nonnull
+  public Asset get(@Nonnull String name) {
+    Asset asset = byName.get(name);
+    if (null != asset) return asset;
+    Supplier<byte[]> source = sources.get(name);
+    if (null == source) throw new IllegalArgumentException("Unknown asset: " + name);
+    asset = byName.computeIfAbsent(name, n -> new Asset(n, source.get()));
+    byPath.put(asset.path, asset);
+    return asset;
+  }
+
+  @Nonnull
+  public String getPath(@Nonnull String name) {
+    return get(name).path;
+  }
+
+  @Nullable
+  public Asset resolve(@Nonnull String path) {
+    Asset asset = byPath.get(path);
+    if (null != asset || !path.startsWith(PREFIX)) return asset;
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    if (!sources.containsKey(name)) return null;
+    asset = get(name);
+    return asset.path.equals(path) ? asset : null;
+  }
+
+  @Nonnull
+  public String materialize(@Nonnull File root, @Nonnull String name) {
+    // Reports are also opened straight from disk, so each versioned asset is written next to them once
+    Asset asset = get(name);
+    File file = new File(root, asset.path);
+    if (materialized.add(file.getAbsolutePath()) && !file.exists()) {
+      try {
+        FileUtils.writeByteArrayToFile(file, asset.bytes);
+      } catch (IOException e) {
+        materialized.remove(file.getAbsolutePath());
+        throw Util.throwException(e);
+      }
+    }
+    return asset.path;
+  }
+
+  public static final class Asset {
+    @Nonnull
+    public final String name;
+    @Nonnull
+    public final String version;
+    @Nonnull
+    public final String path;
+    @Nonnull
+    private final byte[] bytes;
+
+    private Asset(@Nonnull String name, @Nonnull byte[] bytes) {
+      this.name = name;
+      this.bytes = bytes;
+      this.version = Hashing.murmur3_128().hashBytes(bytes).toString().substring(0, 12);
+      this.path = PREFIX + version + "/" + name;
+    }
+
+    @Nonnull
+    public byte[] getBytes() {
+      return bytes.clone();
+    }
+
+    @Nonnull
+    NanoHTTPD.Response toResponse(@Nonnull NanoHTTPD.IHTTPSession session) {
+      String etag = "\"" + version + "\"";
+      NanoHTTPD.Response response;
+      if (etag.equals(session.getHeaders().get("if-none-match"))) {
+        response = NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_MODIFIED, null, (String) null);
+      } else {
+        response = NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, FileNanoHTTPD.getMimeType(name),
+            new ByteArrayInputStream(bytes), bytes.length);
+        response.setGzipCacheKey(path);
+      }
+      response.addHeader("ETag", etag);
+      response.addHeader("Cache-Control", CACHE_CONTROL);
+      return response;
+    }
+  }
+}
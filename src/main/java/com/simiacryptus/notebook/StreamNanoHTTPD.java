@@ -21,25 +21,29 @@ package com.simiacryptus.notebook;
 
 import com.simiacryptus.ref.wrappers.RefConsumer;
 import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.ref.wrappers.RefSystem;
 import com.simiacryptus.util.ReportingUtil;
 import com.simiacryptus.util.Util;
-import com.simiacryptus.util.io.AsyncOutputStream;
 import com.simiacryptus.util.io.TeeOutputStream;
 
 import javax.annotation.Nonnull;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Semaphore;
 import java.util.function.Function;
 
 public class StreamNanoHTTPD extends FileNanoHTTPD {
+  public static int PIPE_CAPACITY = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_PIPE_CAPACITY", Integer.toString(256 * 1024)));
+  public static int BROADCAST_CAPACITY = Integer.parseInt(RefSystem.getProperty("NOTEBOOK_BROADCAST_CAPACITY", Integer.toString(1024 * 1024)));
   @Nonnull
   public final TeeOutputStream dataReciever;
   @Nonnull
   protected final URI gatewayUri;
   @Nonnull
+  protected final BroadcastLog broadcast;
+  @Nonnull
   private final File primaryFile;
   private final String mimeType;
   private boolean autobrowse = true;
@@ -53,10 +57,12 @@ public class StreamNanoHTTPD extends FileNanoHTTPD {
     }
     this.primaryFile = primaryFile;
     this.mimeType = mimeType;
-    dataReciever = new TeeOutputStream(new FileOutputStream(primaryFile), true) {
+    this.broadcast = new BroadcastLog(primaryFile, BROADCAST_CAPACITY);
+    dataReciever = new TeeOutputStream(broadcast.getOutputStream(), false) {
       @Override
       public void close() {
         try {
+          broadcast.close();
           Thread.sleep(100);
           StreamNanoHTTPD.this.stop();
         } catch (@Nonnull final Exception e) {
@@ -83,29 +89,35 @@ public class StreamNanoHTTPD extends FileNanoHTTPD {
   @Nonnull
   public static Function<IHTTPSession, Response> asyncHandler(@Nonnull final ExecutorService pool,
                                                               final String mimeType, @Nonnull final RefConsumer<OutputStream> logic, final boolean async) {
+    return asyncHandler(pool, mimeType, logic, async, PIPE_CAPACITY);
+  }
+
+  @Nonnull
+  public static Function<IHTTPSession, Response> asyncHandler(@Nonnull final ExecutorService pool,
+                                                              final String mimeType, @Nonnull final RefConsumer<OutputStream> logic, final boolean async,
+                                                              final int capacity) {
     return session -> {
-      @Nonnull final PipedInputStream snk = new PipedInputStream();
-      @Nonnull final Semaphore onComplete = new Semaphore(0);
+      if (!async) {
+        // The whole output is produced before responding, so there is nothing to pipe
+        @Nonnull final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+          pool.submit(() -> logic.accept(buffer)).get();
+        } catch (@Nonnull final InterruptedException | ExecutionException e) {
+          throw Util.throwException(e);
+        }
+        final byte[] bytes = buffer.toByteArray();
+        return NanoHTTPD.newFixedLengthResponse(Response.Status.OK, mimeType, new ByteArrayInputStream(bytes), bytes.length);
+      }
+      @Nonnull final ByteRingBuffer pipe = new ByteRingBuffer(capacity);
       pool.submit(() -> {
         try (@Nonnull
-             OutputStream out = new BufferedOutputStream(new AsyncOutputStream(new PipedOutputStream(snk)))) {
-          try {
-            logic.accept(out);
-          } finally {
-            onComplete.release();
-          }
+             OutputStream out = pipe.getOutputStream()) {
+          logic.accept(out);
         } catch (@Nonnull final IOException e) {
           throw Util.throwException(e);
         }
       });
-      if (!async) {
-        try {
-          onComplete.acquire();
-        } catch (@Nonnull final InterruptedException e) {
-          throw Util.throwException(e);
-        }
-      }
-      return NanoHTTPD.newChunkedResponse(Response.Status.OK, mimeType, new BufferedInputStream(snk));
+      return NanoHTTPD.newChunkedResponse(Response.Status.OK, mimeType, pipe.getInputStream());
     };
   }
 
@@ -139,19 +151,26 @@ public class StreamNanoHTTPD extends FileNanoHTTPD {
       requestPath = requestPath.substring(1);
     }
     if (requestPath.equals(primaryFile.getName())) {
-      try {
-        @Nonnull final Response response = NanoHTTPD.newChunkedResponse(Response.Status.OK, mimeType,
-            new BufferedInputStream(dataReciever.newInputStream()));
-        response.setGzipEncoding(false);
-        return response;
-      } catch (@Nonnull final IOException e) {
-        throw Util.throwException(e);
-      }
+      // Each viewer tails the shared log at its own cursor; a slow viewer never blocks the writer
+      @Nonnull final Response response = NanoHTTPD.newChunkedResponse(Response.Status.OK, mimeType,
+          broadcast.subscribe());
+      response.setGzipEncoding(false);
+      return response;
     } else {
       return super.serve(session);
     }
   }
 
+  @Override
+  public void stop() {
+    super.stop();
+    try {
+      broadcast.dispose();
+    } catch (@Nonnull final IOException e) {
+      log.warn("Error closing " + primaryFile, e);
+    }
+  }
+
   @Override
   protected boolean useGzipWhenAccepted(final Response r) {
     return false;
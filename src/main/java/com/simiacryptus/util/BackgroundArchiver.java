@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.simiacryptus.notebook.MarkdownNotebookOutput;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+public class BackgroundArchiver {
+  public static long INTERVAL_MS = Long.parseLong(System.getProperty("S3_ARCHIVE_INTERVAL_MS", "10000"));
+  public static long QUIET_MS = Long.parseLong(System.getProperty("S3_ARCHIVE_QUIET_MS", "2000"));
+  public static int BATCH_FILES = Integer.parseInt(System.getProperty("S3_ARCHIVE_BATCH_FILES", "200"));
+  public static double BYTES_PER_SECOND = Double.parseDouble(System.getProperty("S3_ARCHIVE_BYTES_PER_SECOND", "0"));
+  private static final Logger logger = LoggerFactory.getLogger(BackgroundArchiver.class);
+
+  @Nonnull
+  private final File root;
+  @Nonnull
+  private final Supplier<URI> target;
+  @Nonnull
+  private final Function<URI, AmazonS3> clients;
+  @Nonnull
+  private final Predicate<File> deferred;
+  @Nonnull
+  private final ScheduledExecutorService scheduler;
+  @Nullable
+  private final RateLimiter rateLimiter;
+  private final Map<File, String> shipped = new ConcurrentHashMap<>();
+  private final LongAdder batches = new LongAdder();
+  private final LongAdder filesShipped = new LongAdder();
+  private final LongAdder bytesShipped = new LongAdder();
+  private volatile boolean closed = false;
+  @Nullable
+  private Session session = null;
+
+  public BackgroundArchiver(@Nonnull File root, @Nonnull Supplier<URI> target, @Nonnull Function<URI, AmazonS3> clients,
+                            @Nonnull Predicate<File> deferred) {
+    this.root = root;
+    this.target = target;
+    this.clients = clients;
+    this.deferred = deferred;
+    this.rateLimiter = BYTES_PER_SECOND > 0 ? RateLimiter.create(BYTES_PER_SECOND) : null;
+    this.scheduler = Executors.newSingleThreadScheduledExecutor(
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-archive-%d").build());
+    this.scheduler.scheduleWithFixedDelay(this::tick, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+  }
+
+  @Nullable
+  public static BackgroundArchiver attach(@Nonnull MarkdownNotebookOutput log, @Nonnull Function<URI, AmazonS3> clients) {
+    if (null == log.getArchiveHome()) {
+      // Most runs never archive; an archive home set later is still shipped in one pass on completion
+      log.onComplete(() -> {
+        if (null != log.getArchiveHome()) create(log, clients).close();
+      });
+      return null;
+    }
+    BackgroundArchiver archiver = create(log, clients);
+    log.onComplete(archiver::close);
+    return archiver;
+  }
+
+  @Nonnull
+  private static BackgroundArchiver create(@Nonnull MarkdownNotebookOutput log, @Nonnull Function<URI, AmazonS3> clients) {
+    File root = log.getRoot();
+    String reportPrefix = log.getFileName() + ".";
+    // The report itself is rewritten on every flush, so it only ships with the final delta
+    return new BackgroundArchiver(root, () -> {
+      URI archiveHome = log.getArchiveHome();
+      return null == archiveHome ? null : archiveHome.resolve(root.getName() + "/");
+    }, clients, file -> file.getParentFile().equals(root) && file.getName().startsWith(reportPrefix));
+  }
+
+  public long getBatches() {
+    return batches.sum();
+  }
+
+  public long getFilesShipped() {
+    return filesShipped.sum();
+  }
+
+  public long getBytesShipped() {
+    return bytesShipped.sum();
+  }
+
+  public void close() {
+    if (closed) return;
+    closed = true;
+    scheduler.shutdown();
+    try {
+      scheduler.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      try {
+        Session session = getSession();
+        if (null != session) {
+          ship(session, true);
+          logger.info(RefString.format("Archived %s to %s: %d files, %.1f MB in %d batches",
+              root, session.target, getFilesShipped(), getBytesShipped() / 1e6, getBatches()));
+        }
+      } catch (Throwable e) {
+        logger.warn(RefString.format("Error archiving %s", root), e);
+      } finally {
+        if (null != this.session) this.session.uploader.close();
+      }
+    }
+  }
+
+  private synchronized void tick() {
+    if (closed) return;
+    try {
+      Session session = getSession();
+      if (null != session) ship(session, false);
+    } catch (Throwable e) {
+      logger.warn(RefString.format("Error archiving %s", root), e);
+    }
+  }
+
+  @Nullable
+  private Session getSession() {
+    URI target = this.target.get();
+    if (null == target) return null;
+    if (null == session || !session.target.equals(target)) {
+      if (null != session) session.uploader.close();
+      session = new Session(target, clients.apply(target));
+      shipped.clear();
+    }
+    return session;
+  }
+
+  private void ship(@Nonnull Session session, boolean all) {
+    session.uploader.resetErrorBudget();
+    while (true) {
+      List<File> batch = scan(all);
+      if (batch.isEmpty()) return;
+      Map<File, CompletableFuture<URL>> submitted = new LinkedHashMap<>();
+      Map<File, String> stamps = new HashMap<>();
+      for (File file : batch) {
+        long length = file.length();
+        if (null != rateLimiter && length > 0) rateLimiter.acquire((int) Math.min(length, Integer.MAX_VALUE));
+        stamps.put(file, stamp(file));
+        String key = S3Uploader.getKey(session.target, root, file);
+        submitted.put(file, session.uploader.submit(file, session.target.getHost(), key));
+      }
+      try {
+        session.uploader.awaitAll();
+      } finally {
+        // Failed files keep their old stamp and are picked up again by a later pass
+        submitted.forEach((file, future) -> {
+          if (future.isDone() && !future.isCompletedExceptionally()) shipped.put(file, stamps.get(file));
+        });
+        session.manifest.save();
+        batches.increment();
+      }
+      if (!all && closed) return;
+    }
+  }
+
+  @Nonnull
+  private List<File> scan(boolean all) {
+    long quietBefore = System.currentTimeMillis() - QUIET_MS;
+    List<File> candidates = new ArrayList<>();
+    collect(root, all, quietBefore, candidates);
+    candidates.sort(Comparator.comparingLong(File::lastModified));
+    return candidates.size() > BATCH_FILES ? new ArrayList<>(candidates.subList(0, BATCH_FILES)) : candidates;
+  }
+
+  private void collect(@Nonnull File dir, boolean all, long quietBefore, @Nonnull List<File> candidates) {
+    File[] files = dir.listFiles();
+    if (null == files) return;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        collect(file, all, quietBefore, candidates);
+      } else if (!SyncManifest.isManifest(file) && !file.getName().endsWith(".tmp")) {
+        if (stamp(file).equals(shipped.get(file))) continue;
+        // Files still being written are left for a later pass
+        if (!all && (file.lastModified() > quietBefore || deferred.test(file))) continue;
+        candidates.add(file);
+      }
+    }
+  }
+
+  @Nonnull
+  private static String stamp(@Nonnull File file) {
+    return file.lastModified() + ":" + file.length();
+  }
+
+  private final class Session {
+    @Nonnull
+    final URI target;
+    @Nonnull
+    final SyncManifest manifest;
+    @Nonnull
+    final ParallelUploader uploader;
+    final Map<String, S3ObjectSummary> remote = new ConcurrentHashMap<>();
+
+    Session(@Nonnull URI target, @Nonnull AmazonS3 s3) {
+      this.target = target;
+      String bucket = target.getHost();
+      String prefix = target.getPath().replaceAll("//", "/").replaceAll("^/", "");
+      // One listing per session lets a restarted run pick up where the last one stopped
+      S3Uploader.listObjects(s3, bucket, prefix).forEach(summary -> remote.put(summary.getKey(), summary));
+      this.manifest = SyncManifest.load(root, target.toString());
+      this.uploader = new ParallelUploader(s3)
+          .setCheck((file, b, key) -> manifest.isCurrent(file, remote.get(key)))
+          .setListener((file, key, etag) -> {
+            manifest.uploaded(file, etag);
+            S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setBucketName(bucket);
+            summary.setKey(key);
+            summary.setSize(file.length());
+            summary.setETag(etag);
+            remote.put(key, summary);
+            filesShipped.increment();
+            bytesShipped.add(file.length());
+          });
+      logger.info(RefString.format("Archiving %s to %s in the background (%d objects already present)",
+          root, target, remote.size()));
+    }
+  }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.MultiObjectDeleteException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+public class BatchDeleter implements AutoCloseable {
+  // S3 rejects DeleteObjects requests with more than 1000 keys
+  public static int BATCH_SIZE = Math.min(1000, Integer.parseInt(System.getProperty("S3_DELETE_BATCH", "1000")));
+  public static int MAX_IN_FLIGHT = Integer.parseInt(System.getProperty("S3_DELETE_IN_FLIGHT", "8"));
+  private static final Logger logger = LoggerFactory.getLogger(BatchDeleter.class);
+
+  @Nonnull
+  private final AmazonS3 s3;
+  @Nonnull
+  private final String bucket;
+  @Nonnull
+  private final ExecutorService executor;
+  @Nonnull
+  private final Semaphore queued;
+  private final List<Future<?>> pending = new ArrayList<>();
+  private List<String> batch = new ArrayList<>();
+  private final long startNanos = System.nanoTime();
+  private final AtomicLong lastLog = new AtomicLong(System.currentTimeMillis());
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder deleted = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+  private final Queue<String> failedKeys = new ConcurrentLinkedQueue<>();
+
+  public BatchDeleter(@Nonnull AmazonS3 s3, @Nonnull String bucket) {
+    this(s3, bucket, MAX_IN_FLIGHT);
+  }
+
+  public BatchDeleter(@Nonnull AmazonS3 s3, @Nonnull String bucket, int maxInFlight) {
+    this.s3 = s3;
+    this.bucket = bucket;
+    this.executor = Executors.newFixedThreadPool(Math.max(1, maxInFlight),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-delete-%d").build());
+    // Holds the listing back once every worker has a batch and one more is waiting
+    this.queued = new Semaphore(Math.max(1, maxInFlight) * 2);
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getDeleted() {
+    return deleted.sum();
+  }
+
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  @Nonnull
+  public List<String> getFailedKeys() {
+    return new ArrayList<>(failedKeys);
+  }
+
+  public double getSeconds() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  public synchronized void add(@Nonnull String key) {
+    batch.add(key);
+    if (batch.size() >= BATCH_SIZE) flush();
+  }
+
+  public synchronized void flush() {
+    if (batch.isEmpty()) return;
+    List<String> keys = batch;
+    batch = new ArrayList<>();
+    try {
+      queued.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Util.throwException(e);
+    }
+    try {
+      pending.add(executor.submit(() -> {
+        try {
+          delete(keys);
+        } finally {
+          queued.release();
+        }
+      }));
+    } catch (RejectedExecutionException e) {
+      queued.release();
+      throw e;
+    }
+  }
+
+  public void awaitAll() {
+    flush();
+    List<Future<?>> futures;
+    synchronized (this) {
+      futures = new ArrayList<>(pending);
+      pending.clear();
+    }
+    for (Future<?> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw Util.throwException(e);
+      } catch (ExecutionException e) {
+        throw Util.throwException(e.getCause());
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    double seconds = getSeconds();
+    return RefString.format("%d keys deleted in %.1fs (%d requests, %d retries, %d failed, %.0f keys/s)",
+        getDeleted(), seconds, getRequests(), getRetries(), failedKeys.size(), getDeleted() / Math.max(seconds, 1e-3));
+  }
+
+  private void delete(@Nonnull List<String> keys) {
+    for (int attempt = 1; !keys.isEmpty(); attempt++) {
+      List<String> remaining = keys;
+      try {
+        requests.increment();
+        ParallelUploader.callWithRetry(RefString.format("%d keys in s3://%s", remaining.size(), bucket),
+            () -> s3.deleteObjects(new DeleteObjectsRequest(bucket).withQuiet(true)
+                .withKeys(remaining.toArray(new String[]{}))), retries);
+        deleted.add(remaining.size());
+        keys = new ArrayList<>();
+      } catch (MultiObjectDeleteException e) {
+        // Only the keys reported as errors are resubmitted; the rest of the batch is already gone
+        keys = e.getErrors().stream().map(MultiObjectDeleteException.DeleteError::getKey).collect(Collectors.toList());
+        deleted.add(remaining.size() - keys.size());
+        if (attempt >= ParallelUploader.MAX_ATTEMPTS) {
+          logger.warn(RefString.format("Giving up on %d keys in s3://%s: %s", keys.size(), bucket, e.getMessage()));
+          failedKeys.addAll(keys);
+          break;
+        }
+        retries.increment();
+        sleep(ParallelUploader.backoff(attempt));
+      } catch (Throwable e) {
+        logger.warn(RefString.format("Error deleting %d keys in s3://%s", remaining.size(), bucket), e);
+        failedKeys.addAll(remaining);
+        break;
+      }
+    }
+    logProgress();
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Util.throwException(e);
+    }
+  }
+
+  private void logProgress() {
+    long now = System.currentTimeMillis();
+    long last = lastLog.get();
+    if (now - last >= ParallelUploader.PROGRESS_INTERVAL_MS && lastLog.compareAndSet(last, now)) {
+      logger.info("Delete progress: " + this);
+    }
+  }
+}
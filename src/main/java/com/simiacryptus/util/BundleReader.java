@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.simiacryptus.notebook.FileHTTPD;
+import com.simiacryptus.notebook.FileNanoHTTPD;
+import com.simiacryptus.notebook.NanoHTTPD;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+public class BundleReader {
+  private static final int EOCD_SIGNATURE = 0x06054b50;
+  private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+  private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+  private static final int CENTRAL_SIGNATURE = 0x02014b50;
+  private static final int LOCAL_SIGNATURE = 0x04034b50;
+  private static final int EOCD_SIZE = 22;
+  private static final int TAIL_SIZE = EOCD_SIZE + 0xFFFF + 20;
+  // Local headers usually repeat the central extra field; this slack avoids a second request when they differ
+  private static final int LOCAL_SLACK = 1024;
+  // Closing a ranged body with this much or less left unread drains it so the connection can be reused
+  private static final int DRAIN_LIMIT = 64 * 1024;
+
+  @Nonnull
+  private final AmazonS3 s3;
+  @Nonnull
+  private final String bucket;
+  @Nonnull
+  private final String key;
+  private final long length;
+  private final Map<String, Entry> entries;
+  private final LongAdder requests = new LongAdder();
+
+  public BundleReader(@Nonnull AmazonS3 s3, @Nonnull String bucket, @Nonnull String key) {
+    this.s3 = s3;
+    this.bucket = bucket;
+    this.key = key;
+    requests.increment();
+    this.length = ParallelUploader.callWithRetry(key, () -> s3.getObjectMetadata(bucket, key)).getContentLength();
+    this.entries = Collections.unmodifiableMap(readIndex());
+  }
+
+  @Nonnull
+  public Set<String> getNames() {
+    return entries.keySet();
+  }
+
+  @Nullable
+  public Entry getEntry(@Nonnull String name) {
+    return entries.get(name);
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  @Nonnull
+  public InputStream open(@Nonnull String name) throws IOException {
+    Entry entry = entries.get(name);
+    if (null == entry) throw new FileNotFoundException(RefString.format("%s not found in s3://%s/%s", name, bucket, key));
+    long guess = 30 + entry.headerGuess + entry.compressedSize + LOCAL_SLACK;
+    InputStream in = range(entry.offset, Math.min(length, entry.offset + guess) - 1);
+    byte[] header = new byte[30];
+    IOUtils.readFully(in, header);
+    ByteBuffer buffer = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+    if (buffer.getInt(0) != LOCAL_SIGNATURE) {
+      in.close();
+      throw new IOException(RefString.format("Bad local header for %s in s3://%s/%s", name, bucket, key));
+    }
+    int skip = (buffer.getShort(26) & 0xFFFF) + (buffer.getShort(28) & 0xFFFF);
+    long dataStart = entry.offset + 30 + skip;
+    if (dataStart + entry.compressedSize > entry.offset + guess) {
+      in.close();
+      in = range(dataStart, dataStart + entry.compressedSize - 1);
+    } else {
+      IOUtils.skipFully(in, skip);
+    }
+    InputStream data = new BoundedInputStream(in, entry.compressedSize);
+    if (entry.method == ZipEntry.DEFLATED) {
+      Inflater inflater = new Inflater(true);
+      return new InflaterInputStream(data, inflater, 64 * 1024) {
+        @Override
+        public void close() throws IOException {
+          try {
+            super.close();
+          } finally {
+            inflater.end();
+          }
+        }
+      };
+    }
+    return data;
+  }
+
+  @Nonnull
+  public byte[] read(@Nonnull String name) throws IOException {
+    try (InputStream in = open(name)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  @Nonnull
+  public Closeable serve(@Nonnull FileHTTPD httpd, @Nonnull String prefix) {
+    return httpd.addGET(prefix, session -> {
+      String name = Util.stripPrefix(Util.stripPrefix(session.getUri(), "/").substring(prefix.length()), "/");
+      Entry entry = entries.get(name);
+      if (null == entry) {
+        return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_FOUND, "text/plain", "Not Found");
+      }
+      // The key can be rewritten in place, so clients revalidate against the entry checksum
+      String etag = RefString.format("\"%08x-%d\"", entry.crc, entry.size);
+      NanoHTTPD.Response response;
+      if (etag.equals(session.getHeaders().get("if-none-match"))) {
+        response = NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.NOT_MODIFIED, null, (String) null);
+      } else {
+        try {
+          response = NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, FileNanoHTTPD.getMimeType(name),
+              open(name), entry.size);
+        } catch (IOException e) {
+          throw Util.throwException(e);
+        }
+      }
+      response.addHeader("ETag", etag);
+      response.addHeader("Cache-Control", "no-cache");
+      return response;
+    });
+  }
+
+  @Nonnull
+  private Map<String, Entry> readIndex() {
+    try {
+      long tailStart = Math.max(0, length - TAIL_SIZE);
+      byte[] tail = readRange(tailStart, length - 1);
+      ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+      int eocd = -1;
+      for (int i = tail.length - EOCD_SIZE; i >= 0; i--) {
+        if (buffer.getInt(i) == EOCD_SIGNATURE) {
+          eocd = i;
+          break;
+        }
+      }
+      if (eocd < 0) throw new IOException(RefString.format("No zip index found in s3://%s/%s", bucket, key));
+      long count = buffer.getShort(eocd + 10) & 0xFFFF;
+      long directorySize = buffer.getInt(eocd + 12) & 0xFFFFFFFFL;
+      long directoryOffset = buffer.getInt(eocd + 16) & 0xFFFFFFFFL;
+      if (eocd >= 20 && buffer.getInt(eocd - 20) == ZIP64_LOCATOR_SIGNATURE) {
+        long recordOffset = buffer.getLong(eocd - 12);
+        ByteBuffer record = recordOffset >= tailStart
+            ? (ByteBuffer) ByteBuffer.wrap(tail, (int) (recordOffset - tailStart), 56).slice().order(ByteOrder.LITTLE_ENDIAN)
+            : ByteBuffer.wrap(readRange(recordOffset, recordOffset + 55)).order(ByteOrder.LITTLE_ENDIAN);
+        if (record.getInt(0) != ZIP64_EOCD_SIGNATURE) throw new IOException("Bad zip64 end of central directory");
+        count = record.getLong(32);
+        directorySize = record.getLong(40);
+        directoryOffset = record.getLong(48);
+      }
+      if (count == 0) return new LinkedHashMap<>();
+      ByteBuffer directory = directoryOffset >= tailStart
+          ? (ByteBuffer) ByteBuffer.wrap(tail, (int) (directoryOffset - tailStart), (int) directorySize).slice().order(ByteOrder.LITTLE_ENDIAN)
+          : ByteBuffer.wrap(readRange(directoryOffset, directoryOffset + directorySize - 1)).order(ByteOrder.LITTLE_ENDIAN);
+      return parseDirectory(directory, count);
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  private static Map<String, Entry> parseDirectory(@Nonnull ByteBuffer directory, long count) throws IOException {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    int position = 0;
+    for (long i = 0; i < count; i++) {
+      if (directory.getInt(position) != CENTRAL_SIGNATURE) throw new IOException("Bad central directory entry");
+      int method = directory.getShort(position + 10) & 0xFFFF;
+      long crc = directory.getInt(position + 16) & 0xFFFFFFFFL;
+      long compressedSize = directory.getInt(position + 20) & 0xFFFFFFFFL;
+      long size = directory.getInt(position + 24) & 0xFFFFFFFFL;
+      int nameLength = directory.getShort(position + 28) & 0xFFFF;
+      int extraLength = directory.getShort(position + 30) & 0xFFFF;
+      int commentLength = directory.getShort(position + 32) & 0xFFFF;
+      long offset = directory.getInt(position + 42) & 0xFFFFFFFFL;
+      byte[] nameBytes = new byte[nameLength];
+      ((ByteBuffer) directory.duplicate().position(position + 46)).get(nameBytes);
+      String name = new String(nameBytes, StandardCharsets.UTF_8);
+      // Sizes and offsets that overflow 32 bits live in the zip64 extra field, in this fixed order
+      int extra = position + 46 + nameLength;
+      int extraEnd = extra + extraLength;
+      while (extra + 4 <= extraEnd) {
+        int id = directory.getShort(extra) & 0xFFFF;
+        int dataSize = directory.getShort(extra + 2) & 0xFFFF;
+        if (id == 0x0001) {
+          int field = extra + 4;
+          if (size == 0xFFFFFFFFL) {
+            size = directory.getLong(field);
+            field += 8;
+          }
+          if (compressedSize == 0xFFFFFFFFL) {
+            compressedSize = directory.getLong(field);
+            field += 8;
+          }
+          if (offset == 0xFFFFFFFFL) offset = directory.getLong(field);
+        }
+        extra += 4 + dataSize;
+      }
+      if (!name.endsWith("/")) {
+        entries.put(name, new Entry(name, method, crc, compressedSize, size, offset, nameLength + extraLength));
+      }
+      position += 46 + nameLength + extraLength + commentLength;
+    }
+    return entries;
+  }
+
+  @Nonnull
+  private byte[] readRange(long start, long end) throws IOException {
+    try (InputStream in = range(start, end)) {
+      return IOUtils.toByteArray(in, end - start + 1);
+    }
+  }
+
+  @Nonnull
+  private InputStream range(long start, long end) {
+    requests.increment();
+    S3Object object = ParallelUploader.callWithRetry(key, () -> s3.getObject(new GetObjectRequest(bucket, key).withRange(start, end)));
+    S3ObjectInputStream content = object.getObjectContent();
+    return new FilterInputStream(content) {
+      @Override
+      public void close() throws IOException {
+        try {
+          // Ranges overshoot the entry by the header slack; anything much larger is cheaper to abort than to read
+          if (IOUtils.skip(content, DRAIN_LIMIT + 1) > DRAIN_LIMIT) content.abort();
+        } finally {
+          content.close();
+        }
+      }
+    };
+  }
+
+  public static final class Entry {
+    @Nonnull
+    public final String name;
+    public final int method;
+    public final long crc;
+    public final long compressedSize;
+    public final long size;
+    public final long offset;
+    private final int headerGuess;
+
+    private Entry(@Nonnull String name, int method, long crc, long compressedSize, long size, long offset, int headerGuess) {
+      this.name = name;
+      this.method = method;
+      this.crc = crc;
+      this.compressedSize = compressedSize;
+      this.size = size;
+      this.offset = offset;
+      this.headerGuess = headerGuess;
+    }
+  }
+}
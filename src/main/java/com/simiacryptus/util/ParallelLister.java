@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+public class ParallelLister implements AutoCloseable {
+  public static int MAX_IN_FLIGHT = Integer.parseInt(System.getProperty("S3_LIST_IN_FLIGHT", "16"));
+  public static String DELIMITER = System.getProperty("S3_LIST_DELIMITER", "/");
+
+  @Nonnull
+  private final AmazonS3 s3;
+  @Nonnull
+  private final ExecutorService executor;
+  private final long startNanos = System.nanoTime();
+  private final LongAdder requests = new LongAdder();
+  private final LongAdder keys = new LongAdder();
+  private final LongAdder prefixes = new LongAdder();
+  private final LongAdder retries = new LongAdder();
+
+  public ParallelLister(@Nonnull AmazonS3 s3) {
+    this(s3, MAX_IN_FLIGHT);
+  }
+
+  public ParallelLister(@Nonnull AmazonS3 s3, int maxInFlight) {
+    this.s3 = s3;
+    this.executor = Executors.newFixedThreadPool(Math.max(1, maxInFlight),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-list-%d").build());
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  public long getKeys() {
+    return keys.sum();
+  }
+
+  public long getPrefixes() {
+    return prefixes.sum();
+  }
+
+  public long getRetries() {
+    return retries.sum();
+  }
+
+  public double getSeconds() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  @Nonnull
+  public List<S3ObjectSummary> list(@Nonnull String bucket, @Nonnull String prefix) {
+    Queue<S3ObjectSummary> summaries = new ConcurrentLinkedQueue<>();
+    list(bucket, prefix, summaries::add);
+    return new ArrayList<>(summaries);
+  }
+
+  // The consumer is called concurrently from the listing threads
+  public void list(@Nonnull String bucket, @Nonnull String prefix, @Nonnull Consumer<S3ObjectSummary> consumer) {
+    // A flat page covers a small tree in a single request; only larger trees fan out across common prefixes
+    ObjectListing first = request(bucket, prefix, () -> s3.listObjects(new ListObjectsRequest()
+        .withBucketName(bucket).withPrefix(prefix)));
+    if (!first.isTruncated()) {
+      emit(first, consumer);
+      return;
+    }
+    try {
+      listPrefix(bucket, prefix, consumer).join();
+    } catch (CompletionException e) {
+      throw Util.throwException(null == e.getCause() ? e : e.getCause());
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+
+  @Override
+  public String toString() {
+    double seconds = getSeconds();
+    return RefString.format("%d keys under %d prefixes in %.1fs (%d requests, %d retries, %.0f keys/s)",
+        getKeys(), getPrefixes(), seconds, getRequests(), getRetries(), getKeys() / Math.max(seconds, 1e-3));
+  }
+
+  @Nonnull
+  private CompletableFuture<Void> listPrefix(@Nonnull String bucket, @Nonnull String prefix, @Nonnull Consumer<S3ObjectSummary> consumer) {
+    prefixes.increment();
+    // Each prefix pages iteratively; children are chained rather than joined so no worker blocks on another
+    return CompletableFuture.supplyAsync(() -> {
+      List<CompletableFuture<Void>> children = new ArrayList<>();
+      ObjectListing listing = request(bucket, prefix, () -> s3.listObjects(new ListObjectsRequest()
+          .withBucketName(bucket).withPrefix(prefix).withDelimiter(DELIMITER)));
+      while (true) {
+        emit(listing, consumer);
+        for (String child : listing.getCommonPrefixes()) {
+          children.add(listPrefix(bucket, child, consumer));
+        }
+        if (!listing.isTruncated()) break;
+        ObjectListing previous = listing;
+        listing = request(bucket, prefix, () -> s3.listNextBatchOfObjects(previous));
+      }
+      return children;
+    }, executor).thenCompose(children -> CompletableFuture.allOf(children.toArray(new CompletableFuture[]{})));
+  }
+
+  private void emit(@Nonnull ObjectListing listing, @Nonnull Consumer<S3ObjectSummary> consumer) {
+    for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+      consumer.accept(summary);
+    }
+    keys.add(listing.getObjectSummaries().size());
+  }
+
+  @Nonnull
+  private ObjectListing request(@Nonnull String bucket, @Nonnull String prefix, @Nonnull Supplier<ObjectListing> operation) {
+    requests.increment();
+    return ParallelUploader.callWithRetry(RefString.format("s3://%s/%s", bucket, prefix), operation, retries);
+  }
+}
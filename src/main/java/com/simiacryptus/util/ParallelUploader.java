@@ -0,0 +1,516 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.*;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+public class ParallelUploader implements AutoCloseable {
+  public static int MAX_IN_FLIGHT = Integer.parseInt(System.getProperty("S3_MAX_IN_FLIGHT", "16"));
+  public static long MULTIPART_THRESHOLD = Long.parseLong(System.getProperty("S3_MULTIPART_THRESHOLD", Long.toString(16L * 1024 * 1024)));
+  public static long PART_SIZE = Long.parseLong(System.getProperty("S3_PART_SIZE", Long.toString(8L * 1024 * 1024)));
+  public static long PROGRESS_INTERVAL_MS = Long.parseLong(System.getProperty("S3_PROGRESS_INTERVAL_MS", "5000"));
+  public static int MAX_ATTEMPTS = Integer.parseInt(System.getProperty("S3_MAX_ATTEMPTS", "5"));
+  public static long BASE_BACKOFF_MS = Long.parseLong(System.getProperty("S3_BASE_BACKOFF_MS", "200"));
+  public static long MAX_BACKOFF_MS = Long.parseLong(System.getProperty("S3_MAX_BACKOFF_MS", "20000"));
+  public static int ERROR_BUDGET = Integer.parseInt(System.getProperty("S3_ERROR_BUDGET", "100"));
+  public static double ERROR_BUDGET_RATIO = Double.parseDouble(System.getProperty("S3_ERROR_BUDGET_RATIO", "0.1"));
+  private static final Logger logger = LoggerFactory.getLogger(ParallelUploader.class);
+  private static final ScheduledExecutorService RETRIES = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-retry-%d").build());
+
+  @Nonnull
+  private final AmazonS3 s3;
+  private final long multipartThreshold;
+  private final long partSize;
+  @Nonnull
+  private final ExecutorService executor;
+  @Nonnull
+  private final Semaphore queued;
+  private final List<CompletableFuture<Map.Entry<File, URL>>> pending = new ArrayList<>();
+  private final Progress progress = new Progress();
+  private final AtomicLong lastLog = new AtomicLong(System.currentTimeMillis());
+  private final AtomicInteger errors = new AtomicInteger();
+  private volatile long budgetStartRequests = 0;
+  private int maxAttempts = MAX_ATTEMPTS;
+  private int errorBudget = ERROR_BUDGET;
+  @Nullable
+  private Check check = this::isCurrent;
+  @Nullable
+  private Listener listener = null;
+  @Nonnull
+  private CannedAccessControlList acl = CannedAccessControlList.PublicRead;
+
+  public ParallelUploader(@Nonnull AmazonS3 s3) {
+    this(s3, MAX_IN_FLIGHT, MULTIPART_THRESHOLD, PART_SIZE);
+  }
+
+  public ParallelUploader(@Nonnull AmazonS3 s3, int maxInFlight, long multipartThreshold, long partSize) {
+    this.s3 = s3;
+    this.multipartThreshold = Math.max(partSize, multipartThreshold);
+    this.partSize = partSize;
+    // Worker threads bound the requests actually on the wire; the semaphore bounds how far the walk runs ahead
+    this.executor = Executors.newFixedThreadPool(Math.max(1, maxInFlight),
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("s3-upload-%d").build());
+    this.queued = new Semaphore(Math.max(1, maxInFlight) * 2);
+  }
+
+  @Nonnull
+  public Progress getProgress() {
+    return progress;
+  }
+
+  public ParallelUploader setCheck(@Nullable Check check) {
+    this.check = check;
+    return this;
+  }
+
+  public ParallelUploader setListener(@Nullable Listener listener) {
+    this.listener = listener;
+    return this;
+  }
+
+  public ParallelUploader setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = Math.max(1, maxAttempts);
+    return this;
+  }
+
+  public ParallelUploader setErrorBudget(int errorBudget) {
+    this.errorBudget = errorBudget;
+    return this;
+  }
+
+  // Long-lived uploaders start each pass with a full budget instead of inheriting the errors of earlier ones
+  public ParallelUploader resetErrorBudget() {
+    budgetStartRequests = progress.getRequests();
+    errors.set(0);
+    return this;
+  }
+
+  public ParallelUploader setAcl(@Nonnull CannedAccessControlList acl) {
+    this.acl = acl;
+    return this;
+  }
+
+  @Nonnull
+  public CompletableFuture<URL> submit(@Nonnull File file, @Nonnull String bucket, @Nonnull String key) {
+    try {
+      queued.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw Util.throwException(e);
+    }
+    long length = file.length();
+    progress.filesSubmitted.increment();
+    progress.bytesSubmitted.add(length);
+    CompletableFuture<URL> future = withRetry(key, () -> {
+      if (null != check && check.isCurrent(file, bucket, key)) {
+        progress.filesSkipped.increment();
+        return false;
+      }
+      return true;
+    }).thenCompose(upload -> {
+      if (!upload) return CompletableFuture.completedFuture(s3.getUrl(bucket, key));
+      if (length > multipartThreshold) return multipart(file, bucket, key, length);
+      return withRetry(key, () -> put(file, bucket, key, length));
+    });
+    future = future.whenComplete((url, error) -> {
+      queued.release();
+      if (null != error) {
+        progress.filesFailed.increment();
+        progress.failedKeys.add(key);
+        logger.warn(RefString.format("Failed to upload %s to s3 %s/%s", file.getAbsolutePath(), bucket, key), unwrap(error));
+      } else {
+        progress.filesCompleted.increment();
+      }
+      logProgress();
+    });
+    synchronized (pending) {
+      pending.add(future.thenApply(url -> new AbstractMap.SimpleImmutableEntry<>(file.getAbsoluteFile(), url)));
+    }
+    return future;
+  }
+
+  @Nonnull
+  public Map<File, URL> awaitAll() {
+    List<CompletableFuture<Map.Entry<File, URL>>> futures;
+    synchronized (pending) {
+      futures = new ArrayList<>(pending);
+      pending.clear();
+    }
+    HashMap<File, URL> map = new HashMap<>();
+    Throwable failure = null;
+    for (CompletableFuture<Map.Entry<File, URL>> future : futures) {
+      try {
+        Map.Entry<File, URL> entry = future.join();
+        map.put(entry.getKey(), entry.getValue());
+      } catch (CompletionException e) {
+        if (null == failure) failure = unwrap(e);
+        else if (failure.getSuppressed().length < 10) failure.addSuppressed(unwrap(e));
+      }
+    }
+    logger.info("Upload finished: " + progress);
+    if (null != failure) {
+      List<String> failedKeys = progress.getFailedKeys();
+      logger.warn(RefString.format("%d uploads failed: %s", failedKeys.size(), failedKeys));
+      throw new RuntimeException(RefString.format("%d uploads failed, including %s", failedKeys.size(),
+          failedKeys.subList(0, Math.min(10, failedKeys.size()))), failure);
+    }
+    return map;
+  }
+
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  protected boolean isCurrent(@Nonnull File file, @Nonnull String bucket, @Nonnull String key) {
+    ObjectMetadata existingMetadata;
+    try {
+      progress.requests.increment();
+      existingMetadata = s3.getObjectMetadata(bucket, key);
+    } catch (AmazonS3Exception e) {
+      if (e.getStatusCode() == 404) {
+        logger.debug(RefString.format("Not found file %s/%s", bucket, key));
+      } else if (isRetryable(e)) {
+        throw e;
+      } else {
+        logger.info(RefString.format("Error listing %s/%s", bucket, key), e);
+      }
+      return false;
+    }
+    // A same-size edit only shows in the content, so the local digest is compared with the ETag as well
+    if (existingMetadata.getContentLength() != file.length() || !etag(file, existingMetadata.getETag()).equalsIgnoreCase(unquote(existingMetadata.getETag()))) {
+      logger.debug(RefString.format("Outdated file %s/%s", bucket, key));
+      return false;
+    }
+    logger.debug(RefString.format("Existing file %s/%s", bucket, key));
+    return true;
+  }
+
+  // Computes the local counterpart of an ETag: the content MD5, or for multipart ETags the MD5 of the part MD5s at this uploader's part size
+  @Nonnull
+  private String etag(@Nonnull File file, @Nullable String remoteETag) {
+    String remote = unquote(remoteETag);
+    int dash = remote.lastIndexOf('-');
+    int parts = 0;
+    if (dash >= 0) {
+      try {
+        parts = Integer.parseInt(remote.substring(dash + 1));
+      } catch (NumberFormatException e) {
+        return "";
+      }
+      if (parts != (file.length() + partSize - 1) / partSize) return "";
+    }
+    try (InputStream in = new FileInputStream(file)) {
+      MessageDigest whole = MessageDigest.getInstance("MD5");
+      MessageDigest part = MessageDigest.getInstance("MD5");
+      byte[] buffer = new byte[64 * 1024];
+      long remaining = partSize;
+      int read;
+      while ((read = in.read(buffer, 0, (int) Math.min(buffer.length, 0 == parts ? buffer.length : remaining))) > 0) {
+        if (0 == parts) {
+          whole.update(buffer, 0, read);
+          continue;
+        }
+        part.update(buffer, 0, read);
+        remaining -= read;
+        if (remaining == 0) {
+          whole.update(part.digest());
+          remaining = partSize;
+        }
+      }
+      if (0 != parts && remaining != partSize) whole.update(part.digest());
+      return hex(whole.digest()) + (0 == parts ? "" : "-" + parts);
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  private static String hex(@Nonnull byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+    return sb.toString();
+  }
+
+  @Nonnull
+  private static String unquote(@Nullable String etag) {
+    if (null == etag) return "";
+    return etag.startsWith("\"") && etag.endsWith("\"") && etag.length() > 1 ? etag.substring(1, etag.length() - 1) : etag;
+  }
+
+  @Nonnull
+  private URL put(@Nonnull File file, @Nonnull String bucket, @Nonnull String key, long length) {
+    logger.debug(RefString.format("Uploading file %s to s3 %s/%s", file.getAbsolutePath(), bucket, key));
+    progress.requests.increment();
+    PutObjectResult result = s3.putObject(new PutObjectRequest(bucket, key, file).withCannedAcl(acl));
+    progress.bytesUploaded.add(length);
+    uploaded(file, key, result.getETag());
+    return s3.getUrl(bucket, key);
+  }
+
+  @Nonnull
+  private CompletableFuture<URL> multipart(@Nonnull File file, @Nonnull String bucket, @Nonnull String key, long length) {
+    logger.info(RefString.format("Uploading file %s to s3 %s/%s in parts", file.getAbsolutePath(), bucket, key));
+    return withRetry(key, () -> {
+      progress.requests.increment();
+      return s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key).withCannedACL(acl)).getUploadId();
+    }).thenCompose(uploadId -> {
+      List<CompletableFuture<PartETag>> parts = new ArrayList<>();
+      int partNumber = 1;
+      for (long offset = 0; offset < length; offset += partSize) {
+        final int number = partNumber++;
+        final long position = offset;
+        final long size = Math.min(partSize, length - offset);
+        parts.add(withRetry(key, () -> {
+          progress.requests.increment();
+          UploadPartResult result = s3.uploadPart(new UploadPartRequest()
+              .withBucketName(bucket).withKey(key).withUploadId(uploadId)
+              .withPartNumber(number).withFile(file).withFileOffset(position).withPartSize(size)
+              .withLastPart(position + size >= length));
+          progress.bytesUploaded.add(size);
+          return result.getPartETag();
+        }));
+      }
+      // The abort runs inside the returned chain, so the upload is cleaned up before callers (and close) see the failure
+      return CompletableFuture.allOf(parts.toArray(new CompletableFuture[]{})).thenCompose(x -> {
+        List<PartETag> etags = new ArrayList<>();
+        for (CompletableFuture<PartETag> part : parts) etags.add(part.join());
+        return withRetry(key, () -> {
+          progress.requests.increment();
+          CompleteMultipartUploadResult result = s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, etags));
+          uploaded(file, key, result.getETag());
+          return s3.getUrl(bucket, key);
+        });
+      }).handle((url, error) -> {
+        if (null == error) return CompletableFuture.completedFuture(url);
+        try {
+          progress.requests.increment();
+          s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (Throwable e) {
+          logger.warn(RefString.format("Error aborting upload of %s/%s", bucket, key), e);
+        }
+        CompletableFuture<URL> failed = new CompletableFuture<>();
+        failed.completeExceptionally(error);
+        return failed;
+      }).thenCompose(x -> x);
+    });
+  }
+
+  @Nonnull
+  private <T> CompletableFuture<T> withRetry(@Nonnull String key, @Nonnull Supplier<T> operation) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    attempt(key, operation, 1, result);
+    return result;
+  }
+
+  private <T> void attempt(@Nonnull String key, @Nonnull Supplier<T> operation, int attempt, @Nonnull CompletableFuture<T> result) {
+    try {
+      executor.execute(() -> {
+        if (isBudgetExhausted(errors.get())) {
+          result.completeExceptionally(new IllegalStateException(RefString.format(
+              "Error budget of %d exhausted before uploading %s", errorBudget, key)));
+          return;
+        }
+        try {
+          result.complete(operation.get());
+        } catch (Throwable e) {
+          int errorCount = errors.incrementAndGet();
+          if (attempt < maxAttempts && isRetryable(e) && !isBudgetExhausted(errorCount)) {
+            long delay = backoff(attempt);
+            progress.retries.increment();
+            logger.info(RefString.format("Retrying %s in %dms after attempt %d failed: %s", key, delay, attempt, e.getMessage()));
+            // The wait happens off the worker pool so a backing-off request does not hold an upload slot
+            RETRIES.schedule(() -> attempt(key, operation, attempt + 1, result), delay, TimeUnit.MILLISECONDS);
+          } else {
+            result.completeExceptionally(e);
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      result.completeExceptionally(e);
+    }
+  }
+
+  private boolean isBudgetExhausted(int errorCount) {
+    // The budget grows with the work done, so large uploads tolerate proportionally more transient errors
+    return errorCount >= errorBudget + ERROR_BUDGET_RATIO * (progress.getRequests() - budgetStartRequests);
+  }
+
+  static long backoff(int attempt) {
+    // Full jitter: a uniform delay up to the exponential cap spreads out clients that failed together
+    long cap = Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt - 1, 20));
+    return ThreadLocalRandom.current().nextLong(cap + 1);
+  }
+
+  static <T> T callWithRetry(@Nonnull String key, @Nonnull Supplier<T> operation) {
+    return callWithRetry(key, operation, new LongAdder());
+  }
+
+  // Blocking form for callers that already run on their own worker pool
+  static <T> T callWithRetry(@Nonnull String key, @Nonnull Supplier<T> operation, @Nonnull LongAdder retries) {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return operation.get();
+      } catch (RuntimeException e) {
+        if (attempt >= MAX_ATTEMPTS || !isRetryable(e)) throw e;
+        long delay = backoff(attempt);
+        retries.increment();
+        logger.info(RefString.format("Retrying %s in %dms after attempt %d failed: %s", key, delay, attempt, e.getMessage()));
+        try {
+          Thread.sleep(delay);
+        } catch (InterruptedException ie) {
+          Thread.currentThread().interrupt();
+          throw Util.throwException(ie);
+        }
+      }
+    }
+  }
+
+  static boolean isRetryable(@Nonnull Throwable e) {
+    if (e instanceof AmazonServiceException) {
+      int status = ((AmazonServiceException) e).getStatusCode();
+      return status >= 500 || status == 408 || status == 429 || "SlowDown".equals(((AmazonServiceException) e).getErrorCode());
+    }
+    return e instanceof SdkClientException;
+  }
+
+  @Nonnull
+  private static Throwable unwrap(@Nonnull Throwable e) {
+    while ((e instanceof CompletionException || e instanceof ExecutionException) && null != e.getCause()) e = e.getCause();
+    return e;
+  }
+
+  private void uploaded(@Nonnull File file, @Nonnull String key, @Nullable String etag) {
+    Listener listener = this.listener;
+    if (null != listener) listener.uploaded(file, key, etag);
+  }
+
+  private void logProgress() {
+    long now = System.currentTimeMillis();
+    long last = lastLog.get();
+    if (now - last >= PROGRESS_INTERVAL_MS && lastLog.compareAndSet(last, now)) {
+      logger.info("Upload progress: " + progress);
+    }
+  }
+
+  public interface Check {
+    boolean isCurrent(@Nonnull File file, @Nonnull String bucket, @Nonnull String key);
+  }
+
+  public interface Listener {
+    void uploaded(@Nonnull File file, @Nonnull String key, @Nullable String etag);
+  }
+
+  public static final class Progress {
+    private final long startNanos = System.nanoTime();
+    private final LongAdder filesSubmitted = new LongAdder();
+    private final LongAdder filesCompleted = new LongAdder();
+    private final LongAdder filesSkipped = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder bytesSubmitted = new LongAdder();
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final Queue<String> failedKeys = new ConcurrentLinkedQueue<>();
+
+    public long getFilesSubmitted() {
+      return filesSubmitted.sum();
+    }
+
+    public long getFilesCompleted() {
+      return filesCompleted.sum();
+    }
+
+    public long getFilesSkipped() {
+      return filesSkipped.sum();
+    }
+
+    public long getFilesFailed() {
+      return filesFailed.sum();
+    }
+
+    public long getBytesSubmitted() {
+      return bytesSubmitted.sum();
+    }
+
+    public long getBytesUploaded() {
+      return bytesUploaded.sum();
+    }
+
+    public long getRequests() {
+      return requests.sum();
+    }
+
+    public long getRetries() {
+      return retries.sum();
+    }
+
+    @Nonnull
+    public List<String> getFailedKeys() {
+      return new ArrayList<>(failedKeys);
+    }
+
+    public double getElapsedSeconds() {
+      return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+    public double getBytesPerSecond() {
+      double elapsed = getElapsedSeconds();
+      return elapsed <= 0 ? 0 : getBytesUploaded() / elapsed;
+    }
+
+    public double getFilesPerSecond() {
+      double elapsed = getElapsedSeconds();
+      return elapsed <= 0 ? 0 : getFilesCompleted() / elapsed;
+    }
+
+    @Override
+    public String toString() {
+      return RefString.format("%d/%d files (%d skipped, %d failed), %.1f/%.1f MB, %.2f MB/s, %.1f files/s, %d requests (%d retries) in %.1fs",
+          getFilesCompleted(), getFilesSubmitted(), getFilesSkipped(), getFilesFailed(),
+          getBytesUploaded() / 1e6, getBytesSubmitted() / 1e6, getBytesPerSecond() / 1e6, getFilesPerSecond(),
+          getRequests(), getRetries(), getElapsedSeconds());
+    }
+  }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+public class ParallelZipWriter implements AutoCloseable {
+  public static int THREADS = Integer.parseInt(System.getProperty("ZIP_THREADS", Integer.toString(Runtime.getRuntime().availableProcessors())));
+  public static int LEVEL = Integer.parseInt(System.getProperty("ZIP_LEVEL", Integer.toString(Deflater.DEFAULT_COMPRESSION)));
+  public static long SPILL_BYTES = Long.parseLong(System.getProperty("ZIP_SPILL_BYTES", Long.toString(4L * 1024 * 1024)));
+  public static Set<String> STORED_EXTENSIONS = new HashSet<>(Arrays.asList(System.getProperty("ZIP_STORED_EXTENSIONS",
+      "png,jpg,jpeg,gif,webp,zip,gz,tgz,bz2,xz,7z,jar,mp3,mp4,m4a,ogg,webm,woff,woff2,pdf").split(",")));
+  private static final Logger logger = LoggerFactory.getLogger(ParallelZipWriter.class);
+  private static final int BUFFER_SIZE = 64 * 1024;
+  private static final long ZIP64_LIMIT = 0xFFFFFFFFL;
+
+  @Nonnull
+  private final WritableByteChannel out;
+  private final boolean ownsChannel;
+  @Nonnull
+  private final ExecutorService executor;
+  private final int maxPending;
+  private final Deque<Future<Entry>> pending = new ArrayDeque<>();
+  private final List<Entry> written = new ArrayList<>();
+  private final LongAdder bytesIn = new LongAdder();
+  private final long startNanos = System.nanoTime();
+  private long position = 0;
+  private long storedEntries = 0;
+  private boolean closed = false;
+  private boolean failed = false;
+
+  public ParallelZipWriter(@Nonnull File file) throws IOException {
+    this(FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), true);
+  }
+
+  public ParallelZipWriter(@Nonnull WritableByteChannel out) {
+    this(out, false);
+  }
+
+  private ParallelZipWriter(@Nonnull WritableByteChannel out, boolean ownsChannel) {
+    this.out = out;
+    this.ownsChannel = ownsChannel;
+    int threads = Math.max(1, THREADS);
+    this.executor = Executors.newFixedThreadPool(threads,
+        new ThreadFactoryBuilder().setDaemon(true).setNameFormat("zip-%d").build());
+    // Bounds how many compressed entries sit in memory waiting for their turn
+    this.maxPending = threads * 4;
+  }
+
+  public static boolean isStored(@Nonnull String name) {
+    int dot = name.lastIndexOf('.');
+    return dot >= 0 && STORED_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase());
+  }
+
+  public int getEntries() {
+    return written.size();
+  }
+
+  public long getStoredEntries() {
+    return storedEntries;
+  }
+
+  public long getBytesIn() {
+    return bytesIn.sum();
+  }
+
+  public long getBytesOut() {
+    return position;
+  }
+
+  public double getSeconds() {
+    return (System.nanoTime() - startNanos) / 1e9;
+  }
+
+  public void addTree(@Nonnull File root, @Nonnull Predicate<? super File> filter) {
+    Deque<File> dirs = new ArrayDeque<>();
+    dirs.push(root);
+    String absRoot = root.getAbsolutePath();
+    while (!dirs.isEmpty()) {
+      File[] files = dirs.pop().listFiles();
+      if (null == files) continue;
+      Arrays.sort(files);
+      // Pushed in reverse so subdirectories are visited in name order
+      for (int i = files.length - 1; i >= 0; i--) {
+        if (files[i].isDirectory() && filter.test(files[i])) dirs.push(files[i]);
+      }
+      for (File file : files) {
+        if (file.isDirectory() || !filter.test(file)) continue;
+        String relativeFile = file.getAbsolutePath().substring(absRoot.length());
+        if (relativeFile.startsWith(File.separator)) relativeFile = relativeFile.substring(1);
+        add(relativeFile.replace(File.separatorChar, '/'), file);
+      }
+    }
+  }
+
+  public void add(@Nonnull String name, @Nonnull File file) {
+    if (closed) throw new IllegalStateException("Zip writer is closed");
+    pending.add(executor.submit(() -> prepare(name, file)));
+    while (pending.size() > maxPending) append(pending.remove());
+  }
+
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+    try {
+      // After a failed entry the archive is incomplete, so no directory is written for it
+      if (!failed) {
+        while (!pending.isEmpty()) append(pending.remove());
+        writeDirectory();
+        double seconds = getSeconds();
+        logger.info(RefString.format("Zipped %d files (%d stored), %.1f MB to %.1f MB in %.1fs (%.1f MB/s)",
+            written.size(), storedEntries, getBytesIn() / 1e6, position / 1e6, seconds, getBytesIn() / 1e6 / Math.max(seconds, 1e-3)));
+      }
+    } finally {
+      for (Future<Entry> future : pending) {
+        if (!future.cancel(true) && future.isDone()) {
+          try {
+            future.get().release();
+          } catch (InterruptedException | ExecutionException | CancellationException e) {
+            logger.debug("Discarding failed entry", e);
+          }
+        }
+      }
+      executor.shutdownNow();
+      for (Entry entry : written) entry.release();
+      if (ownsChannel) {
+        try {
+          out.close();
+        } catch (IOException e) {
+          logger.warn("Error closing zip", e);
+        }
+      }
+    }
+  }
+
+  @Nonnull
+  private Entry prepare(@Nonnull String name, @Nonnull File file) throws IOException {
+    Entry entry = new Entry(name, file);
+    try {
+      if (isStored(name)) {
+        checksum(entry);
+        return entry;
+      }
+      deflate(entry);
+      // Incompressible content is cheaper to store than to inflate later
+      if (entry.compressedSize >= entry.size) {
+        entry.release();
+        entry.method = ZipEntry.STORED;
+        entry.compressedSize = entry.size;
+      }
+      return entry;
+    } catch (Throwable e) {
+      entry.release();
+      throw e;
+    }
+  }
+
+  private static void checksum(@Nonnull Entry entry) throws IOException {
+    CRC32 crc = new CRC32();
+    long size = 0;
+    try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        crc.update(buffer.array(), 0, buffer.limit());
+        size += buffer.limit();
+        buffer.clear();
+      }
+    }
+    entry.method = ZipEntry.STORED;
+    entry.crc = crc.getValue();
+    entry.size = size;
+    entry.compressedSize = size;
+  }
+
+  private static void deflate(@Nonnull Entry entry) throws IOException {
+    CRC32 crc = new CRC32();
+    Deflater deflater = new Deflater(LEVEL, true);
+    Spool spool = new Spool(entry.name);
+    entry.spool = spool;
+    long size = 0;
+    try (FileChannel channel = FileChannel.open(entry.file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      byte[] output = new byte[BUFFER_SIZE];
+      while (channel.read(buffer) >= 0) {
+        buffer.flip();
+        crc.update(buffer.array(), 0, buffer.limit());
+        size += buffer.limit();
+        deflater.setInput(buffer.array(), 0, buffer.limit());
+        while (!deflater.needsInput()) {
+          spool.write(output, 0, deflater.deflate(output));
+        }
+        buffer.clear();
+      }
+      deflater.finish();
+      while (!deflater.finished()) {
+        spool.write(output, 0, deflater.deflate(output));
+      }
+      spool.flush();
+    } finally {
+      deflater.end();
+    }
+    entry.method = ZipEntry.DEFLATED;
+    entry.crc = crc.getValue();
+    entry.size = size;
+    entry.compressedSize = spool.size();
+  }
+
+  private void append(@Nonnull Future<Entry> future) {
+    Entry entry;
+    try {
+      entry = future.get();
+    } catch (InterruptedException e) {
+      failed = true;
+      Thread.currentThread().interrupt();
+      throw Util.throwException(e);
+    } catch (ExecutionException e) {
+      failed = true;
+      throw Util.throwException(e.getCause());
+    }
+    try {
+      entry.offset = position;
+      entry.time = dosTime(entry.file.lastModified());
+      boolean zip64 = entry.size >= ZIP64_LIMIT || entry.compressedSize >= ZIP64_LIMIT;
+      ByteBuffer header = buffer(30 + entry.nameBytes.length + (zip64 ? 20 : 0));
+      header.putInt(0x04034b50);
+      header.putShort((short) (zip64 ? 45 : 20));
+      header.putShort((short) 0x0800);
+      header.putShort((short) entry.method);
+      header.putInt(entry.time);
+      header.putInt((int) entry.crc);
+      header.putInt((int) (zip64 ? ZIP64_LIMIT : entry.compressedSize));
+      header.putInt((int) (zip64 ? ZIP64_LIMIT : entry.size));
+      header.putShort((short) entry.nameBytes.length);
+      header.putShort((short) (zip64 ? 20 : 0));
+      header.put(entry.nameBytes);
+      if (zip64) {
+        header.putShort((short) 0x0001);
+        header.putShort((short) 16);
+        header.putLong(entry.size);
+        header.putLong(entry.compressedSize);
+      }
+      write(header);
+      if (null != entry.spool) {
+        position += entry.spool.writeTo(out);
+      } else {
+        position += transfer(entry.file, entry.size, out);
+      }
+      bytesIn.add(entry.size);
+      if (entry.method == ZipEntry.STORED) storedEntries++;
+    } catch (IOException e) {
+      failed = true;
+      throw Util.throwException(e);
+    } finally {
+      entry.release();
+    }
+    written.add(entry);
+  }
+
+  private void writeDirectory() {
+    try {
+      long directoryOffset = position;
+      for (Entry entry : written) {
+        List<Long> extra = new ArrayList<>();
+        if (entry.size >= ZIP64_LIMIT) extra.add(entry.size);
+        if (entry.compressedSize >= ZIP64_LIMIT) extra.add(entry.compressedSize);
+        if (entry.offset >= ZIP64_LIMIT) extra.add(entry.offset);
+        int extraLength = extra.isEmpty() ? 0 : 4 + 8 * extra.size();
+        ByteBuffer header = buffer(46 + entry.nameBytes.length + extraLength);
+        header.putInt(0x02014b50);
+        header.putShort((short) (extra.isEmpty() ? 20 : 45));
+        header.putShort((short) (extra.isEmpty() ? 20 : 45));
+        header.putShort((short) 0x0800);
+        header.putShort((short) entry.method);
+        header.putInt(entry.time);
+        header.putInt((int) entry.crc);
+        header.putInt((int) Math.min(entry.compressedSize, ZIP64_LIMIT));
+        header.putInt((int) Math.min(entry.size, ZIP64_LIMIT));
+        header.putShort((short) entry.nameBytes.length);
+        header.putShort((short) extraLength);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putShort((short) 0);
+        header.putInt(0);
+        header.putInt((int) Math.min(entry.offset, ZIP64_LIMIT));
+        header.put(entry.nameBytes);
+        if (!extra.isEmpty()) {
+          header.putShort((short) 0x0001);
+          header.putShort((short) (8 * extra.size()));
+          for (Long value : extra) header.putLong(value);
+        }
+        write(header);
+      }
+      long directorySize = position - directoryOffset;
+      boolean zip64 = written.size() >= 0xFFFF || directoryOffset >= ZIP64_LIMIT || directorySize >= ZIP64_LIMIT;
+      if (zip64) {
+        long recordOffset = position;
+        ByteBuffer record = buffer(56 + 20);
+        record.putInt(0x06064b50);
+        record.putLong(44);
+        record.putShort((short) 45);
+        record.putShort((short) 45);
+        record.putInt(0);
+        record.putInt(0);
+        record.putLong(written.size());
+        record.putLong(written.size());
+        record.putLong(directorySize);
+        record.putLong(directoryOffset);
+        record.putInt(0x07064b50);
+        record.putInt(0);
+        record.putLong(recordOffset);
+        record.putInt(1);
+        write(record);
+      }
+      ByteBuffer end = buffer(22);
+      end.putInt(0x06054b50);
+      end.putShort((short) 0);
+      end.putShort((short) 0);
+      end.putShort((short) Math.min(written.size(), 0xFFFF));
+      end.putShort((short) Math.min(written.size(), 0xFFFF));
+      end.putInt((int) Math.min(directorySize, ZIP64_LIMIT));
+      end.putInt((int) Math.min(directoryOffset, ZIP64_LIMIT));
+      end.putShort((short) 0);
+      write(end);
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  private void write(@Nonnull ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) position += out.write(buffer);
+  }
+
+  private static long transfer(@Nonnull File file, long size, @Nonnull WritableByteChannel out) throws IOException {
+    try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      long transferred = 0;
+      while (transferred < size) {
+        long count = channel.transferTo(transferred, size - transferred, out);
+        if (count <= 0) break;
+        transferred += count;
+      }
+      // The header already carries the size and checksum, so a file that changed since then cannot be patched up
+      if (transferred != size || channel.size() != size) {
+        throw new IOException(RefString.format("%s changed while it was being archived", file));
+      }
+      return transferred;
+    }
+  }
+
+  @Nonnull
+  private static ByteBuffer buffer(int size) {
+    return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  private static int dosTime(long millis) {
+    LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    if (time.getYear() < 1980) return (1 << 21) | (1 << 16);
+    return (time.getYear() - 1980) << 25 | time.getMonthValue() << 21 | time.getDayOfMonth() << 16
+        | time.getHour() << 11 | time.getMinute() << 5 | time.getSecond() >> 1;
+  }
+
+  private static final class Entry {
+    @Nonnull
+    final String name;
+    @Nonnull
+    final byte[] nameBytes;
+    @Nonnull
+    final File file;
+    int method;
+    long crc;
+    long size;
+    long compressedSize;
+    long offset;
+    int time;
+    @Nullable
+    Spool spool;
+
+    Entry(@Nonnull String name, @Nonnull File file) {
+      this.name = name;
+      this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+      this.file = file;
+    }
+
+    void release() {
+      if (null != spool) {
+        spool.delete();
+        spool = null;
+      }
+    }
+  }
+
+  private static final class Spool extends OutputStream {
+    @Nonnull
+    private final String name;
+    @Nullable
+    private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+    @Nullable
+    private File spill = null;
+    @Nullable
+    private OutputStream spillOut = null;
+    private long size = 0;
+
+    Spool(@Nonnull String name) {
+      this.name = name;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(@Nonnull byte[] b, int off, int len) throws IOException {
+      if (len == 0) return;
+      if (null == spillOut && size + len > SPILL_BYTES) {
+        // Large entries go to disk so pending entries cannot exhaust the heap
+        spill = File.createTempFile("zip-", ".spool");
+        spillOut = new BufferedOutputStream(new FileOutputStream(spill), BUFFER_SIZE);
+        memory.writeTo(spillOut);
+        memory = null;
+      }
+      if (null != spillOut) spillOut.write(b, off, len);
+      else memory.write(b, off, len);
+      size += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+      if (null != spillOut) spillOut.close();
+    }
+
+    long size() {
+      return size;
+    }
+
+    long writeTo(@Nonnull WritableByteChannel out) throws IOException {
+      if (null != memory) {
+        ByteBuffer buffer = ByteBuffer.wrap(memory.toByteArray());
+        while (buffer.hasRemaining()) out.write(buffer);
+        return size;
+      }
+      if (null == spill) throw new IOException(RefString.format("Spool for %s was released", name));
+      return transfer(spill, size, out);
+    }
+
+    void delete() {
+      memory = null;
+      if (null != spillOut) {
+        try {
+          spillOut.close();
+        } catch (IOException e) {
+          logger.debug("Error closing spool", e);
+        }
+      }
+      if (null != spill) spill.delete();
+    }
+  }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+public class S3Cache {
+  public static boolean ENABLED = Boolean.parseBoolean(System.getProperty("S3_CACHE", "false"));
+  public static String DIR = System.getProperty("S3_CACHE_DIR", new File(System.getProperty("java.io.tmpdir"), "s3-cache-" + System.getProperty("user.name")).getAbsolutePath());
+  public static long MAX_BYTES = Long.parseLong(System.getProperty("S3_CACHE_MAX_BYTES", Long.toString(1024L * 1024 * 1024)));
+  public static long TTL_MS = Long.parseLong(System.getProperty("S3_CACHE_TTL_MS", "0"));
+  private static final Logger logger = LoggerFactory.getLogger(S3Cache.class);
+  private static final Gson GSON = new Gson();
+  @Nullable
+  private static volatile S3Cache DEFAULT = null;
+
+  @Nonnull
+  private final File blobs;
+  @Nonnull
+  private final File refs;
+  private final long maxBytes;
+  private final long ttlMillis;
+  private final AtomicLong size = new AtomicLong(-1);
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder revalidations = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  public S3Cache(@Nonnull File root, long maxBytes, long ttlMillis) {
+    this.blobs = new File(root, "blobs");
+    this.refs = new File(root, "refs");
+    this.blobs.mkdirs();
+    this.refs.mkdirs();
+    this.maxBytes = maxBytes;
+    this.ttlMillis = ttlMillis;
+  }
+
+  @Nonnull
+  public static S3Cache getDefault() {
+    S3Cache cache = DEFAULT;
+    if (null == cache) {
+      synchronized (S3Cache.class) {
+        cache = DEFAULT;
+        if (null == cache) {
+          cache = new S3Cache(new File(DIR), MAX_BYTES, TTL_MS);
+          DEFAULT = cache;
+        }
+      }
+    }
+    return cache;
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public long getRevalidations() {
+    return revalidations.sum();
+  }
+
+  public long getEvictions() {
+    return evictions.sum();
+  }
+
+  public long getSize() {
+    return size();
+  }
+
+  @Nonnull
+  public InputStream open(@Nonnull AmazonS3 s3, @Nonnull String bucket, @Nonnull String key) throws IOException {
+    String uri = "s3://" + bucket + "/" + key;
+    try {
+      return lookup(s3, bucket, key, uri);
+    } catch (FileNotFoundException e) {
+      // Another process sharing the directory evicted the blob between lookup and open
+      logger.debug(RefString.format("Cached copy of %s is gone; reading it directly", uri), e);
+      return ParallelUploader.callWithRetry(uri, () -> s3.getObject(bucket, key)).getObjectContent();
+    }
+  }
+
+  @Nonnull
+  public byte[] read(@Nonnull AmazonS3 s3, @Nonnull String bucket, @Nonnull String key) throws IOException {
+    try (InputStream in = open(s3, bucket, key)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  @Nonnull
+  private InputStream lookup(@Nonnull AmazonS3 s3, @Nonnull String bucket, @Nonnull String key, @Nonnull String uri) throws IOException {
+    Ref ref = readRef(uri);
+    File blob = null == ref ? null : new File(blobs, ref.md5);
+    S3Object object;
+    if (null != blob && blob.isFile()) {
+      if (System.currentTimeMillis() - ref.validatedAt < ttlMillis) {
+        return hit(blob);
+      }
+      // A conditional GET costs a round trip but no body when the cached copy is still current
+      object = ParallelUploader.callWithRetry(uri, () -> s3.getObject(new GetObjectRequest(bucket, key).withNonmatchingETagConstraint(quote(ref.etag))));
+      if (null == object) {
+        revalidations.increment();
+        writeRef(uri, ref.md5, ref.etag);
+        return hit(blob);
+      }
+    } else {
+      object = ParallelUploader.callWithRetry(uri, () -> s3.getObject(bucket, key));
+    }
+    misses.increment();
+    try (InputStream in = object.getObjectContent()) {
+      String md5 = store(in);
+      writeRef(uri, md5, unquote(object.getObjectMetadata().getETag()));
+      return new FileInputStream(new File(blobs, md5));
+    }
+  }
+
+  public void put(@Nonnull AmazonS3 s3, @Nonnull String bucket, @Nonnull String key, @Nonnull byte[] bytes) throws IOException {
+    // The blob doubles as the upload source, so no separate temp file is written
+    String md5 = store(new ByteArrayInputStream(bytes));
+    File blob = new File(blobs, md5);
+    String[] etag = new String[]{md5};
+    try (ParallelUploader uploader = new ParallelUploader(s3).setCheck(null)
+        .setListener((file, k, e) -> etag[0] = null == e ? md5 : unquote(e))) {
+      uploader.submit(blob, bucket, key);
+      uploader.awaitAll();
+    }
+    writeRef("s3://" + bucket + "/" + key, md5, etag[0]);
+  }
+
+  @Nonnull
+  private InputStream hit(@Nonnull File blob) throws FileNotFoundException {
+    hits.increment();
+    // Last-modified doubles as the access time for LRU eviction
+    blob.setLastModified(System.currentTimeMillis());
+    return new FileInputStream(blob);
+  }
+
+  @Nonnull
+  private String store(@Nonnull InputStream in) throws IOException {
+    File temp = File.createTempFile("blob-", ".tmp", blobs);
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      long length;
+      try (InputStream digesting = new DigestInputStream(in, digest); OutputStream out = new FileOutputStream(temp)) {
+        length = IOUtils.copyLarge(digesting, out);
+      }
+      String md5 = hex(digest.digest());
+      File blob = new File(blobs, md5);
+      if (blob.isFile()) {
+        blob.setLastModified(System.currentTimeMillis());
+      } else {
+        size();
+        Files.move(temp.toPath(), blob.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        size.addAndGet(length);
+        evict(blob);
+      }
+      return md5;
+    } catch (NoSuchAlgorithmException e) {
+      throw Util.throwException(e);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  private synchronized void evict(@Nonnull File keep) {
+    if (size() <= maxBytes) return;
+    File[] files = blobs.listFiles((dir, name) -> !name.endsWith(".tmp"));
+    if (null == files) return;
+    Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+    for (File file : files) {
+      if (size.get() <= maxBytes) break;
+      if (file.equals(keep)) continue;
+      long length = file.length();
+      // Refs to an evicted blob are left behind and simply read as misses
+      if (file.delete()) {
+        size.addAndGet(-length);
+        evictions.increment();
+      }
+    }
+  }
+
+  private long size() {
+    long current = size.get();
+    if (current < 0) {
+      synchronized (this) {
+        current = size.get();
+        if (current < 0) {
+          File[] files = blobs.listFiles((dir, name) -> !name.endsWith(".tmp"));
+          current = 0;
+          if (null != files) for (File file : files) current += file.length();
+          size.set(current);
+        }
+      }
+    }
+    return current;
+  }
+
+  @Nullable
+  private Ref readRef(@Nonnull String uri) {
+    File file = new File(refs, refName(uri));
+    if (!file.isFile()) return null;
+    try {
+      Ref ref = GSON.fromJson(FileUtils.readFileToString(file, StandardCharsets.UTF_8), Ref.class);
+      return null != ref && uri.equals(ref.uri) && null != ref.md5 && null != ref.etag ? ref : null;
+    } catch (IOException | JsonParseException e) {
+      logger.debug(RefString.format("Ignoring unreadable cache entry %s", file), e);
+      return null;
+    }
+  }
+
+  private void writeRef(@Nonnull String uri, @Nonnull String md5, @Nonnull String etag) throws IOException {
+    Ref ref = new Ref();
+    ref.uri = uri;
+    ref.md5 = md5;
+    ref.etag = etag;
+    ref.validatedAt = System.currentTimeMillis();
+    File file = new File(refs, refName(uri));
+    File temp = File.createTempFile("ref-", ".tmp", refs);
+    try {
+      FileUtils.writeStringToFile(temp, GSON.toJson(ref), StandardCharsets.UTF_8);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      temp.delete();
+    }
+  }
+
+  @Nonnull
+  private static String refName(@Nonnull String uri) {
+    try {
+      return hex(MessageDigest.getInstance("MD5").digest(uri.getBytes(StandardCharsets.UTF_8))) + ".json";
+    } catch (NoSuchAlgorithmException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  private static String hex(@Nonnull byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+    return sb.toString();
+  }
+
+  @Nonnull
+  private static String quote(@Nonnull String etag) {
+    return "\"" + etag + "\"";
+  }
+
+  @Nonnull
+  private static String unquote(@Nullable String etag) {
+    if (null == etag) return "";
+    return etag.startsWith("\"") && etag.endsWith("\"") && etag.length() > 1 ? etag.substring(1, etag.length() - 1) : etag;
+  }
+
+  private static final class Ref {
+    String uri;
+    String md5;
+    String etag;
+    long validatedAt;
+  }
+}
@@ -19,12 +19,12 @@
 
 package com.simiacryptus.util;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.regions.Region;
 import com.amazonaws.regions.Regions;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3ClientBuilder;
 import com.amazonaws.services.s3.model.*;
-import com.google.common.collect.Lists;
 import com.simiacryptus.notebook.MarkdownNotebookOutput;
 import com.simiacryptus.ref.wrappers.RefString;
 import com.simiacryptus.util.test.NotebookTestBase;
@@ -38,20 +38,24 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLEncoder;
 import java.util.*;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Stream;
 
 public class S3Uploader {
 
   protected static final Logger logger = LoggerFactory.getLogger(NotebookTestBase.class);
-  private static final AmazonS3 GLOBAL_S3 = AmazonS3ClientBuilder.standard()
-      .withRegion(Regions.DEFAULT_REGION)
-      .build();
+  public static boolean SYNC = Boolean.parseBoolean(System.getProperty("S3_SYNC", "true"));
+  public static boolean ARCHIVE_IN_BACKGROUND = Boolean.parseBoolean(System.getProperty("S3_ARCHIVE_BACKGROUND", "true"));
+  public static boolean ARCHIVE_AS_BUNDLE = Boolean.parseBoolean(System.getProperty("S3_ARCHIVE_BUNDLE", "false"));
+  // Clients are thread-safe and each holds a connection pool, so one per region is shared by every report
+  private static final Map<String, AmazonS3> CLIENTS = new ConcurrentHashMap<>();
+  private static final Map<String, String> REGIONS = new ConcurrentHashMap<>();
 
   private static String getCurrentRegion() {
     try {
@@ -65,6 +69,19 @@ public class S3Uploader {
   }
 
   public static void uploadOnComplete(MarkdownNotebookOutput log, AmazonS3 amazonS3) {
+    if (ARCHIVE_AS_BUNDLE) {
+      log.onComplete(() -> {
+        URI archiveHome = log.getArchiveHome();
+        if (null != archiveHome) {
+          uploadBundle(amazonS3, archiveHome, log.getRoot());
+        }
+      });
+      return;
+    }
+    if (ARCHIVE_IN_BACKGROUND) {
+      BackgroundArchiver.attach(log, uri -> amazonS3);
+      return;
+    }
     log.onComplete(() -> {
       URI archiveHome = log.getArchiveHome();
       if (null != archiveHome) {
@@ -74,55 +91,73 @@ public class S3Uploader {
   }
 
   public static void uploadOnComplete(MarkdownNotebookOutput log) {
+    if (ARCHIVE_AS_BUNDLE) {
+      log.onComplete(() -> {
+        URI archiveHome = log.getArchiveHome();
+        if (null != archiveHome) {
+          uploadBundle(getClientForBucket(archiveHome.getHost()), archiveHome, log.getRoot());
+        }
+      });
+      return;
+    }
+    if (ARCHIVE_IN_BACKGROUND) {
+      BackgroundArchiver.attach(log, uri -> getClientForBucket(uri.getHost()));
+      return;
+    }
     log.onComplete(() -> {
       URI archiveHome = log.getArchiveHome();
       if (null != archiveHome) {
-        upload(buildClientForBucket(archiveHome.getHost()), archiveHome, log.getRoot());
+        upload(getClientForBucket(archiveHome.getHost()), archiveHome, log.getRoot());
       }
     });
   }
 
+  @Nonnull
+  public static AmazonS3 getClientForBucket(@Nonnull String bucket) {
+    return getClientForRegion(getRegion(bucket));
+  }
+
+  @Nonnull
+  public static AmazonS3 getClientForRegion(@Nonnull String region) {
+    return CLIENTS.computeIfAbsent(normalizeRegion(region), S3Uploader::buildClientForRegion);
+  }
+
   public static AmazonS3 buildClientForBucket(String bucket) {
     return buildClientForRegion(getRegion(bucket));
   }
 
   public static AmazonS3 buildClientForRegion(String region) {
-    if (region.equals("US")) {
-      return AmazonS3ClientBuilder.standard().withRegion(Regions.US_EAST_1).build();
-    } else {
-      return AmazonS3ClientBuilder.standard().withRegion(region).build();
-    }
+    // Requests are retried with backoff by the callers (ParallelUploader and friends), so the SDK's own retries would multiply them
+    return AmazonS3ClientBuilder.standard().withRegion(normalizeRegion(region))
+        .withClientConfiguration(new ClientConfiguration().withMaxErrorRetry(0)).build();
   }
 
   public static String getRegion(String bucket) {
-    String region;
+    String region = REGIONS.get(bucket);
+    if (null != region) return region;
     try {
-      region = GLOBAL_S3.getBucketLocation(bucket);
+      region = normalizeRegion(ParallelUploader.callWithRetry(bucket,
+          () -> getClientForRegion(Regions.DEFAULT_REGION.getName()).getBucketLocation(bucket)));
+      REGIONS.put(bucket, region);
     } catch (Throwable e) {
-      e.printStackTrace();
+      // Not memoized, so a transient failure does not pin the bucket to the wrong region
+      logger.warn(RefString.format("Error looking up region of %s", bucket), e);
       region = System.getProperty("AWS_REGION", getCurrentRegion());
     }
     return region;
   }
 
   @Nonnull
-  public static Map<File, URL> upload(@Nonnull final AmazonS3 s3, final URI path, @Nonnull final File file) {
-    return upload(s3, path, file, 3);
-  }
-
-  @Nonnull
-  public static Map<File, URL> uploadDir(@Nonnull final AmazonS3 s3, final URI path, @Nonnull final File file) {
-    return uploadDir(s3, path, file, 3);
-  }
-
-  public static HashSet<URL> rmDir(@Nonnull final AmazonS3 s3, final URI path) {
-    HashSet<URL> map = new HashSet<>();
-    rmDir(path, s3, map);
-    return map;
+  private static String normalizeRegion(@Nullable String region) {
+    // getBucketLocation reports the legacy names "US" and "EU" (or nothing) for the oldest regions
+    if (null == region || region.isEmpty() || region.equals("US")) return Regions.US_EAST_1.getName();
+    if (region.equals("EU")) return Regions.EU_WEST_1.getName();
+    return region;
   }
 
+  // Retries happen per request inside ParallelUploader; a failure here has already exhausted them
   @Nonnull
-  public static Map<File, URL> upload(@Nonnull final AmazonS3 s3, @Nullable final URI path, @Nonnull final File file, int retries) {
+  public static Map<File, URL> upload(@Nonnull final AmazonS3 s3, @Nullable final URI path, @Nonnull final File file) {
     try {
       HashMap<File, URL> map = new HashMap<>();
       if (!file.exists()) {
@@ -138,15 +173,18 @@ public class S3Uploader {
       }
       return map;
     } catch (Throwable e) {
-      if (retries > 0) {
-        return upload(s3, path, file, retries - 1);
-      }
       throw new RuntimeException("Error uploading " + file + " to " + path, e);
     }
   }
 
+  @Deprecated
   @Nonnull
-  public static Map<File, URL> uploadDir(@Nonnull final AmazonS3 s3, @Nullable final URI path, @Nonnull final File file, int retries) {
+  public static Map<File, URL> upload(@Nonnull final AmazonS3 s3, @Nullable final URI path, @Nonnull final File file, int retries) {
+    return upload(s3, path, file);
+  }
+
+  @Nonnull
+  public static Map<File, URL> uploadDir(@Nonnull final AmazonS3 s3, @Nullable final URI path, @Nonnull final File file) {
     try {
       HashMap<File, URL> map = new HashMap<>();
       if (!file.exists()) {
@@ -162,13 +200,46 @@ public class S3Uploader {
       }
       return map;
     } catch (Throwable e) {
-      if (retries > 0) {
-        return uploadDir(s3, path, file, retries - 1);
-      }
       throw new RuntimeException("Error uploading " + file + " to " + path, e);
     }
   }
 
+  @Deprecated
+  @Nonnull
+  public static Map<File, URL> uploadDir(@Nonnull final AmazonS3 s3, @Nullable final URI path, @Nonnull final File file, int retries) {
+    return uploadDir(s3, path, file);
+  }
+
+  @Nonnull
+  public static URL uploadBundle(@Nonnull final AmazonS3 s3, @Nonnull final URI path, @Nonnull final File dir) {
+    // One zip object replaces a PUT per file; its central directory doubles as the index for BundleReader
+    File zipFile = null;
+    try {
+      zipFile = File.createTempFile(dir.getName(), ".zip");
+      logger.info(RefString.format("Bundling %s to %s", dir.getAbsolutePath(), zipFile.getAbsolutePath()));
+      try (ParallelZipWriter zip = new ParallelZipWriter(zipFile)) {
+        zip.addTree(dir, file -> !SyncManifest.isManifest(file)
+            && !(file.getParentFile().equals(dir) && file.getName().endsWith(".zip")));
+      }
+      String key = getKey(path, new File(dir.getName() + ".zip"));
+      try (ParallelUploader uploader = new ParallelUploader(s3).setCheck(null)) {
+        URL url = uploader.submit(zipFile, path.getHost(), key).join();
+        uploader.awaitAll();
+        return url;
+      }
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    } finally {
+      if (null != zipFile) zipFile.delete();
+    }
+  }
+
+  public static HashSet<URL> rmDir(@Nonnull final AmazonS3 s3, final URI path) {
+    HashSet<URL> map = new HashSet<>();
+    rmDir(path, s3, map);
+    return map;
+  }
+
   public static void uploadDir(@Nonnull File file, URI filePath, @Nonnull AmazonS3 s3, HashMap<File, URL> map) {
     String scheme = filePath.getScheme();
     if (scheme.startsWith("s3")) {
@@ -177,19 +248,74 @@ public class S3Uploader {
       logger.info(
           RefString.format("Scanning peer uploads to %s at s3 %s/%s", file.getAbsolutePath(), bucket, reportPath));
 
-      List<S3ObjectSummary> preexistingFiles = listObjects(s3, bucket, reportPath).collect(Collectors.toList());
-      for (S3ObjectSummary preexistingFile : preexistingFiles) {
-        String key = preexistingFile.getKey();
+      Map<String, S3ObjectSummary> preexistingFiles = new HashMap<>();
+      listObjects(s3, bucket, reportPath).forEach(summary -> preexistingFiles.put(summary.getKey(), summary));
+      for (String key : preexistingFiles.keySet()) {
         //logger.info(RefString.format("Preexisting File: '%s' + '%s'", reportPath, key));
         map.put(
             new File(file, key.substring(reportPath.length())).getAbsoluteFile(),
             s3.getUrl(bucket, key)
         );
       }
+      logger.info(RefString.format("Uploading folder %s to %s", file.getAbsolutePath(), filePath.toString()));
+      try (ParallelUploader uploader = new ParallelUploader(s3)) {
+        if (SYNC) {
+          // The listing above stands in for per-file HEAD requests; the manifest catches same-size edits
+          SyncManifest manifest = SyncManifest.load(file, filePath.toString());
+          uploader.setCheck((subfile, b, key) -> manifest.isCurrent(subfile, preexistingFiles.get(key)));
+          uploader.setListener((subfile, key, etag) -> manifest.uploaded(subfile, etag));
+          try {
+            submitDir(uploader, file, filePath);
+            map.putAll(uploader.awaitAll());
+          } finally {
+            manifest.save();
+          }
+        } else {
+          submitDir(uploader, file, filePath);
+          map.putAll(uploader.awaitAll());
+        }
+      }
+    } else {
+      logger.info(RefString.format("Uploading folder %s to %s", file.getAbsolutePath(), filePath.toString()));
+      for (File subfile : file.listFiles()) {
+        map.putAll(upload(s3, filePath, subfile));
+      }
+    }
+  }
+
+  private static void submitDir(@Nonnull ParallelUploader uploader, @Nonnull File dir, @Nonnull URI filePath) {
+    for (File subfile : dir.listFiles()) {
+      if (SyncManifest.isManifest(subfile)) {
+        continue;
+      } else if (subfile.isDirectory()) {
+        submitDir(uploader, subfile, filePath.resolve(subfile.getName() + "/"));
+      } else {
+        uploader.submit(subfile, filePath.getHost(), getKey(filePath, subfile));
+      }
+    }
+  }
+
+  @Nonnull
+  static String getKey(@Nonnull URI target, @Nonnull File root, @Nonnull File file) {
+    // Mirrors the directory walk: each parent directory is resolved in turn, then the encoded file name
+    Deque<String> dirs = new ArrayDeque<>();
+    for (File dir = file.getParentFile(); null != dir && !dir.equals(root); dir = dir.getParentFile()) {
+      dirs.push(dir.getName());
+    }
+    URI path = target;
+    for (String dir : dirs) {
+      path = path.resolve(dir + "/");
     }
-    logger.info(RefString.format("Uploading folder %s to %s", file.getAbsolutePath(), filePath.toString()));
-    for (File subfile : file.listFiles()) {
-      map.putAll(upload(s3, filePath, subfile));
+    return getKey(path, file);
+  }
+
+  @Nonnull
+  private static String getKey(@Nonnull URI path, @Nonnull File file) {
+    try {
+      return path.resolve(URLEncoder.encode(file.getName(), "UTF-8")).getPath()
+          .replaceAll("//", "/").replaceAll("^/", "");
+    } catch (UnsupportedEncodingException e) {
+      throw Util.throwException(e);
     }
   }
 
@@ -200,49 +326,41 @@ public class S3Uploader {
       String reportPath = filePath.getPath().replaceAll("//", "/").replaceAll("^/", "");
       logger.info(
           RefString.format("Scanning objects to delete at s3 %s/%s", bucket, reportPath));
-      Lists.partition(listObjects(s3, bucket, reportPath)
-          .map(S3ObjectSummary::getKey).distinct()
-          //.map(key1 -> s3.getUrl(bucket, reportPath + key1).getPath())
-          .collect(Collectors.toList()), 100).forEach(page -> {
-        try {
-          s3.deleteObjects(new DeleteObjectsRequest(bucket)
-              .withQuiet(true)
-              .withKeys(page.toArray(new String[]{})));
-          page.forEach(key -> logger.info("Deleted " + key));
-        } catch (Throwable e) {
-          logger.warn("Error deleting files", e);
+      // Batches are deleted while the listing is still running, so memory stays flat for very large trees
+      try (ParallelLister lister = new ParallelLister(s3); BatchDeleter deleter = new BatchDeleter(s3, bucket)) {
+        lister.list(bucket, reportPath, summary -> deleter.add(summary.getKey()));
+        deleter.awaitAll();
+        logger.info(RefString.format("Listed %s; %s", lister, deleter));
+        List<String> failedKeys = deleter.getFailedKeys();
+        if (!failedKeys.isEmpty()) {
+          logger.warn(RefString.format("Failed to delete %d keys, including %s",
+              failedKeys.size(), failedKeys.subList(0, Math.min(10, failedKeys.size()))));
         }
-      });
+      }
     }
   }
 
   public static Stream<S3ObjectSummary> listObjects(@Nonnull AmazonS3 s3, String bucket, String reportPath) {
-    ObjectListing rootListing = s3.listObjects(new ListObjectsRequest().withBucketName(bucket).withPrefix(reportPath));
-    List<ObjectListing> listingStream = getListingStream(s3, rootListing).collect(Collectors.toList());
-    return Stream.concat(
-        listingStream.stream().map(ObjectListing::getObjectSummaries).flatMap(Collection::stream),
-        listingStream.stream().flatMap(listing -> {
-          return listing.getCommonPrefixes().stream().flatMap(prefix -> {
-            return listObjects(s3, bucket, reportPath + prefix);
-          });
-        })
-    );
+    try (ParallelLister lister = new ParallelLister(s3)) {
+      List<S3ObjectSummary> summaries = lister.list(bucket, reportPath);
+      logger.debug(RefString.format("Listed %s", lister));
+      return summaries.stream();
+    }
   }
 
   public static Stream<ObjectListing> getListingStream(AmazonS3 s3, ObjectListing listing) {
-    if (listing.isTruncated()) {
-      return Stream.concat(
-          Stream.of(listing),
-          getListingStream(s3, s3.listNextBatchOfObjects(listing))
-      );
-    } else {
-      return Stream.of(listing);
+    List<ObjectListing> listings = new ArrayList<>();
+    listings.add(listing);
+    while (listing.isTruncated()) {
+      ObjectListing previous = listing;
+      listing = ParallelUploader.callWithRetry(previous.getBucketName() + "/" + previous.getPrefix(), () -> s3.listNextBatchOfObjects(previous));
+      listings.add(listing);
     }
+    return listings.stream();
   }
 
   public static void uploadFile(@Nonnull File file, @NotNull URI path, @Nonnull AmazonS3 s3, HashMap<File, URL> map) throws UnsupportedEncodingException {
-    String reportPath = path.resolve(URLEncoder.encode(file.getName(), "UTF-8")).getPath()
-        .replaceAll("//", "/").replaceAll("^/", "");
+    String reportPath = getKey(path, file);
     if (path.getScheme().startsWith("s3")) {
       String bucket = uploadFile(file, path, s3, reportPath);
       map.put(file.getAbsoluteFile(), s3.getUrl(bucket, reportPath));
@@ -259,42 +377,23 @@ public class S3Uploader {
   public static String uploadFile(@Nonnull File file, @NotNull URI path, @Nonnull AmazonS3 s3, String reportPath) {
     String bucket = path.getHost();
     logger.info(RefString.format("Uploading file %s to s3 %s/%s", file.getAbsolutePath(), bucket, reportPath));
-    boolean upload;
-    try {
-      ObjectMetadata existingMetadata;
-      if (s3.doesObjectExist(bucket, reportPath))
-        existingMetadata = s3.getObjectMetadata(bucket, reportPath);
-      else
-        existingMetadata = null;
-      if (null != existingMetadata) {
-        if (existingMetadata.getContentLength() != file.length()) {
-          logger.info(RefString.format("Removing outdated file %s/%s", bucket, reportPath));
-          s3.deleteObject(bucket, reportPath);
-          upload = true;
-        } else {
-          logger.info(RefString.format("Existing file %s/%s", bucket, reportPath));
-          upload = false;
-        }
-      } else {
-        logger.info(RefString.format("Not found file %s/%s", bucket, reportPath));
-        upload = true;
-      }
-    } catch (AmazonS3Exception e) {
-      logger.info(RefString.format("Error listing %s/%s", bucket, reportPath), e);
-      upload = true;
-    }
-    if (upload) {
-      s3.putObject(
-          new PutObjectRequest(bucket, reportPath, file).withCannedAcl(CannedAccessControlList.PublicRead));
+    try (ParallelUploader uploader = new ParallelUploader(s3)) {
+      uploader.submit(file, bucket, reportPath);
+      uploader.awaitAll();
     }
     return bucket;
   }
 
   public static <T> void upload(byte[] bytes, URI path) throws IOException {
+    if (S3Cache.ENABLED) {
+      String bucket = path.getHost();
+      S3Cache.getDefault().put(getClientForBucket(bucket), bucket, getObjectKey(path), bytes);
+      return;
+    }
     File tempFile = File.createTempFile("runnable", "kryo");
     FileUtils.writeByteArrayToFile(tempFile, bytes);
     try {
-      uploadFile(tempFile, path, buildClientForBucket(path.getHost()), path.getPath()
+      uploadFile(tempFile, path, getClientForBucket(path.getHost()), path.getPath()
           .replaceAll("//", "/").replaceAll("^/", ""));
     } finally {
       tempFile.delete();
@@ -302,9 +401,24 @@ public class S3Uploader {
   }
 
   public static <T> byte[] download(URI path) throws IOException {
+    try (InputStream in = openStream(path)) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  @Nonnull
+  public static InputStream openStream(@Nonnull URI path) throws IOException {
     String bucket = path.getHost();
+    String key = getObjectKey(path);
+    AmazonS3 s3 = getClientForBucket(bucket);
+    if (S3Cache.ENABLED) return S3Cache.getDefault().open(s3, bucket, key);
+    return ParallelUploader.callWithRetry(key, () -> s3.getObject(bucket, key)).getObjectContent();
+  }
+
+  @Nonnull
+  private static String getObjectKey(@Nonnull URI path) {
     String key = path.getPath();
     while (key.startsWith("/")) key = key.substring(1);
-    return IOUtils.toByteArray(buildClientForBucket(bucket).getObject(bucket, key).getObjectContent());
+    return key;
   }
 }
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class SyncManifest {
+  public static final String FILE_NAME = ".s3manifest.json";
+  public static long RACY_MILLIS = Long.parseLong(System.getProperty("S3_SYNC_RACY_MILLIS", "2000"));
+  private static final Logger logger = LoggerFactory.getLogger(SyncManifest.class);
+  private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+  @Nonnull
+  private final File root;
+  @Nonnull
+  private final String target;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+  private final Map<String, Entry> hashed = new ConcurrentHashMap<>();
+
+  private SyncManifest(@Nonnull File root, @Nonnull String target) {
+    this.root = root;
+    this.target = target;
+  }
+
+  @Nonnull
+  public static SyncManifest load(@Nonnull File root, @Nonnull String target) {
+    SyncManifest manifest = new SyncManifest(root, target);
+    File file = new File(root, FILE_NAME);
+    if (file.exists()) {
+      try {
+        Data data = GSON.fromJson(FileUtils.readFileToString(file, StandardCharsets.UTF_8), Data.class);
+        if (null != data && target.equals(data.target) && null != data.entries) {
+          manifest.entries.putAll(data.entries);
+        } else {
+          logger.info(RefString.format("Ignoring manifest %s recorded for a different target", file));
+        }
+      } catch (IOException | JsonParseException e) {
+        logger.warn(RefString.format("Ignoring unreadable manifest %s", file), e);
+      }
+    }
+    return manifest;
+  }
+
+  public static boolean isManifest(@Nonnull File file) {
+    return file.getName().equals(FILE_NAME);
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public boolean isCurrent(@Nonnull File file, @Nullable S3ObjectSummary remote) {
+    String path = relativePath(file);
+    // New and changed files are hashed too, so an upload is recorded against the content as it was before sending
+    Entry local = hash(file, path);
+    if (null == remote || remote.getSize() != local.size) return false;
+    String remoteETag = unquote(remote.getETag());
+    Entry recorded = entries.get(path);
+    if (null != recorded && local.md5.equals(recorded.md5) && remoteETag.equals(recorded.etag)) {
+      if (local != recorded) entries.put(path, local.withETag(remoteETag));
+      hashed.remove(path);
+      return true;
+    }
+    // Without a record, a single-part ETag is the content MD5 and can be compared directly
+    if (local.md5.equalsIgnoreCase(remoteETag)) {
+      entries.put(path, local.withETag(remoteETag));
+      hashed.remove(path);
+      return true;
+    }
+    return false;
+  }
+
+  public void uploaded(@Nonnull File file, @Nullable String etag) {
+    String path = relativePath(file);
+    Entry local = hashed.remove(path);
+    String remoteETag = unquote(etag);
+    // A single-part ETag that differs from the pre-upload hash means the file changed while it was being sent
+    if (null == local || (!remoteETag.contains("-") && !local.md5.equalsIgnoreCase(remoteETag))) {
+      entries.remove(path);
+      return;
+    }
+    entries.put(path, local.withETag(remoteETag));
+  }
+
+  public void save() {
+    Data data = new Data();
+    data.target = target;
+    data.entries = new TreeMap<>(entries);
+    File file = new File(root, FILE_NAME);
+    File temp = new File(root, FILE_NAME + ".tmp");
+    try {
+      FileUtils.writeStringToFile(temp, GSON.toJson(data), StandardCharsets.UTF_8);
+      Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.warn(RefString.format("Error writing manifest %s", file), e);
+    }
+  }
+
+  @Nonnull
+  private Entry hash(@Nonnull File file, @Nonnull String path) {
+    long size = file.length();
+    long mtime = file.lastModified();
+    Entry recorded = entries.get(path);
+    // A hash taken within the mtime granularity of a write may predate a same-size edit, so only trust it once it is clearly later
+    if (null != recorded && recorded.size == size && recorded.mtime == mtime && recorded.hashedAt > mtime + RACY_MILLIS) {
+      hashed.put(path, recorded);
+      return recorded;
+    }
+    Entry entry = new Entry(size, mtime, md5(file), System.currentTimeMillis(), null);
+    hashed.put(path, entry);
+    return entry;
+  }
+
+  @Nonnull
+  private String relativePath(@Nonnull File file) {
+    String absRoot = root.getAbsolutePath();
+    String absFile = file.getAbsolutePath();
+    String relativeFile = absFile.startsWith(absRoot) ? absFile.substring(absRoot.length()) : absFile;
+    if (relativeFile.startsWith(File.separator)) relativeFile = relativeFile.substring(1);
+    return relativeFile.replace(File.separatorChar, '/');
+  }
+
+  @Nonnull
+  private static String unquote(@Nullable String etag) {
+    if (null == etag) return "";
+    return etag.startsWith("\"") && etag.endsWith("\"") && etag.length() > 1 ? etag.substring(1, etag.length() - 1) : etag;
+  }
+
+  @Nonnull
+  private static String md5(@Nonnull File file) {
+    try (InputStream in = new FileInputStream(file)) {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      byte[] buffer = new byte[64 * 1024];
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        digest.update(buffer, 0, read);
+      }
+      StringBuilder sb = new StringBuilder();
+      for (byte b : digest.digest()) sb.append(String.format("%02x", b & 0xFF));
+      return sb.toString();
+    } catch (IOException | NoSuchAlgorithmException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  private static final class Data {
+    String target;
+    TreeMap<String, Entry> entries;
+  }
+
+  public static final class Entry {
+    final long size;
+    final long mtime;
+    @Nonnull
+    final String md5;
+    final long hashedAt;
+    @Nullable
+    final String etag;
+
+    Entry(long size, long mtime, @Nonnull String md5, long hashedAt, @Nullable String etag) {
+      this.size = size;
+      this.mtime = mtime;
+      this.md5 = md5;
+      this.hashedAt = hashedAt;
+      this.etag = etag;
+    }
+
+    @Nonnull
+    Entry withETag(@Nonnull String etag) {
+      return new Entry(size, mtime, md5, hashedAt, etag);
+    }
+  }
+}
@@ -169,12 +169,15 @@ controls.save = function(cx) {
   function update() {
      try {
        console.log("Saving result");
-         fetch("/input_" + painting_id + ".html", {
-           method: "POST",
-           body: cx.canvas.toDataURL()
-         }).then(res => {
-           console.log("Request complete! response:", res);
-         });
+         cx.canvas.toBlob(function(blob) {
+           fetch("input_" + painting_id + ".html", {
+             method: "POST",
+             headers: {"Content-Type": "image/png"},
+             body: blob
+           }).then(res => {
+             console.log("Request complete! response:", res);
+           });
+         }, "image/png");
      } catch(e) {
        console.log("Nope.");
        throw e;
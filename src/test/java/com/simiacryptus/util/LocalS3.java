@@ -0,0 +1,612 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util;
+
+import com.amazonaws.services.s3.AbstractAmazonS3;
+import com.amazonaws.services.s3.model.*;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiPredicate;
+
+public class LocalS3 extends AbstractAmazonS3 {
+  @Nonnull
+  private final File root;
+  private final Map<String, ConcurrentSkipListMap<String, StoredObject>> buckets = new ConcurrentHashMap<>();
+  private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+  private final Map<String, LongAdder> requests = new ConcurrentHashMap<>();
+  private final AtomicInteger inFlight = new AtomicInteger();
+  private final AtomicInteger maxInFlight = new AtomicInteger();
+  private volatile long latencyMillis = 0;
+  @Nullable
+  private volatile BiPredicate<String, String> failureInjector = null;
+
+  public LocalS3(@Nonnull File root) {
+    this.root = root;
+    root.mkdirs();
+  }
+
+  @Nonnull
+  public File getRoot() {
+    return root;
+  }
+
+  public LocalS3 setLatency(long millis) {
+    this.latencyMillis = millis;
+    return this;
+  }
+
+  public LocalS3 setFailureInjector(@Nullable BiPredicate<String, String> failureInjector) {
+    this.failureInjector = failureInjector;
+    return this;
+  }
+
+  public long getRequestCount(@Nonnull String operation) {
+    LongAdder adder = requests.get(operation);
+    return null == adder ? 0 : adder.sum();
+  }
+
+  @Nonnull
+  public Map<String, Long> getRequestCounts() {
+    TreeMap<String, Long> counts = new TreeMap<>();
+    requests.forEach((operation, adder) -> counts.put(operation, adder.sum()));
+    return counts;
+  }
+
+  public long getTotalRequests() {
+    return requests.values().stream().mapToLong(LongAdder::sum).sum();
+  }
+
+  public int getMaxConcurrency() {
+    return maxInFlight.get();
+  }
+
+  public void resetCounters() {
+    requests.clear();
+    maxInFlight.set(inFlight.get());
+  }
+
+  @Nonnull
+  public Set<String> keys(@Nonnull String bucket) {
+    return new TreeSet<>(bucket(bucket).keySet());
+  }
+
+  @Nonnull
+  public byte[] getBytes(@Nonnull String bucket, @Nonnull String key) {
+    StoredObject object = find(bucket, key);
+    try {
+      return FileUtils.readFileToByteArray(object.data);
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Override
+  public String getBucketLocation(String bucketName) {
+    request("getBucketLocation", bucketName);
+    try {
+      return "US";
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public URL getUrl(String bucketName, String key) {
+    try {
+      return new URL("https", bucketName + ".s3.local", "/" + key);
+    } catch (MalformedURLException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Override
+  public boolean doesObjectExist(String bucketName, String objectName) {
+    request("doesObjectExist", objectName);
+    try {
+      return bucket(bucketName).containsKey(objectName);
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public ObjectMetadata getObjectMetadata(String bucketName, String key) {
+    return getObjectMetadata(new GetObjectMetadataRequest(bucketName, key));
+  }
+
+  @Override
+  public ObjectMetadata getObjectMetadata(GetObjectMetadataRequest request) {
+    request("getObjectMetadata", request.getKey());
+    try {
+      return find(request.getBucketName(), request.getKey()).metadata();
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public S3Object getObject(String bucketName, String key) {
+    return getObject(new GetObjectRequest(bucketName, key));
+  }
+
+  @Override
+  public S3Object getObject(GetObjectRequest request) {
+    request("getObject", request.getKey());
+    try {
+      StoredObject object = find(request.getBucketName(), request.getKey());
+      // AmazonS3Client reports a 304 from an unmet ETag constraint as a null object
+      for (String etag : request.getNonmatchingETagConstraints()) {
+        if (etag.replace("\"", "").equals(object.etag.replace("\"", ""))) return null;
+      }
+      long[] range = request.getRange();
+      long start = 0;
+      long end = object.length - 1;
+      if (null != range) {
+        start = range[0];
+        if (range.length > 1 && range[1] >= 0) end = Math.min(end, range[1]);
+        if (start > end && object.length > 0) throw error(416, "InvalidRange", request.getKey());
+      }
+      InputStream in = new FileInputStream(object.data);
+      IOUtils.skipFully(in, start);
+      ObjectMetadata metadata = object.metadata();
+      metadata.setContentLength(Math.max(0, end - start + 1));
+      if (null != range) metadata.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + object.length);
+      S3Object s3Object = new S3Object();
+      s3Object.setBucketName(request.getBucketName());
+      s3Object.setKey(request.getKey());
+      s3Object.setObjectMetadata(metadata);
+      s3Object.setObjectContent(new BoundedInputStream(in, Math.max(0, end - start + 1)));
+      return s3Object;
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public PutObjectResult putObject(String bucketName, String key, File file) {
+    return putObject(new PutObjectRequest(bucketName, key, file));
+  }
+
+  @Override
+  public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata) {
+    return putObject(new PutObjectRequest(bucketName, key, input, metadata));
+  }
+
+  @Override
+  public PutObjectResult putObject(String bucketName, String key, String content) {
+    byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(bytes.length);
+    return putObject(new PutObjectRequest(bucketName, key, new ByteArrayInputStream(bytes), metadata));
+  }
+
+  @Override
+  public PutObjectResult putObject(PutObjectRequest request) {
+    request("putObject", request.getKey());
+    try {
+      File file = request.getFile();
+      StoredObject object;
+      try (InputStream in = null != file ? new FileInputStream(file) : request.getInputStream()) {
+        object = write(in, request.getMetadata());
+      }
+      store(request.getBucketName(), request.getKey(), object);
+      PutObjectResult result = new PutObjectResult();
+      result.setETag(object.etag);
+      result.setMetadata(object.metadata());
+      return result;
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public void deleteObject(String bucketName, String key) {
+    deleteObject(new DeleteObjectRequest(bucketName, key));
+  }
+
+  @Override
+  public void deleteObject(DeleteObjectRequest request) {
+    request("deleteObject", request.getKey());
+    try {
+      remove(request.getBucketName(), request.getKey());
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public DeleteObjectsResult deleteObjects(DeleteObjectsRequest request) {
+    request("deleteObjects", request.getBucketName());
+    try {
+      if (request.getKeys().size() > 1000) throw error(400, "MalformedXML", request.getBucketName());
+      List<DeleteObjectsResult.DeletedObject> deleted = new ArrayList<>();
+      for (DeleteObjectsRequest.KeyVersion keyVersion : request.getKeys()) {
+        remove(request.getBucketName(), keyVersion.getKey());
+        DeleteObjectsResult.DeletedObject deletedObject = new DeleteObjectsResult.DeletedObject();
+        deletedObject.setKey(keyVersion.getKey());
+        deleted.add(deletedObject);
+      }
+      return new DeleteObjectsResult(request.getQuiet() ? new ArrayList<>() : deleted);
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public ObjectListing listObjects(String bucketName) {
+    return listObjects(new ListObjectsRequest().withBucketName(bucketName));
+  }
+
+  @Override
+  public ObjectListing listObjects(String bucketName, String prefix) {
+    return listObjects(new ListObjectsRequest().withBucketName(bucketName).withPrefix(prefix));
+  }
+
+  @Override
+  public ObjectListing listObjects(ListObjectsRequest request) {
+    request("listObjects", request.getPrefix());
+    try {
+      return list(request.getBucketName(), request.getPrefix(), request.getDelimiter(), request.getMarker(),
+          null == request.getMaxKeys() ? 1000 : request.getMaxKeys());
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public ObjectListing listNextBatchOfObjects(ObjectListing previous) {
+    if (!previous.isTruncated()) {
+      ObjectListing empty = new ObjectListing();
+      empty.setBucketName(previous.getBucketName());
+      empty.setPrefix(previous.getPrefix());
+      empty.setDelimiter(previous.getDelimiter());
+      empty.setMaxKeys(previous.getMaxKeys());
+      return empty;
+    }
+    request("listObjects", previous.getPrefix());
+    try {
+      return list(previous.getBucketName(), previous.getPrefix(), previous.getDelimiter(), previous.getNextMarker(),
+          previous.getMaxKeys());
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public InitiateMultipartUploadResult initiateMultipartUpload(InitiateMultipartUploadRequest request) {
+    request("initiateMultipartUpload", request.getKey());
+    try {
+      String uploadId = UUID.randomUUID().toString();
+      uploads.put(uploadId, new Upload(request.getBucketName(), request.getKey(), request.getObjectMetadata()));
+      InitiateMultipartUploadResult result = new InitiateMultipartUploadResult();
+      result.setBucketName(request.getBucketName());
+      result.setKey(request.getKey());
+      result.setUploadId(uploadId);
+      return result;
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public UploadPartResult uploadPart(UploadPartRequest request) {
+    request("uploadPart", request.getKey());
+    try {
+      Upload upload = upload(request.getUploadId());
+      StoredObject part;
+      File file = request.getFile();
+      if (null != file) {
+        try (InputStream in = new FileInputStream(file)) {
+          IOUtils.skipFully(in, request.getFileOffset());
+          part = write(new BoundedInputStream(in, request.getPartSize()), null);
+        }
+      } else {
+        part = write(new BoundedInputStream(request.getInputStream(), request.getPartSize()), null);
+      }
+      StoredObject previous = upload.parts.put(request.getPartNumber(), part);
+      if (null != previous) previous.data.delete();
+      UploadPartResult result = new UploadPartResult();
+      result.setPartNumber(request.getPartNumber());
+      result.setETag(part.etag);
+      return result;
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public CompleteMultipartUploadResult completeMultipartUpload(CompleteMultipartUploadRequest request) {
+    request("completeMultipartUpload", request.getKey());
+    try {
+      Upload upload = upload(request.getUploadId());
+      List<PartETag> partETags = new ArrayList<>(request.getPartETags());
+      partETags.sort(Comparator.comparingInt(PartETag::getPartNumber));
+      MessageDigest etagDigest = md5();
+      File data = newDataFile();
+      long length = 0;
+      try (OutputStream out = new FileOutputStream(data)) {
+        for (PartETag partETag : partETags) {
+          StoredObject part = upload.parts.get(partETag.getPartNumber());
+          if (null == part || !part.etag.equals(partETag.getETag())) {
+            throw error(400, "InvalidPart", request.getKey());
+          }
+          length += Files.copy(part.data.toPath(), out);
+          etagDigest.update(hexToBytes(part.etag));
+        }
+      }
+      uploads.remove(request.getUploadId());
+      upload.parts.values().forEach(part -> part.data.delete());
+      String etag = toHex(etagDigest.digest()) + "-" + partETags.size();
+      store(upload.bucket, upload.key, new StoredObject(data, length, etag, upload.metadata));
+      CompleteMultipartUploadResult result = new CompleteMultipartUploadResult();
+      result.setBucketName(upload.bucket);
+      result.setKey(upload.key);
+      result.setETag(etag);
+      return result;
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    } finally {
+      done();
+    }
+  }
+
+  @Override
+  public void abortMultipartUpload(AbortMultipartUploadRequest request) {
+    request("abortMultipartUpload", request.getKey());
+    try {
+      Upload upload = uploads.remove(request.getUploadId());
+      if (null != upload) upload.parts.values().forEach(part -> part.data.delete());
+    } finally {
+      done();
+    }
+  }
+
+  public int getPendingUploads() {
+    return uploads.size();
+  }
+
+  private void request(@Nonnull String operation, @Nullable String key) {
+    requests.computeIfAbsent(operation, o -> new LongAdder()).increment();
+    int current = inFlight.incrementAndGet();
+    maxInFlight.accumulateAndGet(current, Math::max);
+    try {
+      if (latencyMillis > 0) Thread.sleep(latencyMillis);
+    } catch (InterruptedException e) {
+      inFlight.decrementAndGet();
+      Thread.currentThread().interrupt();
+      throw Util.throwException(e);
+    }
+    BiPredicate<String, String> injector = failureInjector;
+    if (null != injector && injector.test(operation, null == key ? "" : key)) {
+      inFlight.decrementAndGet();
+      throw error(503, "SlowDown", key);
+    }
+  }
+
+  private void done() {
+    inFlight.decrementAndGet();
+  }
+
+  @Nonnull
+  private ConcurrentSkipListMap<String, StoredObject> bucket(@Nonnull String bucket) {
+    return buckets.computeIfAbsent(bucket, b -> new ConcurrentSkipListMap<>());
+  }
+
+  @Nonnull
+  private StoredObject find(@Nonnull String bucket, @Nonnull String key) {
+    StoredObject object = bucket(bucket).get(key);
+    if (null == object) throw error(404, "NoSuchKey", key);
+    return object;
+  }
+
+  @Nonnull
+  private Upload upload(@Nonnull String uploadId) {
+    Upload upload = uploads.get(uploadId);
+    if (null == upload) throw error(404, "NoSuchUpload", uploadId);
+    return upload;
+  }
+
+  private void store(@Nonnull String bucket, @Nonnull String key, @Nonnull StoredObject object) {
+    StoredObject previous = bucket(bucket).put(key, object);
+    if (null != previous) previous.data.delete();
+  }
+
+  private void remove(@Nonnull String bucket, @Nonnull String key) {
+    StoredObject previous = bucket(bucket).remove(key);
+    if (null != previous) previous.data.delete();
+  }
+
+  @Nonnull
+  private ObjectListing list(@Nonnull String bucket, @Nullable String prefix, @Nullable String delimiter,
+                             @Nullable String marker, int maxKeys) {
+    String effectivePrefix = null == prefix ? "" : prefix;
+    ObjectListing listing = new ObjectListing();
+    listing.setBucketName(bucket);
+    listing.setPrefix(prefix);
+    listing.setDelimiter(delimiter);
+    listing.setMarker(marker);
+    listing.setMaxKeys(maxKeys);
+    NavigableMap<String, StoredObject> candidates = bucket(bucket).tailMap(effectivePrefix, true);
+    if (null != marker && marker.compareTo(effectivePrefix) >= 0) {
+      boolean rolledUp = null != delimiter && !delimiter.isEmpty() && marker.endsWith(delimiter);
+      candidates = candidates.tailMap(rolledUp ? marker + Character.MAX_VALUE : marker, false);
+    }
+    Set<String> commonPrefixes = new LinkedHashSet<>();
+    int count = 0;
+    String last = null;
+    while (true) {
+      Map.Entry<String, StoredObject> entry = candidates.firstEntry();
+      if (null == entry || !entry.getKey().startsWith(effectivePrefix)) break;
+      String key = entry.getKey();
+      if (count >= maxKeys) {
+        listing.setTruncated(true);
+        listing.setNextMarker(last);
+        break;
+      }
+      int index = null == delimiter || delimiter.isEmpty() ? -1 : key.indexOf(delimiter, effectivePrefix.length());
+      if (index >= 0) {
+        String commonPrefix = key.substring(0, index + delimiter.length());
+        if (commonPrefixes.add(commonPrefix)) count++;
+        last = commonPrefix;
+        // Skip the remainder of this common prefix in one step
+        candidates = candidates.tailMap(commonPrefix + Character.MAX_VALUE, false);
+      } else {
+        listing.getObjectSummaries().add(entry.getValue().summary(bucket, key));
+        count++;
+        last = key;
+        candidates = candidates.tailMap(key, false);
+      }
+    }
+    listing.setCommonPrefixes(new ArrayList<>(commonPrefixes));
+    return listing;
+  }
+
+  @Nonnull
+  private StoredObject write(@Nonnull InputStream in, @Nullable ObjectMetadata metadata) throws IOException {
+    File data = newDataFile();
+    MessageDigest digest = md5();
+    Files.copy(new DigestInputStream(in, digest), data.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    return new StoredObject(data, data.length(), toHex(digest.digest()), metadata);
+  }
+
+  @Nonnull
+  private File newDataFile() {
+    File dir = new File(root, "objects");
+    dir.mkdirs();
+    return new File(dir, UUID.randomUUID().toString());
+  }
+
+  @Nonnull
+  private static AmazonS3Exception error(int status, @Nonnull String code, @Nullable String key) {
+    AmazonS3Exception exception = new AmazonS3Exception(code + ": " + key);
+    exception.setStatusCode(status);
+    exception.setErrorCode(code);
+    return exception;
+  }
+
+  @Nonnull
+  private static MessageDigest md5() {
+    try {
+      return MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  private static String toHex(@Nonnull byte[] bytes) {
+    StringBuilder sb = new StringBuilder();
+    for (byte b : bytes) sb.append(String.format("%02x", b & 0xFF));
+    return sb.toString();
+  }
+
+  @Nonnull
+  private static byte[] hexToBytes(@Nonnull String hex) {
+    byte[] bytes = new byte[hex.length() / 2];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+    }
+    return bytes;
+  }
+
+  private static final class StoredObject {
+    @Nonnull
+    final File data;
+    final long length;
+    @Nonnull
+    final String etag;
+    @Nonnull
+    final Date lastModified = new Date();
+    @Nullable
+    final String contentType;
+    @Nonnull
+    final Map<String, String> userMetadata;
+
+    StoredObject(@Nonnull File data, long length, @Nonnull String etag, @Nullable ObjectMetadata metadata) {
+      this.data = data;
+      this.length = length;
+      this.etag = etag;
+      this.contentType = null == metadata ? null : metadata.getContentType();
+      this.userMetadata = null == metadata ? new HashMap<>() : new HashMap<>(metadata.getUserMetadata());
+    }
+
+    @Nonnull
+    ObjectMetadata metadata() {
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setContentLength(length);
+      metadata.setHeader("ETag", etag);
+      metadata.setLastModified(lastModified);
+      if (null != contentType) metadata.setContentType(contentType);
+      metadata.setUserMetadata(new HashMap<>(userMetadata));
+      return metadata;
+    }
+
+    @Nonnull
+    S3ObjectSummary summary(@Nonnull String bucket, @Nonnull String key) {
+      S3ObjectSummary summary = new S3ObjectSummary();
+      summary.setBucketName(bucket);
+      summary.setKey(key);
+      summary.setSize(length);
+      summary.setETag(etag);
+      summary.setLastModified(lastModified);
+      return summary;
+    }
+  }
+
+  private static final class Upload {
+    @Nonnull
+    final String bucket;
+    @Nonnull
+    final String key;
+    @Nullable
+    final ObjectMetadata metadata;
+    final ConcurrentSkipListMap<Integer, StoredObject> parts = new ConcurrentSkipListMap<>();
+
+    Upload(@Nonnull String bucket, @Nonnull String key, @Nullable ObjectMetadata metadata) {
+      this.bucket = bucket;
+      this.key = key;
+      this.metadata = metadata;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util.io;
+
+import com.simiacryptus.notebook.ByteRingBuffer;
+import com.simiacryptus.notebook.MarkdownNotebookOutput;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.NotebookTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+
+public class ByteRingBufferBenchmarkTest extends NotebookTestBase {
+  private static final long TOTAL_BYTES = 256L * 1024 * 1024;
+  private static final int WRITE_SIZE = 4 * 1024;
+
+  @Override
+  public @Nonnull ReportType getReportType() {
+    return ReportType.Components;
+  }
+
+  @Override
+  protected Class<?> getTargetClass() {
+    return ByteRingBuffer.class;
+  }
+
+  @Test
+  @DisplayName("Pipe Integrity")
+  public void integrity() {
+    MarkdownNotebookOutput log = getLog();
+    log.eval(() -> {
+      ExecutorService pool = Executors.newSingleThreadExecutor();
+      try {
+        ByteRingBuffer pipe = new ByteRingBuffer(1000);
+        Random random = new Random(42);
+        byte[] data = new byte[1024 * 1024];
+        random.nextBytes(data);
+        Future<?> producer = pool.submit(() -> {
+          try (OutputStream out = pipe.getOutputStream()) {
+            int position = 0;
+            while (position < data.length) {
+              int length = Math.min(data.length - position, 1 + random.nextInt(3000));
+              out.write(data, position, length);
+              position += length;
+            }
+          }
+          return null;
+        });
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buffer = new byte[777];
+        int read;
+        while ((read = pipe.getInputStream().read(buffer)) >= 0) {
+          received.write(buffer, 0, read);
+        }
+        producer.get();
+        Assertions.assertArrayEquals(data, received.toByteArray());
+        return RefString.format("%d bytes transferred through a %d byte ring", received.size(), pipe.getCapacity());
+      } finally {
+        pool.shutdown();
+      }
+    });
+  }
+
+  @Test
+  @DisplayName("Pipe Throughput")
+  @Tag("Benchmark")
+  public void throughput() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Streams a large generated payload from a producer thread to a consumer, comparing the ring buffer " +
+        "used by StreamNanoHTTPD.asyncHandler against the piped stream chain it replaced.");
+    log.eval(() -> {
+      Map<String, String> results = new LinkedHashMap<>();
+      for (int capacity : new int[]{16 * 1024, 256 * 1024}) {
+        results.put(RefString.format("ByteRingBuffer (%d KB)", capacity / 1024), measure(() -> {
+          ByteRingBuffer pipe = new ByteRingBuffer(capacity);
+          return new Closeable[]{pipe.getOutputStream(), pipe.getInputStream()};
+        }));
+      }
+      results.put("PipedInputStream/AsyncOutputStream", measure(() -> {
+        PipedInputStream snk = new PipedInputStream();
+        return new Closeable[]{
+            new BufferedOutputStream(new AsyncOutputStream(new PipedOutputStream(snk))),
+            new BufferedInputStream(snk)
+        };
+      }));
+      return results;
+    });
+  }
+
+  @Nonnull
+  private static String measure(@Nonnull PipeFactory factory) {
+    ExecutorService pool = Executors.newSingleThreadExecutor();
+    try {
+      Closeable[] pipe = factory.create();
+      OutputStream out = (OutputStream) pipe[0];
+      InputStream in = (InputStream) pipe[1];
+      byte[] chunk = new byte[WRITE_SIZE];
+      new Random(0).nextBytes(chunk);
+      long start = System.nanoTime();
+      Future<Long> producer = pool.submit(() -> {
+        CRC32 crc = new CRC32();
+        try (OutputStream o = out) {
+          for (long written = 0; written < TOTAL_BYTES; written += chunk.length) {
+            o.write(chunk);
+            crc.update(chunk);
+          }
+        }
+        return crc.getValue();
+      });
+      CRC32 crc = new CRC32();
+      byte[] buffer = new byte[WRITE_SIZE];
+      long total = 0;
+      int read;
+      while ((read = in.read(buffer)) >= 0) {
+        crc.update(buffer, 0, read);
+        total += read;
+      }
+      double seconds = (System.nanoTime() - start) / 1e9;
+      Assertions.assertEquals(TOTAL_BYTES, total);
+      Assertions.assertEquals(producer.get().longValue(), crc.getValue());
+      return RefString.format("%.1f MB/s", total / seconds / (1024 * 1024));
+    } catch (Exception e) {
+      throw Util.throwException(e);
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  private interface PipeFactory {
+    @Nonnull
+    Closeable[] create() throws IOException;
+  }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util.io;
+
+import com.simiacryptus.notebook.*;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.NotebookTestBase;
+import org.apache.commons.io.FileUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+@Tag("Benchmark")
+public class FileNanoHTTPDBenchmarkTest extends NotebookTestBase {
+  private static final int SMALL_FILES = 2000;
+  private static final int SMALL_FILE_SIZE = 2 * 1024;
+  private static final int LARGE_FILES = 3;
+  private static final int LARGE_FILE_SIZE = 32 * 1024 * 1024;
+  private static final int STREAM_SIZE = 256 * 1024;
+  private static final long SCENARIO_MILLIS = 5000;
+  private static final int[] CLIENTS = {1, 8, 32};
+  private static final int[] RATES = {200, 1000};
+  private static final int MAX_OUTSTANDING = 256;
+
+  @Override
+  public @Nonnull ReportType getReportType() {
+    return ReportType.Components;
+  }
+
+  @Override
+  protected Class<?> getTargetClass() {
+    return FileNanoHTTPD.class;
+  }
+
+  @Test
+  @DisplayName("Closed Loop Load")
+  public void closedLoop() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Each client issues its next request as soon as the previous one completes, so throughput " +
+        "is limited by the server; latency is measured per request.");
+    try (Site site = new Site()) {
+      log.eval(site::describe);
+      for (int clients : CLIENTS) {
+        log.h2(RefString.format("%d Clients", clients));
+        log.eval(() -> site.closedLoop(clients, SCENARIO_MILLIS).toMap());
+      }
+      log.eval(() -> site.server.getMetrics().toJsonString());
+    }
+  }
+
+  @Test
+  @DisplayName("Open Loop Load")
+  public void openLoop() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Requests arrive on a fixed schedule regardless of completions; latency is measured from the " +
+        "scheduled start time, so queueing delay is included rather than hidden by slow clients.");
+    try (Site site = new Site()) {
+      log.eval(site::describe);
+      for (int rate : RATES) {
+        log.h2(RefString.format("%d Requests/sec", rate));
+        log.eval(() -> site.openLoop(rate, SCENARIO_MILLIS).toMap());
+      }
+      log.eval(() -> site.server.getMetrics().toJsonString());
+    }
+  }
+
+  private static byte[] fetch(@Nonnull URL url, @Nonnull String method, byte[] body, @Nonnull Result result) {
+    try {
+      HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+      connection.setRequestMethod(method);
+      if (null != body) {
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        connection.setRequestProperty("Content-Type", "application/octet-stream");
+        try (OutputStream out = connection.getOutputStream()) {
+          out.write(body);
+        }
+      }
+      int status = connection.getResponseCode();
+      result.statuses.incrementAndGet(Math.min(Math.max(status, 0), result.statuses.length() - 1));
+      InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+      if (null == in) return new byte[0];
+      try (InputStream stream = in) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = stream.read(buffer)) >= 0) {
+          out.write(buffer, 0, read);
+        }
+        result.bytes.addAndGet(out.size());
+        return out.toByteArray();
+      }
+    } catch (IOException e) {
+      result.errors.incrementAndGet();
+      return new byte[0];
+    }
+  }
+
+  private static class Site implements Closeable {
+    @Nonnull
+    final File root;
+    @Nonnull
+    final StreamNanoHTTPD server;
+    @Nonnull
+    final String base;
+
+    Site() {
+      try {
+        root = Files.createTempDirectory("notebook-http-bench").toFile();
+        Random random = new Random(0);
+        byte[] small = new byte[SMALL_FILE_SIZE];
+        for (int i = 0; i < SMALL_FILES; i++) {
+          random.nextBytes(small);
+          FileUtils.writeByteArrayToFile(new File(root, "small/" + i + ".bin"), small);
+        }
+        byte[] chunk = new byte[1024 * 1024];
+        for (int i = 0; i < LARGE_FILES; i++) {
+          try (OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(root, "large" + i + ".bin")))) {
+            for (int written = 0; written < LARGE_FILE_SIZE; written += chunk.length) {
+              random.nextBytes(chunk);
+              out.write(chunk);
+            }
+          }
+        }
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+          port = socket.getLocalPort();
+        }
+        server = new StreamNanoHTTPD(port, "text/html", new File(root, "index.html")).setAutobrowse(false);
+        // Measure the server itself rather than the default load shedding
+        server.setAdmission(new AdmissionControl(4 * MAX_OUTSTANDING, 4 * MAX_OUTSTANDING, 0));
+        for (String route : new String[]{"page.html", "echo", "stream.txt"}) {
+          server.setRouteLimit(route, 4 * MAX_OUTSTANDING);
+        }
+        server.addGET("page.html", "text/html", out -> {
+          try {
+            out.write(RefString.format("<html><body><p>%d</p></body></html>", System.nanoTime()).getBytes(StandardCharsets.UTF_8));
+          } catch (IOException e) {
+            throw Util.throwException(e);
+          }
+        }, true);
+        server.addPOST("echo", session -> {
+          try {
+            Map<String, String> files = new ConcurrentHashMap<>();
+            session.parseBody(files);
+            String body = files.getOrDefault("postData", "");
+            return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, "text/plain", Integer.toString(body.length()));
+          } catch (IOException | NanoHTTPD.ResponseException e) {
+            throw Util.throwException(e);
+          }
+        });
+        server.addAsyncHandler("stream.txt", "text/plain", out -> {
+          byte[] line = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcde\n".getBytes(StandardCharsets.UTF_8);
+          try {
+            for (int written = 0; written < STREAM_SIZE; written += line.length) {
+              out.write(line);
+            }
+          } catch (IOException e) {
+            throw Util.throwException(e);
+          }
+        }, true);
+        server.init();
+        base = RefString.format("http://localhost:%d/", port);
+      } catch (IOException e) {
+        throw Util.throwException(e);
+      }
+    }
+
+    @Nonnull
+    Map<String, Object> describe() {
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("small files", RefString.format("%d x %d KB", SMALL_FILES, SMALL_FILE_SIZE / 1024));
+      map.put("large files", RefString.format("%d x %d MB", LARGE_FILES, LARGE_FILE_SIZE / (1024 * 1024)));
+      map.put("request mix", "70% small file, 15% GET handler, 10% POST echo, 4% chunked stream, 1% large file");
+      map.put("cores", Runtime.getRuntime().availableProcessors());
+      return map;
+    }
+
+    void request(@Nonnull Random random, @Nonnull Result result) {
+      try {
+        int roll = random.nextInt(100);
+        if (roll < 70) {
+          fetch(new URL(base + "small/" + random.nextInt(SMALL_FILES) + ".bin"), "GET", null, result);
+        } else if (roll < 85) {
+          fetch(new URL(base + "page.html"), "GET", null, result);
+        } else if (roll < 95) {
+          byte[] body = new byte[1024 + random.nextInt(16 * 1024)];
+          random.nextBytes(body);
+          fetch(new URL(base + "echo"), "POST", body, result);
+        } else if (roll < 99) {
+          fetch(new URL(base + "stream.txt"), "GET", null, result);
+        } else {
+          fetch(new URL(base + "large" + random.nextInt(LARGE_FILES) + ".bin"), "GET", null, result);
+        }
+      } catch (IOException e) {
+        throw Util.throwException(e);
+      }
+    }
+
+    @Nonnull
+    Result closedLoop(int clients, long millis) {
+      Result result = new Result(RefString.format("closed loop, %d clients", clients));
+      ExecutorService pool = Executors.newFixedThreadPool(clients);
+      try (Monitor monitor = new Monitor()) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+        CountDownLatch done = new CountDownLatch(clients);
+        for (int i = 0; i < clients; i++) {
+          final int seed = i;
+          pool.submit(() -> {
+            Random random = new Random(seed);
+            try {
+              while (System.nanoTime() < deadline) {
+                long start = System.nanoTime();
+                request(random, result);
+                result.latency.record((System.nanoTime() - start) / 1000);
+              }
+            } finally {
+              done.countDown();
+            }
+          });
+        }
+        done.await();
+        return result.finish(millis, monitor);
+      } catch (InterruptedException e) {
+        throw Util.throwException(e);
+      } finally {
+        pool.shutdown();
+      }
+    }
+
+    @Nonnull
+    Result openLoop(int rate, long millis) {
+      Result result = new Result(RefString.format("open loop, %d requests/sec", rate));
+      ExecutorService pool = Executors.newFixedThreadPool(MAX_OUTSTANDING);
+      Semaphore outstanding = new Semaphore(MAX_OUTSTANDING);
+      try (Monitor monitor = new Monitor()) {
+        long start = System.nanoTime();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long total = millis * rate / 1000;
+        for (long i = 0; i < total; i++) {
+          final long scheduled = start + i * intervalNanos;
+          long wait = scheduled - System.nanoTime();
+          if (wait > 0) LockSupport.parkNanos(wait);
+          if (!outstanding.tryAcquire()) {
+            // The generator never blocks on the server; requests it cannot issue are counted, not delayed
+            result.dropped.incrementAndGet();
+            continue;
+          }
+          final Random random = new Random(i);
+          pool.submit(() -> {
+            try {
+              request(random, result);
+              result.latency.record((System.nanoTime() - scheduled) / 1000);
+            } finally {
+              outstanding.release();
+            }
+          });
+        }
+        outstanding.acquire(MAX_OUTSTANDING);
+        return result.finish(millis, monitor);
+      } catch (InterruptedException e) {
+        throw Util.throwException(e);
+      } finally {
+        pool.shutdown();
+      }
+    }
+
+    @Override
+    public void close() {
+      server.stop();
+      try {
+        FileUtils.deleteDirectory(root);
+      } catch (IOException e) {
+        logger.warn("Error deleting " + root, e);
+      }
+    }
+  }
+
+  private static class Monitor implements AutoCloseable {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    final AtomicLong maxHeap = new AtomicLong();
+    final long startNanos = System.nanoTime();
+    final long startThreads;
+    final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor();
+
+    Monitor() {
+      System.gc();
+      threads.resetPeakThreadCount();
+      startThreads = threads.getThreadCount();
+      sampler.scheduleAtFixedRate(() -> maxHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max),
+          0, 50, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void close() {
+      sampler.shutdown();
+    }
+  }
+
+  private static class Result {
+    final String name;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final AtomicLongArray statuses = new AtomicLongArray(600);
+    final AtomicLong bytes = new AtomicLong();
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong dropped = new AtomicLong();
+    double seconds;
+    long startThreads;
+    long peakThreads;
+    long maxHeap;
+
+    Result(String name) {
+      this.name = name;
+    }
+
+    @Nonnull
+    Result finish(long millis, @Nonnull Monitor monitor) {
+      seconds = Math.max(millis, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - monitor.startNanos)) / 1e3;
+      startThreads = monitor.startThreads;
+      peakThreads = monitor.threads.getPeakThreadCount();
+      maxHeap = monitor.maxHeap.get();
+      LatencyHistogram.Snapshot snapshot = latency.snapshot();
+      Assertions.assertTrue(snapshot.getCount() > 0, name);
+      Assertions.assertEquals(0, errors.get(), name);
+      return this;
+    }
+
+    @Nonnull
+    Map<String, Object> toMap() {
+      LatencyHistogram.Snapshot snapshot = latency.snapshot();
+      Map<String, Object> map = new LinkedHashMap<>();
+      map.put("scenario", name);
+      map.put("requests", snapshot.getCount());
+      map.put("throughput", RefString.format("%.1f requests/sec, %.1f MB/s", snapshot.getCount() / seconds,
+          bytes.get() / seconds / (1024 * 1024)));
+      Map<String, Long> status = new LinkedHashMap<>();
+      for (int i = 0; i < statuses.length(); i++) {
+        if (statuses.get(i) > 0) status.put(Integer.toString(i), statuses.get(i));
+      }
+      map.put("status", status);
+      map.put("errors", errors.get());
+      map.put("dropped", dropped.get());
+      map.put("latency", RefString.format("mean %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms",
+          snapshot.getMeanMicros() / 1e3, snapshot.percentileMicros(50) / 1e3, snapshot.percentileMicros(90) / 1e3,
+          snapshot.percentileMicros(99) / 1e3, snapshot.percentileMicros(99.9) / 1e3, snapshot.getMaxMicros() / 1e3));
+      map.put("threads", RefString.format("%d at start, %d peak", startThreads, peakThreads));
+      map.put("max heap used", RefString.format("%.1f MB", maxHeap / (1024.0 * 1024)));
+      return map;
+    }
+  }
+}
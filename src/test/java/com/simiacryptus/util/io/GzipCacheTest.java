@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util.io;
+
+import com.simiacryptus.notebook.FileNanoHTTPD;
+import com.simiacryptus.notebook.GzipCache;
+import com.simiacryptus.notebook.MarkdownNotebookOutput;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.test.NotebookTestBase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+public class GzipCacheTest extends NotebookTestBase {
+
+  @Override
+  public @Nonnull ReportType getReportType() {
+    return ReportType.Components;
+  }
+
+  @Override
+  protected Class<?> getTargetClass() {
+    return GzipCache.class;
+  }
+
+  @Test
+  @DisplayName("Precompressed Resource")
+  public void precompressed() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("A resource precompressed as it is written is served from the cache, both inside the racy window " +
+        "and once the file has settled.");
+    log.eval(() -> {
+      boolean precompress = GzipCache.PRECOMPRESS;
+      long racyMillis = GzipCache.RACY_MILLIS;
+      GzipCache.PRECOMPRESS = true;
+      File root = Files.createTempDirectory("gzip-cache").toFile();
+      int port;
+      try (ServerSocket socket = new ServerSocket(0)) {
+        port = socket.getLocalPort();
+      }
+      FileNanoHTTPD server = FileNanoHTTPD.create(port, root);
+      try {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(0);
+        while (text.length() < 4 * GzipCache.PRECOMPRESS_MIN_SIZE) text.append("line ").append(random.nextInt(1000)).append('\n');
+        byte[] content = text.toString().getBytes(StandardCharsets.UTF_8);
+        File file = new File(root, "resource.txt");
+        FileUtils.writeByteArrayToFile(file, content);
+        GzipCache.INSTANCE.precompress(file, content);
+        byte[] cached = GzipCache.INSTANCE.get(GzipCache.key(content));
+        Assertions.assertNotNull(cached);
+        URL url = new URL(RefString.format("http://localhost:%d/resource.txt", port));
+
+        long hits = GzipCache.INSTANCE.getHits();
+        long misses = GzipCache.INSTANCE.getMisses();
+        Map<String, Object> results = new LinkedHashMap<>();
+        byte[] racy = fetchGzip(url);
+        Assertions.assertArrayEquals(cached, racy);
+        Assertions.assertArrayEquals(content, gunzip(racy));
+        results.put("racy bytes", racy.length);
+
+        GzipCache.RACY_MILLIS = -1;
+        byte[] stable = fetchGzip(url);
+        Assertions.assertArrayEquals(cached, stable);
+        Assertions.assertArrayEquals(cached, GzipCache.INSTANCE.get(GzipCache.key(file)));
+        Assertions.assertEquals(hits + 2, GzipCache.INSTANCE.getHits());
+        Assertions.assertEquals(misses, GzipCache.INSTANCE.getMisses());
+        results.put("stable bytes", stable.length);
+        results.put("source bytes", content.length);
+        return results;
+      } finally {
+        GzipCache.PRECOMPRESS = precompress;
+        GzipCache.RACY_MILLIS = racyMillis;
+        server.stop();
+      }
+    });
+  }
+
+  @Nonnull
+  private static byte[] fetchGzip(@Nonnull URL url) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestProperty("Accept-Encoding", "gzip");
+    Assertions.assertEquals(200, connection.getResponseCode());
+    Assertions.assertEquals("gzip", connection.getHeaderField("Content-Encoding"));
+    try (InputStream in = connection.getInputStream()) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+
+  @Nonnull
+  private static byte[] gunzip(@Nonnull byte[] compressed) throws IOException {
+    try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      return IOUtils.toByteArray(in);
+    }
+  }
+}
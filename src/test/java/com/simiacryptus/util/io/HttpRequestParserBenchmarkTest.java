@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util.io;
+
+import com.simiacryptus.notebook.HttpRequestParser;
+import com.simiacryptus.notebook.MarkdownNotebookOutput;
+import com.simiacryptus.notebook.NanoHTTPD;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.NotebookTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringTokenizer;
+import java.util.function.Consumer;
+
+public class HttpRequestParserBenchmarkTest extends NotebookTestBase {
+  private static final int WARMUP = 20000;
+  private static final int ITERATIONS = 200000;
+  private static final byte[] REQUEST = ("GET /report/subreport.html?refresh=true&session=a%20b HTTP/1.1\r\n" +
+      "Host: localhost:1080\r\n" +
+      "User-Agent: Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/90.0 Safari/537.36\r\n" +
+      "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n" +
+      "Accept-Encoding: gzip, deflate\r\n" +
+      "Accept-Language: en-US,en;q=0.5\r\n" +
+      "Connection: keep-alive\r\n" +
+      "Cache-Control: no-cache\r\n" +
+      "\r\n").getBytes(StandardCharsets.UTF_8);
+
+  @Override
+  public @Nonnull ReportType getReportType() {
+    return ReportType.Components;
+  }
+
+  @Override
+  protected Class<?> getTargetClass() {
+    return HttpRequestParser.class;
+  }
+
+  @Test
+  @DisplayName("Parser Equivalence")
+  public void equivalence() {
+    MarkdownNotebookOutput log = getLog();
+    log.eval(() -> {
+      HttpRequestParser parser = new HttpRequestParser();
+      parser.load(REQUEST, REQUEST.length);
+      parser.parse();
+      Map<String, String> legacyHeaders = new HashMap<>();
+      Map<String, String> legacyParms = new HashMap<>();
+      String[] legacyRequestLine = legacyParse(legacyHeaders, legacyParms);
+      Assertions.assertEquals(legacyRequestLine[0], parser.getMethod().name());
+      Assertions.assertEquals(legacyRequestLine[1], parser.getUri());
+      Assertions.assertEquals(legacyRequestLine[2], parser.getProtocolVersion());
+      Assertions.assertEquals(legacyHeaders, new HashMap<>(parser.headers()));
+      Assertions.assertEquals(legacyParms, new HashMap<>(parser.parms()));
+      Assertions.assertEquals("gzip, deflate", parser.headers().get("accept-encoding"));
+      Assertions.assertTrue(parser.isHttp11());
+      Assertions.assertFalse(parser.headerContains("connection", "close"));
+      return parser.headers();
+    });
+  }
+
+  @Test
+  @DisplayName("Parser Benchmark")
+  @Tag("Benchmark")
+  public void benchmark() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Compares the byte-level request parser against the reader-based header decoding it replaced, " +
+        "measuring time and heap allocation per parsed request.");
+    log.eval(() -> {
+      Map<String, String> results = new LinkedHashMap<>();
+      HttpRequestParser parser = new HttpRequestParser();
+      results.put("HttpRequestParser", measure(i -> {
+        try {
+          parser.read(new ByteArrayInputStream(REQUEST));
+          parser.parse();
+          parser.getMethod();
+          parser.headers().get("accept-encoding");
+        } catch (IOException | NanoHTTPD.ResponseException e) {
+          throw Util.throwException(e);
+        }
+      }));
+      results.put("Legacy decodeHeader", measure(i -> {
+        legacyParse(new HashMap<>(), new HashMap<>()).hashCode();
+      }));
+      return results;
+    });
+  }
+
+  @Nonnull
+  private static String measure(@Nonnull Consumer<Integer> fn) {
+    for (int i = 0; i < WARMUP; i++) fn.accept(i);
+    long bytesBefore = allocatedBytes();
+    long timeBefore = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) fn.accept(i);
+    long nanos = System.nanoTime() - timeBefore;
+    long bytes = allocatedBytes() - bytesBefore;
+    return RefString.format("%.1f ns/op, %.1f bytes/op", (double) nanos / ITERATIONS, (double) bytes / ITERATIONS);
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+    if (threadMXBean instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threadMXBean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+    return 0;
+  }
+
+  @Nonnull
+  private static String[] legacyParse(@Nonnull Map<String, String> headers, @Nonnull Map<String, String> parms) {
+    try {
+      BufferedReader in = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(REQUEST, 0, REQUEST.length)));
+      StringTokenizer st = new StringTokenizer(in.readLine());
+      String method = st.nextToken();
+      String uri = st.nextToken();
+      int qmi = uri.indexOf('?');
+      if (qmi >= 0) {
+        StringTokenizer params = new StringTokenizer(uri.substring(qmi + 1), "&");
+        while (params.hasMoreTokens()) {
+          String e = params.nextToken();
+          int sep = e.indexOf('=');
+          if (sep >= 0) {
+            parms.put(decodePercent(e.substring(0, sep)).trim(), decodePercent(e.substring(sep + 1)));
+          } else {
+            parms.put(decodePercent(e).trim(), "");
+          }
+        }
+        uri = decodePercent(uri.substring(0, qmi));
+      } else {
+        uri = decodePercent(uri);
+      }
+      String protocolVersion = st.hasMoreTokens() ? st.nextToken() : "HTTP/1.1";
+      String line = in.readLine();
+      while (line != null && !line.trim().isEmpty()) {
+        int p = line.indexOf(':');
+        if (p >= 0) {
+          headers.put(line.substring(0, p).trim().toLowerCase(), line.substring(p + 1).trim());
+        }
+        line = in.readLine();
+      }
+      return new String[]{method, uri, protocolVersion};
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  private static String decodePercent(String str) {
+    try {
+      return java.net.URLDecoder.decode(str, "UTF8");
+    } catch (UnsupportedEncodingException e) {
+      throw Util.throwException(e);
+    }
+  }
+}
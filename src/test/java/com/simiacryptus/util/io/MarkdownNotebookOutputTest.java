@@ -26,13 +26,19 @@ import com.simiacryptus.ref.wrappers.RefIntStream;
 import com.simiacryptus.ref.wrappers.RefString;
 import com.simiacryptus.util.Util;
 import com.simiacryptus.util.test.NotebookTestBase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
 import javax.annotation.Nonnull;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.io.File;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 public class MarkdownNotebookOutputTest extends NotebookTestBase {
 
@@ -122,6 +128,45 @@ public class MarkdownNotebookOutputTest extends NotebookTestBase {
     log.p("Done");
   }
 
+  @Test
+  @DisplayName("Zip Archive")
+  public void testZip() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Archives a mix of text and already-compressed images; text is deflated in parallel and images are stored as-is.");
+    log.eval(() -> {
+      File root = Files.createTempDirectory("zip-tree").toFile();
+      Random random = new Random(0);
+      byte[] image = new byte[64 * 1024];
+      for (int i = 0; i < 200; i++) {
+        StringBuilder text = new StringBuilder();
+        for (int j = 0; j < 2000; j++) text.append("line ").append(random.nextInt(1000)).append('\n');
+        FileUtils.writeStringToFile(new File(root, "text/" + i + ".md"), text.toString(), "UTF-8");
+        random.nextBytes(image);
+        FileUtils.writeByteArrayToFile(new File(root, "etc/" + i + ".png"), image);
+      }
+      long inputBytes = FileUtils.sizeOfDirectory(root);
+      long start = System.nanoTime();
+      File zipFile = MarkdownNotebookOutput.writeZip(root, "report");
+      double seconds = (System.nanoTime() - start) / 1e9;
+      Map<String, Object> results = new LinkedHashMap<>();
+      try (ZipFile zip = new ZipFile(zipFile)) {
+        Assertions.assertEquals(400, zip.size());
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+          ZipEntry entry = entries.nextElement();
+          Assertions.assertEquals(entry.getName().endsWith(".png") ? ZipEntry.STORED : ZipEntry.DEFLATED, entry.getMethod());
+          try (InputStream in = zip.getInputStream(entry)) {
+            Assertions.assertArrayEquals(FileUtils.readFileToByteArray(new File(root, entry.getName())), IOUtils.toByteArray(in));
+          }
+        }
+      }
+      results.put("input MB", inputBytes / 1e6);
+      results.put("zip MB", zipFile.length() / 1e6);
+      results.put("seconds", seconds);
+      return results;
+    });
+  }
+
   @Test
   public void testSubreport() {
     NotebookOutput log = getLog();
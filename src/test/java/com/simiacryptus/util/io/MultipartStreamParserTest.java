@@ -0,0 +1,330 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util.io;
+
+import com.simiacryptus.notebook.FileNanoHTTPD;
+import com.simiacryptus.notebook.MarkdownNotebookOutput;
+import com.simiacryptus.notebook.MultipartStreamParser;
+import com.simiacryptus.notebook.NanoHTTPD;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.NotebookTestBase;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+public class MultipartStreamParserTest extends NotebookTestBase {
+  private static final String BOUNDARY = "----notebook0boundary";
+
+  @Override
+  public @Nonnull ReportType getReportType() {
+    return ReportType.Components;
+  }
+
+  @Override
+  protected Class<?> getTargetClass() {
+    return MultipartStreamParser.class;
+  }
+
+  @Test
+  @DisplayName("Boundary Across Reads")
+  public void splitBoundary() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("The same body is parsed with reads of every size up to a few bytes past the delimiter, so each " +
+        "delimiter is split at every offset; one part is larger than the parse buffer.");
+    log.eval(() -> {
+      Random random = new Random(0);
+      StringBuilder large = new StringBuilder();
+      while (large.length() < 2 * MultipartStreamParser.BUFFER_SIZE + 17) large.append((char) ('a' + random.nextInt(26)));
+      Map<String, String> expected = new LinkedHashMap<>();
+      expected.put("alpha", "first value");
+      expected.put("large", large.toString());
+      expected.put("gamma", "last value");
+      byte[] body = multipart(expected);
+      int delimiterLength = BOUNDARY.length() + 4;
+      for (int chunk = 1; chunk <= delimiterLength + 3; chunk++) {
+        Assertions.assertEquals(expected, parse(body, chunk), "read size " + chunk);
+      }
+      Assertions.assertEquals(expected, parse(body, 7919));
+      Assertions.assertEquals(expected, parse(body, Integer.MAX_VALUE));
+      return body.length;
+    });
+  }
+
+  @Test
+  @DisplayName("Line Breaks And Partial Boundaries")
+  public void partialBoundary() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Part data containing line breaks, dashes and prefixes of the delimiter is passed through unchanged.");
+    log.eval(() -> {
+      String prefix = "\r\n--" + BOUNDARY.substring(0, BOUNDARY.length() - 1);
+      Map<String, String> expected = new LinkedHashMap<>();
+      expected.put("crlf", "line one\r\nline two\r\n\r\n");
+      expected.put("prefix", "before" + prefix + "after" + prefix);
+      expected.put("unbroken", "--" + BOUNDARY + " without a preceding line break");
+      expected.put("dashes", "\r\n-\r\n--\r\n---");
+      byte[] body = multipart(expected);
+      for (int chunk : new int[]{1, 3, BOUNDARY.length() + 3, Integer.MAX_VALUE}) {
+        Assertions.assertEquals(expected, parse(body, chunk), "read size " + chunk);
+      }
+      return expected;
+    });
+  }
+
+  @Test
+  @DisplayName("Empty Part")
+  public void emptyPart() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Parts with no data are reported as empty, whether first, between others or last.");
+    log.eval(() -> {
+      Map<String, String> expected = new LinkedHashMap<>();
+      expected.put("first", "");
+      expected.put("middle", "value");
+      expected.put("between", "");
+      expected.put("last", "");
+      byte[] body = multipart(expected);
+      for (int chunk : new int[]{1, 5, Integer.MAX_VALUE}) {
+        Assertions.assertEquals(expected, parse(body, chunk), "read size " + chunk);
+      }
+      return expected;
+    });
+  }
+
+  @Test
+  @DisplayName("Missing Closing Boundary")
+  public void missingClose() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("A body that ends before the closing delimiter is rejected as a bad request rather than accepted as complete.");
+    log.eval(() -> {
+      Map<String, String> parts = new LinkedHashMap<>();
+      parts.put("alpha", "value");
+      String complete = new String(multipart(parts), StandardCharsets.UTF_8);
+      String[] truncated = {
+          complete.substring(0, complete.indexOf("value") + 3),
+          complete.substring(0, complete.lastIndexOf("--" + BOUNDARY + "--") + BOUNDARY.length() + 2),
+          complete.substring(0, complete.indexOf("\r\n\r\n")),
+      };
+      for (String body : truncated) {
+        NanoHTTPD.ResponseException e = Assertions.assertThrows(NanoHTTPD.ResponseException.class,
+            () -> parse(body.getBytes(StandardCharsets.UTF_8), Integer.MAX_VALUE));
+        Assertions.assertEquals(NanoHTTPD.Response.Status.BAD_REQUEST, e.getStatus());
+      }
+      return truncated.length;
+    });
+  }
+
+  @Test
+  @DisplayName("Body Size Limit")
+  public void bodyLimit() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("A body over the configured maximum is refused with 413 before it is read, and the connection is closed.");
+    log.eval(() -> {
+      try (Server server = new Server(1024)) {
+        Map<String, String> parts = new LinkedHashMap<>();
+        parts.put("alpha", "small");
+        Response small = server.post(parts, "");
+        Assertions.assertEquals(200, small.status);
+        Assertions.assertEquals("alpha=small", small.body);
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 4096) large.append("0123456789");
+        parts.put("alpha", large.toString());
+        Response refused = server.post(parts, "");
+        Assertions.assertEquals(413, refused.status);
+        Assertions.assertEquals("close", refused.headers.get("connection"));
+        return refused.body;
+      }
+    });
+  }
+
+  @Test
+  @DisplayName("Keep-Alive After Drain")
+  public void keepAlive() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("An epilogue larger than the parse buffer is left unread after the closing delimiter; it is drained, " +
+        "so the next request on the same connection is parsed cleanly.");
+    log.eval(() -> {
+      try (Server server = new Server(NanoHTTPD.MAX_BODY_SIZE); Socket socket = server.connect()) {
+        OutputStream out = socket.getOutputStream();
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        StringBuilder epilogue = new StringBuilder();
+        while (epilogue.length() < 3 * MultipartStreamParser.BUFFER_SIZE) epilogue.append("trailing epilogue\r\n");
+        Map<String, String> results = new LinkedHashMap<>();
+        for (int i = 0; i < 3; i++) {
+          Map<String, String> parts = new LinkedHashMap<>();
+          parts.put("alpha", "request " + i);
+          out.write(server.request(parts, epilogue.toString()));
+          out.flush();
+          Response response = Response.read(in);
+          Assertions.assertEquals(200, response.status);
+          Assertions.assertEquals("alpha=request " + i, response.body);
+          results.put("post " + i, response.body);
+        }
+        out.write(RefString.format("GET /ping HTTP/1.1\r\nHost: localhost:%d\r\n\r\n", server.port).getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+        Response ping = Response.read(in);
+        Assertions.assertEquals(200, ping.status);
+        Assertions.assertEquals("pong", ping.body);
+        results.put("get", ping.body);
+        return results;
+      }
+    });
+  }
+
+  @Nonnull
+  private static byte[] multipart(@Nonnull Map<String, String> parts) {
+    StringBuilder body = new StringBuilder();
+    for (Map.Entry<String, String> part : parts.entrySet()) {
+      body.append("--").append(BOUNDARY).append("\r\n")
+          .append("Content-Disposition: form-data; name=\"").append(part.getKey()).append("\"\r\n")
+          .append("\r\n")
+          .append(part.getValue()).append("\r\n");
+    }
+    body.append("--").append(BOUNDARY).append("--\r\n");
+    return body.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  @Nonnull
+  private static Map<String, String> parse(@Nonnull byte[] body, int chunk) throws IOException {
+    Map<String, String> parts = new LinkedHashMap<>();
+    InputStream in = new FilterInputStream(new ByteArrayInputStream(body)) {
+      @Override
+      public int read(@Nonnull byte[] b, int off, int len) throws IOException {
+        return super.read(b, off, Math.min(len, chunk));
+      }
+    };
+    new MultipartStreamParser(in, BOUNDARY, StandardCharsets.UTF_8).parse((name, fileName, contentType) -> new ByteArrayOutputStream() {
+      @Override
+      public void close() {
+        parts.put(name, new String(toByteArray(), StandardCharsets.UTF_8));
+      }
+    });
+    return parts;
+  }
+
+  private static class Server implements Closeable {
+    final int port;
+    @Nonnull
+    final FileNanoHTTPD httpd;
+
+    Server(long maxBodySize) throws IOException {
+      try (ServerSocket socket = new ServerSocket(0)) {
+        port = socket.getLocalPort();
+      }
+      httpd = new FileNanoHTTPD(Files.createTempDirectory("multipart").toFile(), port);
+      httpd.setMaxBodySize(maxBodySize);
+      httpd.addPOST("echo", session -> {
+        try {
+          session.parseBody(new HashMap<>());
+        } catch (IOException e) {
+          throw Util.throwException(e);
+        }
+        Map<String, String> parms = session.getParms();
+        return NanoHTTPD.newFixedLengthResponse(NanoHTTPD.Response.Status.OK, NanoHTTPD.MIME_PLAINTEXT, "alpha=" + parms.get("alpha"));
+      });
+      httpd.addGET("ping", NanoHTTPD.MIME_PLAINTEXT, out -> {
+        try {
+          out.write("pong".getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+          throw Util.throwException(e);
+        }
+      });
+      httpd.init();
+    }
+
+    @Nonnull
+    Socket connect() throws IOException {
+      Socket socket = new Socket("localhost", port);
+      socket.setSoTimeout(10000);
+      return socket;
+    }
+
+    @Nonnull
+    byte[] request(@Nonnull Map<String, String> parts, @Nonnull String epilogue) {
+      byte[] body = multipart(parts);
+      byte[] trailer = epilogue.getBytes(StandardCharsets.UTF_8);
+      ByteArrayOutputStream request = new ByteArrayOutputStream();
+      String headers = RefString.format("POST /echo HTTP/1.1\r\nHost: localhost:%d\r\n" +
+          "Content-Type: multipart/form-data; boundary=%s\r\nContent-Length: %d\r\n\r\n", port, BOUNDARY, body.length + trailer.length);
+      request.write(headers.getBytes(StandardCharsets.ISO_8859_1), 0, headers.length());
+      request.write(body, 0, body.length);
+      request.write(trailer, 0, trailer.length);
+      return request.toByteArray();
+    }
+
+    @Nonnull
+    Response post(@Nonnull Map<String, String> parts, @Nonnull String epilogue) throws IOException {
+      try (Socket socket = connect()) {
+        socket.getOutputStream().write(request(parts, epilogue));
+        socket.getOutputStream().flush();
+        return Response.read(new BufferedInputStream(socket.getInputStream()));
+      }
+    }
+
+    @Override
+    public void close() {
+      httpd.stop();
+    }
+  }
+
+  private static class Response {
+    int status;
+    @Nonnull
+    final Map<String, String> headers = new HashMap<>();
+    String body;
+
+    @Nonnull
+    static Response read(@Nonnull InputStream in) throws IOException {
+      Response response = new Response();
+      String statusLine = readLine(in);
+      response.status = Integer.parseInt(statusLine.split(" ")[1]);
+      String line;
+      while (!(line = readLine(in)).isEmpty()) {
+        int colon = line.indexOf(':');
+        response.headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+      }
+      byte[] body = new byte[Integer.parseInt(response.headers.getOrDefault("content-length", "0"))];
+      new DataInputStream(in).readFully(body);
+      response.body = new String(body, StandardCharsets.UTF_8);
+      return response;
+    }
+
+    @Nonnull
+    private static String readLine(@Nonnull InputStream in) throws IOException {
+      StringBuilder line = new StringBuilder();
+      int c;
+      while ((c = in.read()) >= 0 && c != '\n') {
+        if (c != '\r') line.append((char) c);
+      }
+      if (c < 0 && line.length() == 0) throw new EOFException("Connection closed");
+      return line.toString();
+    }
+  }
+}
@@ -0,0 +1,498 @@
+/*
+ * Copyright (c) 2020 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.util.io;
+
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.simiacryptus.notebook.FileNanoHTTPD;
+import com.simiacryptus.notebook.MarkdownNotebookOutput;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.util.BackgroundArchiver;
+import com.simiacryptus.util.BundleReader;
+import com.simiacryptus.util.LocalS3;
+import com.simiacryptus.util.ParallelUploader;
+import com.simiacryptus.util.S3Cache;
+import com.simiacryptus.util.S3Uploader;
+import com.simiacryptus.util.SyncManifest;
+import com.simiacryptus.util.Util;
+import com.simiacryptus.util.test.NotebookTestBase;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+public class S3UploaderTest extends NotebookTestBase {
+  private static final String BUCKET = "reports";
+  private static final int DIRS = 10;
+  private static final int FILES_PER_DIR = 50;
+  private static final int FILE_SIZE = 4 * 1024;
+  private static final long LATENCY_MILLIS = 5;
+
+  @Override
+  public @Nonnull ReportType getReportType() {
+    return ReportType.Components;
+  }
+
+  @Override
+  protected Class<?> getTargetClass() {
+    return S3Uploader.class;
+  }
+
+  @Test
+  @DisplayName("Parallel Upload")
+  @Tag("Benchmark")
+  public void parallelUpload() {
+    MarkdownNotebookOutput log = getLog();
+    log.p(RefString.format("Uploads %d files to a local S3 stand-in which adds %dms to every request, " +
+        "first one request at a time and then with the default concurrency.", DIRS * FILES_PER_DIR, LATENCY_MILLIS));
+    File tree = newTree(new Random(0));
+    log.eval(() -> {
+      Map<String, Object> results = new LinkedHashMap<>();
+      results.put("sequential", upload(tree, 1));
+      results.put("parallel", upload(tree, ParallelUploader.MAX_IN_FLIGHT));
+      return results;
+    });
+  }
+
+  @Test
+  @DisplayName("Multipart Upload")
+  public void multipartUpload() {
+    MarkdownNotebookOutput log = getLog();
+    log.eval(() -> {
+      File dir = Files.createTempDirectory("s3-multipart").toFile();
+      byte[] data = new byte[5 * 1024 * 1024 + 12345];
+      new Random(1).nextBytes(data);
+      File file = new File(dir, "large.bin");
+      FileUtils.writeByteArrayToFile(file, data);
+      LocalS3 s3 = new LocalS3(new File(dir, "s3")).setLatency(LATENCY_MILLIS);
+      Map<String, Object> results = new LinkedHashMap<>();
+      try (ParallelUploader uploader = new ParallelUploader(s3, 4, 1024 * 1024, 1024 * 1024)) {
+        uploader.submit(file, BUCKET, "large.bin");
+        uploader.awaitAll();
+        results.put("progress", uploader.getProgress().toString());
+      }
+      Assertions.assertArrayEquals(data, s3.getBytes(BUCKET, "large.bin"));
+      Assertions.assertEquals(6, s3.getRequestCount("uploadPart"));
+      Assertions.assertTrue(s3.getObjectMetadata(BUCKET, "large.bin").getETag().endsWith("-6"));
+      Assertions.assertEquals(0, s3.getPendingUploads());
+      results.put("requests", s3.getRequestCounts());
+      results.put("maxConcurrency", s3.getMaxConcurrency());
+      return results;
+    });
+  }
+
+  @Test
+  @DisplayName("Failed Part Aborts Upload")
+  public void failedPart() {
+    MarkdownNotebookOutput log = getLog();
+    log.eval(() -> {
+      File dir = Files.createTempDirectory("s3-multipart-fail").toFile();
+      File file = new File(dir, "large.bin");
+      FileUtils.writeByteArrayToFile(file, new byte[3 * 1024 * 1024]);
+      LocalS3 s3 = new LocalS3(new File(dir, "s3"))
+          .setFailureInjector((operation, key) -> operation.equals("uploadPart"));
+      try (ParallelUploader uploader = new ParallelUploader(s3, 4, 1024 * 1024, 1024 * 1024)) {
+        uploader.submit(file, BUCKET, "large.bin");
+        Assertions.assertThrows(RuntimeException.class, uploader::awaitAll);
+        Assertions.assertEquals(1, uploader.getProgress().getFilesFailed());
+      }
+      Assertions.assertEquals(0, s3.getPendingUploads());
+      Assertions.assertFalse(s3.keys(BUCKET).contains("large.bin"));
+      return s3.getRequestCounts();
+    });
+  }
+
+  @Test
+  @DisplayName("Per-File Retries")
+  public void retries() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Each request is retried on its own with jittered exponential backoff; a permanently failing key " +
+        "is reported at the end without restarting the rest of the upload, and an exhausted error budget fails fast.");
+    File tree = newTree(new Random(6));
+    long previousBackoff = ParallelUploader.BASE_BACKOFF_MS;
+    ParallelUploader.BASE_BACKOFF_MS = 10;
+    try {
+      log.eval(() -> {
+        Map<String, Object> results = new LinkedHashMap<>();
+        Map<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+        LocalS3 flaky = new LocalS3(Files.createTempDirectory("s3-flaky").toFile()).setFailureInjector((operation, key) ->
+            operation.equals("putObject") && key.startsWith("report/dir3/")
+                && attempts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet() <= 2);
+        try (ParallelUploader uploader = new ParallelUploader(flaky).setCheck(null)) {
+          submitTree(uploader, tree);
+          Assertions.assertEquals(DIRS * FILES_PER_DIR, uploader.awaitAll().size());
+          Assertions.assertEquals(2 * FILES_PER_DIR, uploader.getProgress().getRetries());
+          results.put("transient", uploader.getProgress().toString());
+        }
+        LocalS3 broken = new LocalS3(Files.createTempDirectory("s3-broken").toFile()).setFailureInjector((operation, key) ->
+            operation.equals("putObject") && key.startsWith("report/dir4/"));
+        try (ParallelUploader uploader = new ParallelUploader(broken).setCheck(null).setMaxAttempts(2)) {
+          submitTree(uploader, tree);
+          Assertions.assertThrows(RuntimeException.class, uploader::awaitAll);
+          List<String> failedKeys = uploader.getProgress().getFailedKeys();
+          Assertions.assertEquals(FILES_PER_DIR, failedKeys.size());
+          Assertions.assertTrue(failedKeys.stream().allMatch(key -> key.startsWith("report/dir4/")));
+          Assertions.assertEquals((DIRS - 1) * FILES_PER_DIR, broken.keys(BUCKET).size());
+          results.put("permanent", uploader.getProgress().toString());
+        }
+        LocalS3 down = new LocalS3(Files.createTempDirectory("s3-down").toFile())
+            .setFailureInjector((operation, key) -> true);
+        try (ParallelUploader uploader = new ParallelUploader(down).setCheck(null).setErrorBudget(20)) {
+          submitTree(uploader, tree);
+          Assertions.assertThrows(RuntimeException.class, uploader::awaitAll);
+          Assertions.assertEquals(DIRS * FILES_PER_DIR, uploader.getProgress().getFailedKeys().size());
+          Assertions.assertTrue(down.getRequestCount("putObject") < 50);
+          results.put("budget exhausted", uploader.getProgress().toString());
+        }
+        return results;
+      });
+    } finally {
+      ParallelUploader.BASE_BACKOFF_MS = previousBackoff;
+    }
+  }
+
+  @Test
+  @DisplayName("Incremental Sync")
+  public void incrementalSync() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Each sync lists the destination once and uploads only files whose content differs from the " +
+        "manifest or the remote ETag. Edits below keep the file size, which a length comparison would miss.");
+    File tree = newTree(new Random(2));
+    LocalS3 s3 = log.eval(() -> new LocalS3(Files.createTempDirectory("s3-sync").toFile()));
+    URI target = URI.create("s3://" + BUCKET + "/report/");
+    File edited = new File(tree, "dir1/3.bin");
+    log.eval(() -> {
+      Map<String, Object> results = new LinkedHashMap<>();
+      results.put("initial", sync(s3, target, tree, DIRS * FILES_PER_DIR));
+      results.put("unchanged", sync(s3, target, tree, 0));
+      overwrite(edited, new Random(3));
+      results.put("same size edit", sync(s3, target, tree, 1));
+      long mtime = edited.lastModified();
+      overwrite(edited, new Random(4));
+      edited.setLastModified(mtime);
+      results.put("same size and mtime, hashed within the racy window", sync(s3, target, tree, 1));
+      for (File file : FileUtils.listFiles(tree, null, true)) {
+        file.setLastModified(file.lastModified() - 10000);
+      }
+      results.put("touched", sync(s3, target, tree, 0));
+      Assertions.assertTrue(Arrays.equals(FileUtils.readFileToByteArray(edited), s3.getBytes(BUCKET, "report/dir1/3.bin")));
+      new File(tree, SyncManifest.FILE_NAME).delete();
+      results.put("manifest lost", sync(s3, target, tree, 0));
+      s3.deleteObject(BUCKET, "report/dir2/5.bin");
+      results.put("remote deleted", sync(s3, target, tree, 1));
+      Assertions.assertFalse(s3.keys(BUCKET).contains("report/" + SyncManifest.FILE_NAME));
+      return results;
+    });
+  }
+
+  @Test
+  @DisplayName("Background Archiving")
+  public void backgroundArchiving() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Resources are shipped in the background once they stop changing, so closing the report only " +
+        "uploads the deferred report file. A second archiver over the same directory resumes without re-uploading.");
+    long previousInterval = BackgroundArchiver.INTERVAL_MS;
+    long previousQuiet = BackgroundArchiver.QUIET_MS;
+    BackgroundArchiver.INTERVAL_MS = 100;
+    BackgroundArchiver.QUIET_MS = 200;
+    try {
+      log.eval(() -> {
+        File root = Files.createTempDirectory("s3-archive").toFile();
+        LocalS3 s3 = new LocalS3(Files.createTempDirectory("s3").toFile());
+        URI target = URI.create("s3://" + BUCKET + "/run/");
+        File report = new File(root, "report.html");
+        Map<String, Object> results = new LinkedHashMap<>();
+        BackgroundArchiver archiver = new BackgroundArchiver(root, () -> target, uri -> s3, report::equals);
+        FileUtils.writeStringToFile(report, "<html>draft</html>", "UTF-8");
+        Random random = new Random(5);
+        byte[] data = new byte[FILE_SIZE];
+        for (int i = 0; i < FILES_PER_DIR; i++) {
+          random.nextBytes(data);
+          FileUtils.writeByteArrayToFile(new File(root, "etc/" + i + ".png"), data);
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while (s3.keys(BUCKET).size() < FILES_PER_DIR && System.currentTimeMillis() < deadline) {
+          Thread.sleep(50);
+        }
+        Assertions.assertEquals(FILES_PER_DIR, s3.keys(BUCKET).size());
+        Assertions.assertFalse(s3.keys(BUCKET).contains("run/report.html"));
+        results.put("background", s3.getRequestCounts());
+        s3.resetCounters();
+        FileUtils.writeStringToFile(report, "<html>final</html>", "UTF-8");
+        archiver.close();
+        Assertions.assertEquals(1, s3.getRequestCount("putObject"));
+        Assertions.assertEquals("<html>final</html>", new String(s3.getBytes(BUCKET, "run/report.html"), "UTF-8"));
+        results.put("close", s3.getRequestCounts());
+        s3.resetCounters();
+        new BackgroundArchiver(root, () -> target, uri -> s3, report::equals).close();
+        Assertions.assertEquals(0, s3.getRequestCount("putObject"));
+        results.put("restart", s3.getRequestCounts());
+        return results;
+      });
+    } finally {
+      BackgroundArchiver.INTERVAL_MS = previousInterval;
+      BackgroundArchiver.QUIET_MS = previousQuiet;
+    }
+  }
+
+  @Test
+  @DisplayName("Bundle Upload")
+  public void bundleUpload() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Archives the tree as a single zip object, then reads the index from its tail and individual " +
+        "entries with ranged requests, both directly and through an HTTP route.");
+    File tree = newTree(new Random(6));
+    log.eval(() -> {
+      FileUtils.writeStringToFile(new File(tree, "report.md"), String.join("\n", Collections.nCopies(1000, "Some text")), "UTF-8");
+      LocalS3 s3 = new LocalS3(Files.createTempDirectory("s3").toFile());
+      Map<String, Object> results = new LinkedHashMap<>();
+      S3Uploader.uploadBundle(s3, URI.create("s3://" + BUCKET + "/run/"), tree);
+      Assertions.assertEquals(1, s3.getRequestCount("putObject"));
+      results.put("upload", s3.getRequestCounts());
+      String key = "run/" + tree.getName() + ".zip";
+      BundleReader reader = new BundleReader(s3, BUCKET, key);
+      Assertions.assertEquals(DIRS * FILES_PER_DIR + 1, reader.getNames().size());
+      Assertions.assertEquals(2, reader.getRequests());
+      for (String name : reader.getNames()) {
+        Assertions.assertArrayEquals(FileUtils.readFileToByteArray(new File(tree, name)), reader.read(name), name);
+      }
+      Assertions.assertEquals(2 + DIRS * FILES_PER_DIR + 1, reader.getRequests());
+      results.put("entries", reader.getNames().size());
+      results.put("requests", reader.getRequests());
+      try (ServerSocket socket = new ServerSocket(0)) {
+        results.put("port", socket.getLocalPort());
+      }
+      int port = (Integer) results.remove("port");
+      FileNanoHTTPD httpd = FileNanoHTTPD.create(port, tree);
+      try {
+        reader.serve(httpd, "archive/");
+        URL url = new URL("http://localhost:" + port + "/archive/report.md");
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        Assertions.assertEquals(200, connection.getResponseCode());
+        String etag = connection.getHeaderField("ETag");
+        try (InputStream in = connection.getInputStream()) {
+          Assertions.assertArrayEquals(FileUtils.readFileToByteArray(new File(tree, "report.md")), IOUtils.toByteArray(in));
+        }
+        connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        Assertions.assertEquals(304, connection.getResponseCode());
+        connection = (HttpURLConnection) new URL("http://localhost:" + port + "/archive/missing.md").openConnection();
+        Assertions.assertEquals(404, connection.getResponseCode());
+        results.put("etag", etag);
+      } finally {
+        httpd.stop();
+      }
+      return results;
+    });
+  }
+
+  @Test
+  @DisplayName("Prefix-Parallel Listing")
+  public void parallelListing() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Lists a tree too large for one page; the lister fans out across common prefixes instead of paging one prefix serially.");
+    log.eval(() -> {
+      LocalS3 s3 = newBucket(Files.createTempDirectory("s3").toFile());
+      Map<String, Object> results = new LinkedHashMap<>();
+      s3.setLatency(LATENCY_MILLIS);
+      List<String> keys = S3Uploader.listObjects(s3, BUCKET, "old/").map(summary -> summary.getKey()).collect(Collectors.toList());
+      Assertions.assertEquals(s3.keys(BUCKET).stream().filter(key -> key.startsWith("old/")).collect(Collectors.toSet()), new HashSet<>(keys));
+      Assertions.assertEquals(keys.size(), new HashSet<>(keys).size());
+      Assertions.assertTrue(s3.getMaxConcurrency() > 1);
+      results.put("keys", keys.size());
+      results.put("large", s3.getRequestCounts());
+      results.put("max concurrency", s3.getMaxConcurrency());
+      s3.resetCounters();
+      Assertions.assertEquals(DIRS * FILES_PER_DIR / 10, S3Uploader.listObjects(s3, BUCKET, "keep/").count());
+      Assertions.assertEquals(1, s3.getRequestCount("listObjects"));
+      results.put("small", s3.getRequestCounts());
+      return results;
+    });
+  }
+
+  @Test
+  @DisplayName("Batched Delete")
+  public void batchedDelete() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Deletes a large tree in batches of 1000 keys with several batches in flight, while throttling errors " +
+        "from the first requests are retried. Keys outside the deleted prefix are left alone.");
+    log.eval(() -> {
+      LocalS3 s3 = newBucket(Files.createTempDirectory("s3").toFile());
+      int total = s3.keys(BUCKET).size();
+      AtomicInteger throttled = new AtomicInteger();
+      s3.setLatency(LATENCY_MILLIS).setFailureInjector((op, key) -> op.equals("deleteObjects") && throttled.incrementAndGet() <= 2);
+      S3Uploader.rmDir(s3, URI.create("s3://" + BUCKET + "/old/"));
+      Assertions.assertEquals(DIRS * FILES_PER_DIR / 10, s3.keys(BUCKET).size());
+      Assertions.assertTrue(s3.keys(BUCKET).stream().allMatch(key -> key.startsWith("keep/")));
+      long deleted = total - s3.keys(BUCKET).size();
+      Map<String, Object> results = new LinkedHashMap<>();
+      results.put("deleted", deleted);
+      results.put("requests", s3.getRequestCounts());
+      results.put("max concurrency", s3.getMaxConcurrency());
+      return results;
+    });
+  }
+
+  @Test
+  @DisplayName("Download Cache")
+  public void downloadCache() {
+    MarkdownNotebookOutput log = getLog();
+    log.p("Repeated reads are served from a local, content-addressed cache after a conditional request confirms the ETag; " +
+        "a changed object is fetched again and the least recently used blobs are evicted past the size bound.");
+    log.eval(() -> {
+      LocalS3 s3 = new LocalS3(Files.createTempDirectory("s3").toFile());
+      S3Cache cache = new S3Cache(Files.createTempDirectory("s3-cache").toFile(), 3 * FILE_SIZE, 0);
+      Random random = new Random(7);
+      byte[] data = new byte[FILE_SIZE];
+      random.nextBytes(data);
+      Map<String, Object> results = new LinkedHashMap<>();
+      cache.put(s3, BUCKET, "artifacts/model.kryo", data);
+      s3.resetCounters();
+      for (int i = 0; i < 5; i++) {
+        Assertions.assertArrayEquals(data, cache.read(s3, BUCKET, "artifacts/model.kryo"));
+      }
+      Assertions.assertEquals(5, cache.getHits());
+      Assertions.assertEquals(0, cache.getMisses());
+      results.put("cached reads", s3.getRequestCounts());
+      byte[] changed = new byte[FILE_SIZE];
+      random.nextBytes(changed);
+      s3.putObject(BUCKET, "artifacts/model.kryo", new ByteArrayInputStream(changed), new ObjectMetadata());
+      Assertions.assertArrayEquals(changed, cache.read(s3, BUCKET, "artifacts/model.kryo"));
+      Assertions.assertEquals(1, cache.getMisses());
+      for (int i = 0; i < 5; i++) {
+        random.nextBytes(data);
+        cache.put(s3, BUCKET, "artifacts/" + i + ".kryo", data);
+      }
+      Assertions.assertTrue(cache.getSize() <= 3 * FILE_SIZE);
+      Assertions.assertArrayEquals(data, cache.read(s3, BUCKET, "artifacts/4.kryo"));
+      s3.resetCounters();
+      cache.read(s3, BUCKET, "artifacts/0.kryo");
+      Assertions.assertEquals(2, cache.getMisses());
+      results.put("evictions", cache.getEvictions());
+      results.put("hits", cache.getHits());
+      results.put("misses", cache.getMisses());
+      return results;
+    });
+  }
+
+  @Nonnull
+  private static LocalS3 newBucket(@Nonnull File root) {
+    LocalS3 s3 = new LocalS3(root);
+    for (int i = 0; i < 10 * DIRS * FILES_PER_DIR; i++) {
+      s3.putObject(BUCKET, RefString.format("old/run%d/dir%d/%d.bin", i % 7, i % DIRS, i), "data");
+    }
+    for (int i = 0; i < DIRS * FILES_PER_DIR / 10; i++) {
+      s3.putObject(BUCKET, RefString.format("keep/%d.bin", i), "data");
+    }
+    s3.resetCounters();
+    return s3;
+  }
+
+  @Nonnull
+  private static Map<String, Long> sync(@Nonnull LocalS3 s3, @Nonnull URI target, @Nonnull File tree, int expectedPuts) {
+    s3.resetCounters();
+    S3Uploader.uploadDir(s3, target, tree);
+    Map<String, Long> counts = s3.getRequestCounts();
+    Assertions.assertEquals(expectedPuts, s3.getRequestCount("putObject"), counts.toString());
+    Assertions.assertEquals(1, s3.getRequestCount("listObjects"), counts.toString());
+    Assertions.assertEquals(0, s3.getRequestCount("doesObjectExist") + s3.getRequestCount("getObjectMetadata"), counts.toString());
+    Assertions.assertEquals(DIRS * FILES_PER_DIR, s3.keys(BUCKET).size());
+    return counts;
+  }
+
+  private static void submitTree(@Nonnull ParallelUploader uploader, @Nonnull File tree) {
+    for (File file : FileUtils.listFiles(tree, null, true)) {
+      if (SyncManifest.isManifest(file)) continue;
+      String path = tree.toURI().relativize(file.toURI()).getPath();
+      uploader.submit(file, BUCKET, "report/" + path);
+    }
+  }
+
+  private static void overwrite(@Nonnull File file, @Nonnull Random random) {
+    try {
+      byte[] data = new byte[(int) file.length()];
+      random.nextBytes(data);
+      FileUtils.writeByteArrayToFile(file, data);
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
+  @Nonnull
+  private static Map<String, Object> upload(@Nonnull File tree, int maxInFlight) {
+    int previous = ParallelUploader.MAX_IN_FLIGHT;
+    ParallelUploader.MAX_IN_FLIGHT = maxInFlight;
+    try {
+      LocalS3 s3 = new LocalS3(Files.createTempDirectory("s3").toFile()).setLatency(LATENCY_MILLIS);
+      long start = System.nanoTime();
+      Map<File, URL> uploaded = S3Uploader.uploadDir(s3, URI.create("s3://" + BUCKET + "/report/"), tree);
+      double seconds = (System.nanoTime() - start) / 1e9;
+      Assertions.assertEquals(DIRS * FILES_PER_DIR, s3.keys(BUCKET).size());
+      Assertions.assertEquals(DIRS * FILES_PER_DIR, uploaded.size());
+      Assertions.assertTrue(s3.getMaxConcurrency() <= maxInFlight);
+      File sample = new File(tree, "dir3/7.bin");
+      Assertions.assertTrue(Arrays.equals(FileUtils.readFileToByteArray(sample), s3.getBytes(BUCKET, "report/dir3/7.bin")));
+      Map<String, Object> results = new LinkedHashMap<>();
+      results.put("maxInFlight", maxInFlight);
+      results.put("seconds", seconds);
+      results.put("filesPerSecond", uploaded.size() / seconds);
+      results.put("maxConcurrency", s3.getMaxConcurrency());
+      results.put("requests", s3.getRequestCounts());
+      return results;
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    } finally {
+      ParallelUploader.MAX_IN_FLIGHT = previous;
+    }
+  }
+
+  @Nonnull
+  private static File newTree(@Nonnull Random random) {
+    try {
+      File root = Files.createTempDirectory("s3-tree").toFile();
+      byte[] data = new byte[FILE_SIZE];
+      for (int d = 0; d < DIRS; d++) {
+        for (int f = 0; f < FILES_PER_DIR; f++) {
+          random.nextBytes(data);
+          FileUtils.writeByteArrayToFile(new File(root, "dir" + d + "/" + f + ".bin"), data);
+        }
+      }
+      return root;
+    } catch (IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+}